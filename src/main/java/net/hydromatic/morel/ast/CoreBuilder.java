@@ -349,6 +349,19 @@ public enum CoreBuilder {
     return new Core.Apply(type, fn, arg);
   }
 
+  /** Combines a list of conditions using {@code andalso}, or returns
+   * {@code true} if the list is empty. */
+  public Core.Exp andAlso(TypeSystem typeSystem, List<Core.Exp> exps) {
+    Core.Exp exp = null;
+    for (Core.Exp e : exps) {
+      exp = exp == null ? e
+          : apply(PrimitiveType.BOOL,
+              functionLiteral(typeSystem, BuiltIn.Z_ANDALSO),
+              tuple(typeSystem, null, ImmutableList.of(exp, e)));
+    }
+    return exp == null ? boolLiteral(true) : exp;
+  }
+
   public Core.Case ifThenElse(Core.Exp condition, Core.Exp ifTrue,
       Core.Exp ifFalse) {
     // Translate "if c then a else b"
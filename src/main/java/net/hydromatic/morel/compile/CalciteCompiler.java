@@ -22,6 +22,7 @@ import net.hydromatic.morel.ast.Ast;
 import net.hydromatic.morel.ast.AstNode;
 import net.hydromatic.morel.ast.Core;
 import net.hydromatic.morel.ast.Op;
+import net.hydromatic.morel.ast.Shuttle;
 import net.hydromatic.morel.ast.Visitor;
 import net.hydromatic.morel.eval.Applicable;
 import net.hydromatic.morel.eval.Code;
@@ -37,7 +38,9 @@ import net.hydromatic.morel.foreign.RelList;
 import net.hydromatic.morel.type.Binding;
 import net.hydromatic.morel.type.ListType;
 import net.hydromatic.morel.type.PrimitiveType;
+import net.hydromatic.morel.type.RecordLikeType;
 import net.hydromatic.morel.type.RecordType;
+import net.hydromatic.morel.type.TupleType;
 import net.hydromatic.morel.type.Type;
 import net.hydromatic.morel.type.TypeSystem;
 import net.hydromatic.morel.type.TypeVar;
@@ -296,6 +299,11 @@ public class CalciteCompiler extends Compiler {
         if (!aggressive) {
           return false;
         }
+        if (rowType.getFieldList().stream()
+            .anyMatch(field -> field.getType().isStruct())) {
+          // RelJson cannot read back a row type that contains records
+          return false;
+        }
         final JsonBuilder jsonBuilder = new JsonBuilder();
         final String jsonRowType =
             jsonBuilder.toJsonString(
@@ -568,6 +576,13 @@ public class CalciteCompiler extends Compiler {
       }
       break;
 
+    case CASE:
+      final Core.Exp exp2 = flattenCase(cx, (Core.Case) exp);
+      if (exp2 != null) {
+        return translate(cx, exp2);
+      }
+      break;
+
     case TUPLE:
       final Core.Tuple tuple = (Core.Tuple) exp;
       builder = cx.relBuilder.getTypeFactory().builder();
@@ -585,6 +600,57 @@ public class CalciteCompiler extends Compiler {
     return morelScalar(cx, exp);
   }
 
+  /** Converts a {@code case} whose argument is a variable of the current row,
+   * and whose only arm is a tuple or record pattern, into the body of that
+   * arm with field references in place of the pattern's variables; or
+   * returns null.
+   *
+   * <p>For example, {@code case v of (i, j) => i > j} becomes
+   * {@code #1 v > #2 v}. */
+  private Core.@Nullable Exp flattenCase(RelContext cx, Core.Case caseOf) {
+    if (caseOf.exp.op != Op.ID
+        || cx.var(((Core.Id) caseOf.exp).idPat.name) == null
+        || caseOf.matchList.size() != 1) {
+      return null;
+    }
+    final Core.Id id = (Core.Id) caseOf.exp;
+    final Core.Match match = caseOf.matchList.get(0);
+    final List<Core.Pat> pats;
+    switch (match.pat.op) {
+    case TUPLE_PAT:
+      pats = ((Core.TuplePat) match.pat).args;
+      break;
+    case RECORD_PAT:
+      pats = ((Core.RecordPat) match.pat).args;
+      break;
+    default:
+      return null;
+    }
+    final RecordLikeType recordType = (RecordLikeType) match.pat.type;
+    final Map<String, Core.Exp> fields = new HashMap<>();
+    for (int i = 0; i < pats.size(); i++) {
+      final Core.Pat pat = pats.get(i);
+      switch (pat.op) {
+      case ID_PAT:
+        fields.put(((Core.IdPat) pat).name,
+            core.apply(pat.type,
+                core.recordSelector(typeSystem.fnType(recordType, pat.type),
+                    i),
+                id));
+        break;
+      case WILDCARD_PAT:
+        break;
+      default:
+        return null;
+      }
+    }
+    return match.exp.accept(new Shuttle(typeSystem) {
+      @Override protected Core.Exp visit(Core.Id id) {
+        return fields.getOrDefault(id.idPat.name, id);
+      }
+    });
+  }
+
   private RexNode maybeNot(RelContext cx, RexNode e, boolean not) {
     return not ? cx.relBuilder.not(e) : e;
   }
@@ -630,10 +696,10 @@ public class CalciteCompiler extends Compiler {
 
   private Core.Tuple toRecord(RelContext cx, Core.Id id) {
     final Type type = cx.env.get(id.idPat.name).id.type;
-    if (type instanceof RecordType) {
-      final RecordType recordType = (RecordType) type;
+    if (type instanceof RecordType || type instanceof TupleType) {
+      final RecordLikeType recordType = (RecordLikeType) type;
       final List<Core.Exp> args = new ArrayList<>();
-      recordType.argNameTypes.forEach((field, fieldType) ->
+      recordType.argNameTypes().forEach((field, fieldType) ->
           args.add(
               core.apply(fieldType,
                   core.recordSelector(typeSystem, recordType, field),
@@ -815,6 +881,12 @@ public class CalciteCompiler extends Compiler {
           : new RelContext(env2, this, relBuilder, map, inputCount);
     }
 
+    @Override RelContext withFrame(@Nullable Frame frame) {
+      // Code in a relational context may be evaluated in an environment
+      // whose layout we do not know, so variables are accessed by name.
+      return this;
+    }
+
     /** Creates a correlation variable with which to reference the current row
      * of a relation in an enclosing loop. */
     public @Nullable RexNode var(String name) {
@@ -871,7 +943,7 @@ public class CalciteCompiler extends Compiler {
     }
 
     RexNode apply(RelBuilder relBuilder) {
-      if (type instanceof RecordType) {
+      if (type instanceof RecordType || type instanceof TupleType) {
         return relBuilder.getRexBuilder().makeRangeReference(rowType,
             offset, false);
       } else {
@@ -0,0 +1,756 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.compile;
+
+import net.hydromatic.morel.ast.Core;
+import net.hydromatic.morel.ast.Visitor;
+import net.hydromatic.morel.eval.Applicable;
+import net.hydromatic.morel.eval.Code;
+import net.hydromatic.morel.eval.Codes;
+import net.hydromatic.morel.eval.Describer;
+import net.hydromatic.morel.eval.EvalEnv;
+import net.hydromatic.morel.eval.Matchers;
+import net.hydromatic.morel.type.PrimitiveType;
+import net.hydromatic.morel.type.Type;
+import net.hydromatic.morel.util.PersistentList;
+import net.hydromatic.morel.util.TyConValue;
+
+import com.google.common.collect.ImmutableMap;
+import org.codehaus.commons.compiler.CompileException;
+import org.codehaus.janino.ClassBodyEvaluator;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+import static java.util.Objects.requireNonNull;
+
+/** Generates a Java class that implements the body of a function.
+ *
+ * <p>Used by {@link Compiler} if property
+ * {@link net.hydromatic.morel.eval.Prop#CODEGEN} is true.
+ *
+ * <p>The generated class extends {@link GeneratedCode}, and therefore
+ * implements {@link Code}; it is compiled using Janino. Arithmetic and
+ * comparisons on {@code int}, {@code real} and {@code bool} values use Java
+ * primitives; {@code case} becomes a sequence of tests; variables bound by
+ * {@code let} and {@code case} inside the body become Java local variables.
+ *
+ * <p>A sub-expression that the generator does not handle, and that does not
+ * reference any such local variable, is compiled by the {@link Compiler} as
+ * usual, and the generated code evaluates it. (That includes references to
+ * the function's parameters, which are in the environment.) If a
+ * sub-expression can be handled in neither way, the generator gives up, and
+ * the whole body is interpreted. */
+class CodeGenerator {
+  private final Compiler compiler;
+  private final Compiler.Context cx;
+  private final List<Code> codes = new ArrayList<>();
+  private final List<Applicable> applicables = new ArrayList<>();
+  private final List<Object> values = new ArrayList<>();
+  private final StringBuilder buf = new StringBuilder();
+  private int indent = 2;
+  private int varCount = 0;
+
+  private CodeGenerator(Compiler compiler, Compiler.Context cx) {
+    this.compiler = requireNonNull(compiler);
+    this.cx = requireNonNull(cx);
+  }
+
+  /** Generates code for an expression (usually the body of a function), or
+   * returns null if the expression contains constructs that the generator
+   * cannot handle.
+   *
+   * @param compiler Compiler, to compile sub-expressions that cannot be
+   *   generated
+   * @param cx Context in which the expression will be evaluated
+   * @param exp Expression
+   * @param className Name of the generated class; each generated class has
+   *   its own class loader, so the name need not be unique
+   */
+  static @Nullable Code generate(Compiler compiler, Compiler.Context cx,
+      Core.Exp exp, String className) {
+    final CodeGenerator g = new CodeGenerator(compiler, cx);
+    final Expr result;
+    try {
+      result = g.genTail(exp, ImmutableMap.of());
+    } catch (UnsupportedException e) {
+      return null;
+    }
+    g.line("return " + g.convert(result, JType.OBJECT) + ";");
+    final String source = "public Object eval("
+        + EvalEnv.class.getName() + " env) {\n"
+        + g.buf
+        + "}\n";
+    final GeneratedCode code;
+    try {
+      final ClassBodyEvaluator evaluator = new ClassBodyEvaluator();
+      evaluator.setClassName(className);
+      evaluator.setExtendedClass(GeneratedCode.class);
+      evaluator.setParentClassLoader(CodeGenerator.class.getClassLoader());
+      evaluator.cook(source);
+      code = (GeneratedCode) evaluator.getClazz().getConstructor()
+          .newInstance();
+    } catch (CompileException | ReflectiveOperationException e) {
+      throw new RuntimeException("Error while compiling generated code:\n"
+          + source, e);
+    }
+    code.init(className, source, g.codes.toArray(new Code[0]),
+        g.applicables.toArray(new Applicable[0]), g.values.toArray());
+    return code;
+  }
+
+  private void line(String s) {
+    for (int i = 0; i < indent; i++) {
+      buf.append("  ");
+    }
+    buf.append(s).append('\n');
+  }
+
+  private String newVar() {
+    return "v" + varCount++;
+  }
+
+  /** Declares a variable, assigns it the value of an expression, and returns
+   * a reference to the variable. */
+  private Expr assign(JType type, String code) {
+    final String v = newVar();
+    line("final " + type.javaName + " " + v + " = " + code + ";");
+    return new Expr(v, type);
+  }
+
+  private String code(Code code) {
+    codes.add(code);
+    return "codes[" + (codes.size() - 1) + "]";
+  }
+
+  private String applicable(Applicable applicable) {
+    applicables.add(applicable);
+    return "applicables[" + (applicables.size() - 1) + "]";
+  }
+
+  private String value(Object value) {
+    values.add(value);
+    return "values[" + (values.size() - 1) + "]";
+  }
+
+  /** Converts an expression to a given Java type, boxing or unboxing if
+   * necessary. */
+  private String convert(Expr expr, JType type) {
+    if (expr.type == type) {
+      return expr.code;
+    }
+    if (type == JType.OBJECT) {
+      return expr.type.boxName + ".valueOf(" + expr.code + ")";
+    }
+    assert expr.type == JType.OBJECT : expr.type + " to " + type;
+    return "((" + type.boxName + ") " + expr.code + ")." + type.javaName
+        + "Value()";
+  }
+
+  /** Generates code that evaluates an expression, and returns an expression
+   * (a literal or a variable) that references its value. */
+  private Expr gen(Core.Exp exp, Map<String, Expr> scope) {
+    final Core.Literal literal;
+    switch (exp.op) {
+    case BOOL_LITERAL:
+      literal = (Core.Literal) exp;
+      return new Expr(literal.value.toString(), JType.BOOL);
+
+    case INT_LITERAL:
+      literal = (Core.Literal) exp;
+      return new Expr("(" + ((BigDecimal) literal.value).intValue() + ")",
+          JType.INT);
+
+    case REAL_LITERAL:
+      literal = (Core.Literal) exp;
+      final float f = ((BigDecimal) literal.value).floatValue();
+      return new Expr("Float.intBitsToFloat(" + Float.floatToIntBits(f) + ")",
+          JType.REAL);
+
+    case ID:
+      final Expr local = scope.get(((Core.Id) exp).idPat.name);
+      if (local != null) {
+        return local;
+      }
+      return delegate(exp, scope);
+
+    case TUPLE:
+      return genTuple(((Core.Tuple) exp).args, scope);
+
+    case APPLY:
+      return genApply((Core.Apply) exp, scope, false);
+
+    case CASE:
+      return genCase((Core.Case) exp, scope, false);
+
+    case LET:
+      return genLet((Core.Let) exp, scope, false);
+
+    default:
+      return delegate(exp, scope);
+    }
+  }
+
+  /** Generates code that evaluates an expression that is in tail position in
+   * the body of a function; that is, its value is the value of the body.
+   *
+   * <p>Calls in tail position return a tail call (see
+   * {@link Codes#tailApply}) rather than calling the closure, so that
+   * recursion through them uses a constant amount of stack, as in
+   * interpreted code. The resulting expression is therefore of type
+   * {@link JType#OBJECT}, and can only be returned. */
+  private Expr genTail(Core.Exp exp, Map<String, Expr> scope) {
+    switch (exp.op) {
+    case APPLY:
+      return genApply((Core.Apply) exp, scope, true);
+
+    case CASE:
+      return genCase((Core.Case) exp, scope, true);
+
+    case LET:
+      return genLet((Core.Let) exp, scope, true);
+
+    default:
+      return gen(exp, scope);
+    }
+  }
+
+  private Expr genLet(Core.Let let, Map<String, Expr> scope, boolean tail) {
+    if (let.decl.rec) {
+      return delegate(let, scope);
+    }
+    final JType type = JType.of(let.decl.pat.type);
+    final Expr e = gen(let.decl.exp, scope);
+    final Expr v = assign(type, convert(e, type));
+    final Map<String, Expr> scope2 = plus(scope, let.decl.pat.name, v);
+    return tail ? genTail(let.exp, scope2) : gen(let.exp, scope2);
+  }
+
+  /** Generates code that evaluates an expression using code produced by the
+   * interpreter. Throws if the expression references local variables of the
+   * generated code. */
+  private Expr delegate(Core.Exp exp, Map<String, Expr> scope) {
+    if (!scope.isEmpty()) {
+      final Set<String> names = new HashSet<>();
+      exp.accept(new Visitor() {
+        @Override protected void visit(Core.Id id) {
+          names.add(id.idPat.name);
+        }
+      });
+      for (String name : names) {
+        if (scope.containsKey(name)) {
+          throw new UnsupportedException();
+        }
+      }
+    }
+    final Code code = compiler.compile(cx, exp);
+    final JType type = JType.of(exp.type);
+    return assign(type,
+        convert(new Expr(code(code) + ".eval(env)", JType.OBJECT), type));
+  }
+
+  private Expr genTuple(List<Core.Exp> args, Map<String, Expr> scope) {
+    final List<String> argCodes = new ArrayList<>();
+    for (Core.Exp arg : args) {
+      argCodes.add(convert(gen(arg, scope), JType.OBJECT));
+    }
+    return assign(JType.OBJECT,
+        "net.hydromatic.morel.eval.Codes.tupleValue(new Object[] {"
+            + String.join(", ", argCodes) + "})");
+  }
+
+  private Expr genApply(Core.Apply apply, Map<String, Expr> scope,
+      boolean tail) {
+    switch (apply.fn.op) {
+    case FN_LITERAL:
+      final BuiltIn builtIn = (BuiltIn) ((Core.Literal) apply.fn).value;
+      final Expr expr = genCall(builtIn, apply, scope);
+      if (expr != null) {
+        return expr;
+      }
+      final Object o = Codes.BUILT_IN_VALUES.get(builtIn);
+      if (!(o instanceof Applicable)) {
+        return delegate(apply, scope);
+      }
+      return genApplicable(applicable((Applicable) o), apply.arg, scope,
+          false);
+
+    case RECORD_SELECTOR:
+      final int slot = ((Core.RecordSelector) apply.fn).slot;
+      final Expr arg = gen(apply.arg, scope);
+      final JType type = JType.of(apply.type);
+      return assign(type,
+          convert(
+              new Expr("((java.util.List) " + convert(arg, JType.OBJECT)
+                  + ").get(" + slot + ")", JType.OBJECT), type));
+
+    case ID:
+      if (!scope.containsKey(((Core.Id) apply.fn).idPat.name)) {
+        final Applicable applicable =
+            compiler.compileApplicable(cx, apply.fn, apply.arg.type);
+        if (applicable != null) {
+          return genApplicable(applicable(applicable), apply.arg, scope,
+              tail);
+        }
+      }
+      break;
+
+    default:
+      break;
+    }
+    final Expr fn = gen(apply.fn, scope);
+    final String fnCode = "((" + Applicable.class.getName() + ") "
+        + fn.code + ")";
+    return genApplicable(fnCode, apply.arg, scope, tail);
+  }
+
+  /** Generates a call to an {@link Applicable}; if {@code tail}, a tail
+   * call. */
+  private Expr genApplicable(String fnCode, Core.Exp argExp,
+      Map<String, Expr> scope, boolean tail) {
+    final Expr arg = gen(argExp, scope);
+    final String argCode = convert(arg, JType.OBJECT);
+    final String code = tail
+        ? Codes.class.getName() + ".tailApply(" + fnCode + ", env, "
+            + argCode + ")"
+        : fnCode + ".apply(env, " + argCode + ")";
+    return new Expr(code, JType.OBJECT).assignTo(this, JType.OBJECT);
+  }
+
+  /** Generates a call to a built-in function using Java operators, or returns
+   * null if the function and argument types are not supported. */
+  private @Nullable Expr genCall(BuiltIn builtIn, Core.Apply apply,
+      Map<String, Expr> scope) {
+    final Core.Exp arg = apply.arg;
+    switch (builtIn) {
+    case Z_ANDALSO:
+    case Z_ORELSE:
+      final List<Core.Exp> args = ((Core.Tuple) arg).args;
+      final Expr left = gen(args.get(0), scope);
+      final String v = newVar();
+      line("boolean " + v + " = " + convert(left, JType.BOOL) + ";");
+      line("if (" + (builtIn == BuiltIn.Z_ANDALSO ? v : "!" + v) + ") {");
+      ++indent;
+      final Expr right = gen(args.get(1), scope);
+      line(v + " = " + convert(right, JType.BOOL) + ";");
+      --indent;
+      line("}");
+      return new Expr(v, JType.BOOL);
+
+    case Z_LIST:
+      return genTuple(((Core.Tuple) arg).args, scope);
+
+    case NOT:
+      return assign(JType.BOOL, "!" + convert(gen(arg, scope), JType.BOOL));
+
+    case Z_NEGATE_INT:
+      return assign(JType.INT, "-" + convert(gen(arg, scope), JType.INT));
+
+    case Z_NEGATE_REAL:
+      return assign(JType.REAL, "-" + convert(gen(arg, scope), JType.REAL));
+
+    case OP_CARET:
+      // "a ^ b ^ c" becomes one Java string concatenation
+      if (!(arg instanceof Core.Tuple)) {
+        return null;
+      }
+      final List<Core.Exp> operands = new ArrayList<>();
+      ((Core.Tuple) arg).args.forEach(a ->
+          Compiler.addConcatOperands(a, operands));
+      final List<String> strings = new ArrayList<>();
+      for (Core.Exp operand : operands) {
+        strings.add("(String) " + convert(gen(operand, scope), JType.OBJECT));
+      }
+      return assign(JType.OBJECT, String.join(" + ", strings));
+    }
+
+    if (!(arg instanceof Core.Tuple)
+        || ((Core.Tuple) arg).args.size() != 2) {
+      return null;
+    }
+    final Core.Exp arg0 = ((Core.Tuple) arg).args.get(0);
+    final Core.Exp arg1 = ((Core.Tuple) arg).args.get(1);
+    final JType type = JType.of(arg0.type);
+    switch (builtIn) {
+    case Z_PLUS_INT:
+    case Z_PLUS_REAL:
+      return binary(type, arg0, "+", arg1, type, scope);
+    case Z_MINUS_INT:
+    case Z_MINUS_REAL:
+      return binary(type, arg0, "-", arg1, type, scope);
+    case Z_TIMES_INT:
+    case Z_TIMES_REAL:
+      return binary(type, arg0, "*", arg1, type, scope);
+    case Z_DIVIDE_INT:
+    case Z_DIVIDE_REAL:
+      return binary(type, arg0, "/", arg1, type, scope);
+    case OP_DIV:
+      return function(JType.INT, "Math.floorDiv", arg0, arg1, scope);
+    case OP_MOD:
+      return function(JType.INT, "Math.floorMod", arg0, arg1, scope);
+    case OP_EQ:
+    case OP_NE:
+    case OP_LT:
+    case OP_LE:
+    case OP_GT:
+    case OP_GE:
+      return compare(builtIn, type, arg0, arg1, scope);
+    default:
+      return null;
+    }
+  }
+
+  private Expr binary(JType operandType, Core.Exp arg0, String op,
+      Core.Exp arg1, JType type, Map<String, Expr> scope) {
+    if (operandType == JType.OBJECT) {
+      throw new AssertionError(operandType);
+    }
+    final Expr e0 = gen(arg0, scope);
+    final Expr e1 = gen(arg1, scope);
+    return assign(type,
+        convert(e0, operandType) + " " + op + " "
+            + convert(e1, operandType));
+  }
+
+  private Expr function(JType type, String function, Core.Exp arg0,
+      Core.Exp arg1, Map<String, Expr> scope) {
+    final Expr e0 = gen(arg0, scope);
+    final Expr e1 = gen(arg1, scope);
+    return assign(type,
+        function + "(" + convert(e0, type) + ", " + convert(e1, type) + ")");
+  }
+
+  /** Generates a comparison. Semantics are the same as the
+   * {@link Object#equals} and {@link Comparable#compareTo} methods used by
+   * the built-in functions. */
+  private Expr compare(BuiltIn builtIn, JType type, Core.Exp arg0,
+      Core.Exp arg1, Map<String, Expr> scope) {
+    final String op;
+    switch (builtIn) {
+    case OP_EQ:
+      op = "==";
+      break;
+    case OP_NE:
+      op = "!=";
+      break;
+    case OP_LT:
+      op = "<";
+      break;
+    case OP_LE:
+      op = "<=";
+      break;
+    case OP_GT:
+      op = ">";
+      break;
+    default:
+      op = ">=";
+      break;
+    }
+    final String c0 = convert(gen(arg0, scope), type);
+    final String c1 = convert(gen(arg1, scope), type);
+    switch (type) {
+    case INT:
+      return assign(JType.BOOL, c0 + " " + op + " " + c1);
+    case REAL:
+      return assign(JType.BOOL,
+          "Float.compare(" + c0 + ", " + c1 + ") " + op + " 0");
+    case BOOL:
+      return assign(JType.BOOL,
+          "Boolean.compare(" + c0 + ", " + c1 + ") " + op + " 0");
+    default:
+      switch (builtIn) {
+      case OP_EQ:
+        return assign(JType.BOOL, c0 + ".equals(" + c1 + ")");
+      case OP_NE:
+        return assign(JType.BOOL, "!" + c0 + ".equals(" + c1 + ")");
+      default:
+        return assign(JType.BOOL,
+            "((Comparable) " + c0 + ").compareTo(" + c1 + ") " + op + " 0");
+      }
+    }
+  }
+
+  /** Generates a {@code case} expression.
+   *
+   * <p>The generated code has a labeled block for the whole expression and,
+   * within it, a labeled block for each arm. If a pattern does not match, the
+   * code breaks out of the arm's block into the next arm.
+   *
+   * <p>If {@code tail}, the arms are in tail position, and the result is an
+   * object. */
+  private Expr genCase(Core.Case case_, Map<String, Expr> scope,
+      boolean tail) {
+    final Expr e = gen(case_.exp, scope);
+    final JType type = tail ? JType.OBJECT : JType.of(case_.type);
+    final String result = newVar();
+    final String caseLabel = newVar();
+    line(type.javaName + " " + result + " = " + type.defaultValue + ";");
+    line(caseLabel + ": {");
+    ++indent;
+    boolean refutable = true;
+    for (Core.Match match : case_.matchList) {
+      final String armLabel = newVar();
+      line(armLabel + ": {");
+      ++indent;
+      final Map<String, Expr> scope2 = new HashMap<>(scope);
+      refutable = genPat(match.pat, e, armLabel, scope2);
+      final Expr body =
+          tail ? genTail(match.exp, scope2) : gen(match.exp, scope2);
+      line(result + " = " + convert(body, type) + ";");
+      line("break " + caseLabel + ";");
+      --indent;
+      line("}");
+      if (!refutable) {
+        // Later arms are unreachable.
+        break;
+      }
+    }
+    if (refutable) {
+      line("throw new AssertionError(\"no match\");");
+    }
+    --indent;
+    line("}");
+    return new Expr(result, type);
+  }
+
+  /** Generates code that matches a value against a pattern, breaking to
+   * {@code label} if it does not match, and declaring a local variable for
+   * each variable in the pattern.
+   *
+   * @return whether the pattern can fail to match */
+  private boolean genPat(Core.Pat pat, Expr e, String label,
+      Map<String, Expr> scope) {
+    final Core.LiteralPat literalPat;
+    final String list;
+    boolean refutable = false;
+    switch (pat.op) {
+    case ID_PAT:
+      final JType type = JType.of(pat.type);
+      scope.put(((Core.IdPat) pat).name, assign(type, convert(e, type)));
+      return false;
+
+    case WILDCARD_PAT:
+      return false;
+
+    case BOOL_LITERAL_PAT:
+      literalPat = (Core.LiteralPat) pat;
+      line("if (" + convert(e, JType.BOOL) + " != " + literalPat.value
+          + ") break " + label + ";");
+      return true;
+
+    case INT_LITERAL_PAT:
+      literalPat = (Core.LiteralPat) pat;
+      line("if (" + convert(e, JType.INT) + " != "
+          + "(" + ((BigDecimal) literalPat.value).intValue() + ")"
+          + ") break " + label + ";");
+      return true;
+
+    case CHAR_LITERAL_PAT:
+    case STRING_LITERAL_PAT:
+      literalPat = (Core.LiteralPat) pat;
+      line("if (!" + value(literalPat.value) + ".equals("
+          + convert(e, JType.OBJECT) + ")) break " + label + ";");
+      return true;
+
+    case TUPLE_PAT:
+    case RECORD_PAT:
+      final List<Core.Pat> args = pat instanceof Core.TuplePat
+          ? ((Core.TuplePat) pat).args
+          : ((Core.RecordPat) pat).args;
+      list = list(e);
+      for (int i = 0; i < args.size(); i++) {
+        refutable |= genPat(args.get(i),
+            new Expr(list + ".get(" + i + ")", JType.OBJECT), label, scope);
+      }
+      return refutable;
+
+    case LIST_PAT:
+      final List<Core.Pat> listArgs = ((Core.ListPat) pat).args;
+      list = list(e);
+      line("if (" + list + ".size() != " + listArgs.size() + ") break "
+          + label + ";");
+      for (int i = 0; i < listArgs.size(); i++) {
+        genPat(listArgs.get(i),
+            new Expr(list + ".get(" + i + ")", JType.OBJECT), label, scope);
+      }
+      return true;
+
+    case CONS_PAT:
+      final List<Core.Pat> consArgs =
+          ((Core.TuplePat) ((Core.ConPat) pat).pat).args;
+      list = list(e);
+      line("if (" + list + ".isEmpty()) break " + label + ";");
+      genPat(consArgs.get(0), new Expr(list + ".get(0)", JType.OBJECT), label,
+          scope);
+      genPat(consArgs.get(1),
+          new Expr(GeneratedCode.class.getName().replace('$', '.')
+              + ".tail(" + list + ")", JType.OBJECT), label, scope);
+      return true;
+
+    case CON0_PAT:
+      list = list(e);
+      genCon(list, pat, ((Core.Con0Pat) pat).tyCon, label);
+      return true;
+
+    case CON_PAT:
+      final Core.ConPat conPat = (Core.ConPat) pat;
+      list = list(e);
+      genCon(list, pat, conPat.tyCon, label);
+      genPat(conPat.pat, new Expr(list + ".get(1)", JType.OBJECT), label,
+          scope);
+      return true;
+
+    default:
+      // For example, REAL_LITERAL_PAT.
+      throw new UnsupportedException();
+    }
+  }
+
+  /** Generates code that breaks to {@code label} if a data type value was
+   * not created by a given type constructor. Compares the constructor's
+   * ordinal, as {@link Matchers} does. */
+  private void genCon(String list, Core.Pat pat, String tyCon,
+      String label) {
+    line("if (!" + GeneratedCode.class.getName().replace('$', '.')
+        + ".isCon(" + list + ", " + Matchers.ordinal(pat, tyCon) + ", "
+        + value(tyCon) + ")) break " + label + ";");
+  }
+
+  /** Declares a variable that holds a value as a list, and returns the
+   * variable's name. */
+  private String list(Expr e) {
+    final String v = newVar();
+    line("final java.util.List " + v + " = (java.util.List) "
+        + convert(e, JType.OBJECT) + ";");
+    return v;
+  }
+
+  private static Map<String, Expr> plus(Map<String, Expr> scope, String name,
+      Expr expr) {
+    final Map<String, Expr> scope2 = new HashMap<>(scope);
+    scope2.put(name, expr);
+    return scope2;
+  }
+
+  /** Java type of a generated expression. */
+  private enum JType {
+    INT("int", "Integer", "0"),
+    REAL("float", "Float", "0f"),
+    BOOL("boolean", "Boolean", "false"),
+    OBJECT("Object", "Object", "null");
+
+    final String javaName;
+    final String boxName;
+    final String defaultValue;
+
+    JType(String javaName, String boxName, String defaultValue) {
+      this.javaName = javaName;
+      this.boxName = boxName;
+      this.defaultValue = defaultValue;
+    }
+
+    static JType of(Type type) {
+      if (type == PrimitiveType.INT) {
+        return INT;
+      } else if (type == PrimitiveType.REAL) {
+        return REAL;
+      } else if (type == PrimitiveType.BOOL) {
+        return BOOL;
+      } else {
+        return OBJECT;
+      }
+    }
+  }
+
+  /** Generated Java expression and its type. */
+  private static class Expr {
+    final String code;
+    final JType type;
+
+    Expr(String code, JType type) {
+      this.code = requireNonNull(code);
+      this.type = requireNonNull(type);
+    }
+
+    Expr assignTo(CodeGenerator g, JType type) {
+      return g.assign(type, g.convert(this, type));
+    }
+  }
+
+  /** Thrown when an expression cannot be generated. */
+  private static class UnsupportedException extends RuntimeException {
+  }
+
+  /** Base class for generated code.
+   *
+   * <p>Public, and its members are public, because the generated class is
+   * in a different class loader. */
+  public abstract static class GeneratedCode implements Code {
+    private String className;
+    private String source;
+    public Code[] codes;
+    public Applicable[] applicables;
+    public Object[] values;
+
+    void init(String className, String source, Code[] codes,
+        Applicable[] applicables, Object[] values) {
+      this.className = className;
+      this.source = source;
+      this.codes = codes;
+      this.applicables = applicables;
+      this.values = values;
+    }
+
+    /** Returns whether a data type value was created by a type
+     * constructor, given its ordinal (or -1 if not known) and name. */
+    public static boolean isCon(List<?> value, int ordinal, Object tyCon) {
+      final int valueOrdinal = TyConValue.ordinal(value);
+      if (valueOrdinal >= 0 && ordinal >= 0) {
+        return valueOrdinal == ordinal;
+      }
+      return value.get(0).equals(tyCon);
+    }
+
+    /** Returns the tail of a non-empty list. */
+    public static List<Object> tail(List<Object> list) {
+      return PersistentList.tail(list);
+    }
+
+    @Override public String toString() {
+      return source;
+    }
+
+    @Override public Describer describe(Describer describer) {
+      return describer.start("codegen", d -> {
+        d.arg("class", className);
+        for (Code code : codes) {
+          d.arg("", code);
+        }
+      });
+    }
+  }
+}
+
+// End CodeGenerator.java
@@ -19,13 +19,17 @@
 package net.hydromatic.morel.compile;
 
 import net.hydromatic.morel.ast.Core;
+import net.hydromatic.morel.ast.Op;
 import net.hydromatic.morel.ast.Visitor;
+import net.hydromatic.morel.eval.Accumulator;
 import net.hydromatic.morel.eval.Applicable;
 import net.hydromatic.morel.eval.Closure;
 import net.hydromatic.morel.eval.Code;
 import net.hydromatic.morel.eval.Codes;
 import net.hydromatic.morel.eval.Describer;
 import net.hydromatic.morel.eval.EvalEnv;
+import net.hydromatic.morel.eval.EvalEnvs;
+import net.hydromatic.morel.eval.Matchers;
 import net.hydromatic.morel.eval.Session;
 import net.hydromatic.morel.eval.Unit;
 import net.hydromatic.morel.foreign.CalciteFunctions;
@@ -46,9 +50,13 @@ import org.apache.calcite.util.Util;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.function.Supplier;
@@ -68,9 +76,38 @@ public class Compiler {
   protected static final EvalEnv EMPTY_ENV = Codes.emptyEnv();
 
   protected final TypeSystem typeSystem;
+  /** Whether to generate Java code for the bodies of functions; see
+   * {@link CodeGenerator}. */
+  private final boolean codegen;
+  /** Number of threads that may evaluate a {@code from} expression; see
+   * {@link net.hydromatic.morel.eval.Prop#PARALLELISM}. */
+  private final int parallelism;
+  /** Maximum number of rows that {@code order} and {@code group} hold in
+   * memory; see {@link net.hydromatic.morel.eval.Prop#MEMORY_BUDGET}. */
+  private final int memoryBudget;
+  /** Number of classes generated by this compiler; see
+   * {@link CodeGenerator}. Numbering them per compiler, rather than per
+   * JVM, keeps the names in plans reproducible. */
+  private int generatedClassCount;
 
   public Compiler(TypeSystem typeSystem) {
+    this(typeSystem, false);
+  }
+
+  public Compiler(TypeSystem typeSystem, boolean codegen) {
+    this(typeSystem, codegen, 1);
+  }
+
+  public Compiler(TypeSystem typeSystem, boolean codegen, int parallelism) {
+    this(typeSystem, codegen, parallelism, -1);
+  }
+
+  public Compiler(TypeSystem typeSystem, boolean codegen, int parallelism,
+      int memoryBudget) {
     this.typeSystem = requireNonNull(typeSystem, "typeSystem");
+    this.codegen = codegen;
+    this.parallelism = parallelism;
+    this.memoryBudget = memoryBudget;
   }
 
   CompiledStatement compileStatement(Environment env, Core.Decl decl) {
@@ -133,9 +170,17 @@ public class Compiler {
   /** Compilation context. */
   static class Context {
     final Environment env;
+    /** Layout of the evaluation environment in which code compiled in this
+     * context will run, or null if the layout is not known. */
+    final @Nullable Frame frame;
 
     Context(Environment env) {
+      this(env, null);
+    }
+
+    Context(Environment env, @Nullable Frame frame) {
       this.env = env;
+      this.frame = frame;
     }
 
     static Context of(Environment env) {
@@ -143,10 +188,67 @@ public class Compiler {
     }
 
     Context bindAll(Iterable<Binding> bindings) {
-      return of(env.bindAll(bindings));
+      return new Context(env.bindAll(bindings), frame);
+    }
+
+    /** Returns a context whose evaluation environment has the given
+     * layout. */
+    Context withFrame(@Nullable Frame frame) {
+      return frame == this.frame ? this : new Context(env, frame);
+    }
+
+    /** Returns a context that has some more bindings and whose evaluation
+     * environment has an extra frame containing the given names. */
+    Context bindFrame(Iterable<Binding> bindings, List<String> names) {
+      final Context cx = bindAll(bindings);
+      return cx.withFrame(new Frame(names, cx.frame));
+    }
+  }
+
+  /** Compile-time description of a frame of the evaluation environment
+   * (an {@link EvalEnv} that binds one or more variables), and, via
+   * {@link #parent}, of the frames that enclose it.
+   *
+   * <p>If a variable is bound in a frame, the compiler can access it via
+   * {@link Codes#get(String, int, int)}, which reads a slot rather than
+   * searching the environment by name. The layout must match exactly the
+   * frames that are created at run time; if in doubt, a context should have
+   * a null frame, and variables will be looked up by name. */
+  static class Frame {
+    final ImmutableList<String> names;
+    final @Nullable Frame parent;
+
+    Frame(List<String> names, @Nullable Frame parent) {
+      this.names = ImmutableList.copyOf(names);
+      this.parent = parent;
+    }
+
+    /** Pushes a frame for each name, in order. */
+    static @Nullable Frame push(@Nullable Frame frame, List<String> names) {
+      for (String name : names) {
+        frame = new Frame(ImmutableList.of(name), frame);
+      }
+      return frame;
     }
   }
 
+  /** Returns code to read the value of a variable.
+   *
+   * <p>If the variable is bound in a frame whose position is known at
+   * compile time, the code reads its slot directly; otherwise it looks up
+   * the variable by name. */
+  static Code get(Context cx, String name) {
+    int depth = 0;
+    for (Frame frame = cx.frame; frame != null; frame = frame.parent) {
+      final int slot = frame.names.indexOf(name);
+      if (slot >= 0) {
+        return Codes.get(name, depth, slot);
+      }
+      ++depth;
+    }
+    return Codes.get(name);
+  }
+
   public final Code compile(Environment env, Core.Exp expression) {
     return compile(Context.of(env), expression);
   }
@@ -205,15 +307,16 @@ public class Compiler {
       return Codes.constant(literal.unwrap());
 
     case LET:
-      return compileLet(cx, (Core.Let) expression);
+      return compileLet(cx, (Core.Let) expression, false);
 
     case LOCAL:
-      return compileLocal(cx, (Core.Local) expression);
+      return compileLocal(cx, (Core.Local) expression, false);
 
     case FN:
       final Core.Fn fn = (Core.Fn) expression;
-      return compileMatchList(cx,
-          ImmutableList.of(core.match(fn.idPat, fn.exp)));
+      return new MatchCode(
+          ImmutableList.of(
+              compileMatch(cx, core.match(fn.idPat, fn.exp), codegen)));
 
     case CASE:
       final Core.Case case_ = (Core.Case) expression;
@@ -237,7 +340,7 @@ public class Compiler {
       if (binding != null && binding.value instanceof Code) {
         return (Code) binding.value;
       }
-      return Codes.get(id.idPat.name);
+      return get(cx, id.idPat.name);
 
     case TUPLE:
       final Core.Tuple tuple = (Core.Tuple) expression;
@@ -252,6 +355,30 @@ public class Compiler {
     }
   }
 
+  /** Compiles an expression that is in tail position in the body of a
+   * function or the arm of a {@code case}; that is, its value is the value of
+   * the body.
+   *
+   * <p>Calls in tail position become tail calls (see
+   * {@link Codes#tailCall(Code)}), so that recursion through them uses a
+   * constant amount of stack. */
+  private Code compileTail(Context cx, Core.Exp expression) {
+    switch (expression.op) {
+    case LET:
+      return compileLet(cx, (Core.Let) expression, true);
+
+    case LOCAL:
+      return compileLocal(cx, (Core.Local) expression, true);
+
+    case APPLY:
+    case CASE:
+      return Codes.tailCall(compile(cx, expression));
+
+    default:
+      return compile(cx, expression);
+    }
+  }
+
   protected Code compileApply(Context cx, Core.Apply apply) {
     // Is this is a call to a built-in operator?
     switch (apply.fn.op) {
@@ -282,14 +409,24 @@ public class Compiler {
 
   protected Code compileFrom(Context cx, Core.From from) {
     Supplier<Codes.RowSink> rowSinkFactory =
-        createRowSinkFactory(cx, ImmutableList.of(), from.steps,
+        createRowSinkFactory(cx, cx.frame, ImmutableList.of(), from.steps,
             from.type().elementType);
-    return Codes.from(rowSinkFactory);
+    return Codes.from(rowSinkFactory, parallelism);
   }
 
+  /** Creates a factory for the row sinks that implement a list of steps.
+   *
+   * @param cx0 Context in which the first step is compiled
+   * @param fromFrame Layout of the environment in which the {@code from}
+   *   expression is evaluated; the {@code order} and {@code group} steps
+   *   emit rows into an environment that extends it
+   * @param bindings Variables bound by the previous step
+   * @param steps Steps
+   * @param elementType Element type of the result
+   */
   protected Supplier<Codes.RowSink> createRowSinkFactory(Context cx0,
-      ImmutableList<Binding> bindings, List<Core.FromStep> steps,
-      Type elementType) {
+      @Nullable Frame fromFrame, ImmutableList<Binding> bindings,
+      List<Core.FromStep> steps, Type elementType) {
     final Context cx = cx0.bindAll(bindings);
     if (steps.isEmpty()) {
       final List<String> fieldNames =
@@ -298,28 +435,55 @@ public class Compiler {
       final Code code;
       if (fieldNames.size() == 1
           && getOnlyElement(bindings).id.type.equals(elementType)) {
-        code = Codes.get(fieldNames.get(0));
+        code = get(cx, fieldNames.get(0));
       } else {
         code = Codes.getTuple(fieldNames);
       }
       return () -> Codes.collectRowSink(code);
     }
     final Core.FromStep firstStep = steps.get(0);
-    final Supplier<Codes.RowSink> nextFactory =
-        createRowSinkFactory(cx, firstStep.bindings, Util.skip(steps),
-            elementType);
+    final List<Core.FromStep> remainingSteps = Util.skip(steps);
+    final Supplier<Codes.RowSink> nextFactory;
     switch (firstStep.op) {
     case INNER_JOIN:
       final Core.Scan scan = (Core.Scan) firstStep;
-      final Code code = compile(cx, scan.exp);
-      final Code conditionCode = compile(cx, scan.condition);
+      final Code code = compileScanExp(cx, scan.exp);
+      // The variables of the pattern are bound in a new frame, in which the
+      // condition and subsequent steps are evaluated.
+      final Context scanCx =
+          cx.withFrame(new Frame(EvalEnvs.patNames(scan.pat), cx.frame));
+      final Supplier<Codes.RowSink> hashJoinFactory =
+          createHashJoinRowSinkFactory(cx, scanCx, fromFrame, bindings,
+              scan, code, remainingSteps, elementType);
+      if (hashJoinFactory != null) {
+        return hashJoinFactory;
+      }
+      final Code conditionCode =
+          compile(scanCx.bindAll(firstStep.bindings), scan.condition);
+      nextFactory =
+          createRowSinkFactory(scanCx, fromFrame, firstStep.bindings,
+              remainingSteps, elementType);
+      final ImmutableList<Codes.ColumnFilter> conditionFilters =
+          columnFilters(scan.condition);
       return () -> Codes.scanRowSink(firstStep.op, scan.pat, code,
-          conditionCode, nextFactory.get());
+          conditionCode, conditionFilters, nextFactory.get());
 
     case WHERE:
       final Core.Where where = (Core.Where) firstStep;
+      final Supplier<Codes.RowSink> semiJoinFactory =
+          createSemiJoinRowSinkFactory(cx, fromFrame, where, remainingSteps,
+              elementType);
+      if (semiJoinFactory != null) {
+        return semiJoinFactory;
+      }
       final Code filterCode = compile(cx, where.exp);
-      return () -> Codes.whereRowSink(filterCode, nextFactory.get());
+      final ImmutableList<Codes.ColumnFilter> columnFilters =
+          columnFilters(where.exp);
+      nextFactory =
+          createRowSinkFactory(cx, fromFrame, firstStep.bindings,
+              remainingSteps, elementType);
+      return () -> Codes.whereRowSink(filterCode, columnFilters,
+          nextFactory.get());
 
     case YIELD:
       final Core.Yield yield = (Core.Yield) firstStep;
@@ -331,21 +495,36 @@ public class Compiler {
       } else {
         final Core.Tuple tuple = (Core.Tuple) yield.exp;
         final RecordLikeType recordType = tuple.type();
-        final ImmutableSortedMap.Builder<String, Code> mapCodes =
+        final ImmutableSortedMap.Builder<String, Code> mapCodesB =
             ImmutableSortedMap.orderedBy(RecordType.ORDERING);
         Pair.forEach(tuple.args, recordType.argNameTypes().keySet(),
             (exp, name) ->
-                mapCodes.put(name, compile(cx, exp)));
-        return () -> Codes.yieldRowSink(mapCodes.build(), nextFactory.get());
+                mapCodesB.put(name, compile(cx, exp)));
+        final ImmutableSortedMap<String, Code> mapCodes = mapCodesB.build();
+        final Context yieldCx =
+            cx.withFrame(
+                new Frame(ImmutableList.copyOf(mapCodes.keySet()), cx.frame));
+        nextFactory =
+            createRowSinkFactory(yieldCx, fromFrame, firstStep.bindings,
+                remainingSteps, elementType);
+        return () -> Codes.yieldRowSink(mapCodes, nextFactory.get());
       }
 
     case ORDER:
       final Core.Order order = (Core.Order) firstStep;
+      // Sort keys are evaluated as each row arrives. Rows are emitted in a
+      // frame that extends the environment of the "from" expression.
+      final Context orderCx =
+          cx.withFrame(new Frame(bindingNames(bindings), fromFrame));
       final ImmutableList<Pair<Code, Boolean>> codes =
           order.orderItems.stream()
               .map(i -> Pair.of(compile(cx, i.exp), i.direction == DESC))
               .collect(toImmutableList());
-      return () -> Codes.orderRowSink(codes, bindings, nextFactory.get());
+      nextFactory =
+          createRowSinkFactory(orderCx, fromFrame, firstStep.bindings,
+              remainingSteps, elementType);
+      return () -> Codes.orderRowSink(codes, bindings, memoryBudget,
+          nextFactory.get());
 
     case GROUP:
       final Core.Group group = (Core.Group) firstStep;
@@ -354,7 +533,17 @@ public class Compiler {
         groupCodesB.add(compile(cx, exp));
       }
       final ImmutableList<String> names = bindingNames(bindings);
-      final ImmutableList.Builder<Applicable> aggregateCodesB =
+      final ImmutableList<String> outNames = bindingNames(firstStep.bindings);
+      final ImmutableList<String> keyNames =
+          outNames.subList(0, group.groupExps.size());
+      // Aggregate functions are evaluated in an environment that has a frame
+      // for each key; their arguments are evaluated, as each row arrives, in
+      // the environment of the input row.
+      final Context aggregateCx =
+          cx.withFrame(Frame.push(fromFrame, keyNames));
+      final ImmutableList.Builder<Code> argumentCodesB =
+          ImmutableList.builder();
+      final ImmutableList.Builder<Accumulator> accumulatorsB =
           ImmutableList.builder();
       for (Core.Aggregate aggregate : group.aggregates.values()) {
         final Code argumentCode;
@@ -364,31 +553,42 @@ public class Compiler {
               new TreeMap<>(RecordType.ORDERING);
           bindings.forEach(b -> argNameTypes.put(b.id.name, b.id.type));
           argumentType = typeSystem.recordOrScalarType(argNameTypes);
-          argumentCode = null;
+          argumentCode = names.size() == 1
+              ? get(cx, names.get(0))
+              : Codes.getTuple(names);
         } else {
           argumentType = aggregate.argument.type;
           argumentCode = compile(cx, aggregate.argument);
         }
         final Applicable aggregateApplicable =
-            compileApplicable(cx, aggregate.aggregate,
+            compileApplicable(aggregateCx, aggregate.aggregate,
                 typeSystem.listType(argumentType));
-        final Code aggregateCode;
+        final Accumulator accumulator;
         if (aggregateApplicable == null) {
-          aggregateCode = compile(cx, aggregate.aggregate);
+          accumulator =
+              Codes.bufferingAccumulator(
+                  compile(aggregateCx, aggregate.aggregate));
         } else {
-          aggregateCode = aggregateApplicable.asCode();
+          final Accumulator builtInAccumulator =
+              Codes.accumulator(aggregateApplicable);
+          accumulator = builtInAccumulator != null
+              ? builtInAccumulator
+              : Codes.bufferingAccumulator(aggregateApplicable.asCode());
         }
-        aggregateCodesB.add(
-            Codes.aggregate(cx.env, aggregateCode, names, argumentCode));
+        argumentCodesB.add(argumentCode);
+        accumulatorsB.add(accumulator);
       }
       final ImmutableList<Code> groupCodes = groupCodesB.build();
       final Code keyCode = Codes.tuple(groupCodes);
-      final ImmutableList<Applicable> aggregateCodes = aggregateCodesB.build();
-      final ImmutableList<String> outNames = bindingNames(firstStep.bindings);
-      final ImmutableList<String> keyNames =
-          outNames.subList(0, group.groupExps.size());
-      return () -> Codes.groupRowSink(keyCode, aggregateCodes, names, keyNames,
-          outNames, nextFactory.get());
+      final ImmutableList<Code> argumentCodes = argumentCodesB.build();
+      final ImmutableList<Accumulator> accumulators = accumulatorsB.build();
+      // Each output variable is bound in its own frame.
+      final Context groupCx = cx.withFrame(Frame.push(fromFrame, outNames));
+      nextFactory =
+          createRowSinkFactory(groupCx, fromFrame, firstStep.bindings,
+              remainingSteps, elementType);
+      return () -> Codes.groupRowSink(keyCode, argumentCodes, accumulators,
+          keyNames, outNames, memoryBudget, nextFactory.get());
 
     default:
       throw new AssertionError("unknown step type " + firstStep.op);
@@ -401,9 +601,494 @@ public class Compiler {
         .collect(ImmutableList.toImmutableList());
   }
 
+  /** Creates a factory for a row sink that joins a scan to the previous
+   * steps using a hash table, or returns null if the scan is not an
+   * equi-join.
+   *
+   * <p>The scan is an equi-join if its expression does not depend on the
+   * previous steps, and its condition (or the condition of an immediately
+   * following {@code where}) contains a conjunct of the form
+   * {@code inner = outer}, where {@code inner} references only the
+   * variables of the scan, and {@code outer} references only the variables
+   * of the previous steps. Other conjuncts are evaluated for each matching
+   * pair of rows.
+   *
+   * <p>Keys are evaluated for every row, but a conjunct is evaluated only if
+   * the conjuncts before it are true. So that a join raises an exception
+   * only if the original condition would, a conjunct is a key only if no
+   * earlier conjunct can fail, and if the conjunct itself cannot fail (see
+   * {@link Hoister#isSafe}) or is the first conjunct. */
+  private @Nullable Supplier<Codes.RowSink> createHashJoinRowSinkFactory(
+      Context cx, Context scanCx, @Nullable Frame fromFrame,
+      ImmutableList<Binding> bindings,
+      Core.Scan scan, Code code, List<Core.FromStep> remainingSteps,
+      Type elementType) {
+    if (bindings.isEmpty()) {
+      return null; // first scan; there is nothing to join to
+    }
+    final Set<Core.IdPat> outerVars = new HashSet<>();
+    bindings.forEach(b -> outerVars.add(b.id));
+    if (!Collections.disjoint(references(scan.exp), outerVars)) {
+      return null; // correlated scan
+    }
+    final Set<Core.IdPat> innerVars = new HashSet<>();
+    scan.bindings.forEach(b -> innerVars.add(b.id));
+    innerVars.removeAll(outerVars);
+
+    final List<Core.Exp> innerKeys = new ArrayList<>();
+    final List<Core.Exp> outerKeys = new ArrayList<>();
+    final List<Core.Exp> conditions = new ArrayList<>();
+    final List<Core.Exp> whereConditions = new ArrayList<>();
+    final List<Core.Exp> conjuncts =
+        new ArrayList<>(conjunctions(scan.condition));
+    final int scanConjunctCount = conjuncts.size();
+    final boolean where =
+        !remainingSteps.isEmpty() && remainingSteps.get(0).op == Op.WHERE;
+    if (where) {
+      conjuncts.addAll(conjunctions(((Core.Where) remainingSteps.get(0)).exp));
+    }
+    boolean canFail = false;
+    for (int i = 0; i < conjuncts.size(); i++) {
+      final Core.Exp e = conjuncts.get(i);
+      final boolean safe = Hoister.isSafe(e);
+      if (!canFail
+          && (safe || i == 0)
+          && equiJoinKey(e, innerVars, outerVars, innerKeys, outerKeys)) {
+        continue;
+      }
+      (i < scanConjunctCount ? conditions : whereConditions).add(e);
+      canFail |= !safe;
+    }
+    if (innerKeys.isEmpty()) {
+      return null;
+    }
+
+    final Context innerCx = scanCx.bindAll(scan.bindings);
+    final Code innerKeyCode = compileKey(innerCx, innerKeys);
+    final Code outerKeyCode = compileKey(cx, outerKeys);
+    final Code conditionCode = compileConjunctions(innerCx, conditions);
+    final Supplier<Codes.RowSink> nextFactory;
+    if (!where) {
+      nextFactory =
+          createRowSinkFactory(scanCx, fromFrame, scan.bindings,
+              remainingSteps, elementType);
+    } else {
+      // Skip the 'where' step, and evaluate its remaining conjuncts (if any)
+      // in a new 'where' step.
+      final List<Core.FromStep> stepsAfterWhere = Util.skip(remainingSteps);
+      final Supplier<Codes.RowSink> factory =
+          createRowSinkFactory(scanCx, fromFrame, scan.bindings,
+              stepsAfterWhere, elementType);
+      if (whereConditions.isEmpty()) {
+        nextFactory = factory;
+      } else {
+        final Code filterCode =
+            compileConjunctions(innerCx, whereConditions);
+        nextFactory = () -> Codes.whereRowSink(filterCode, factory.get());
+      }
+    }
+    return () -> Codes.hashJoinRowSink(scan.op, scan.pat, code, innerKeyCode,
+        outerKeyCode, conditionCode, nextFactory.get());
+  }
+
+  /** Creates a factory for the row sinks that implement a {@code where}
+   * step and the steps that follow it, if any of the {@code where} step's
+   * conjuncts is a semi-join or anti-join (see {@link #semiJoin});
+   * otherwise returns null.
+   *
+   * <p>Each semi-join becomes a {@link Codes#semiJoinRowSink}, and each
+   * run of other conjuncts becomes a {@code where}; they are evaluated in
+   * their original order. */
+  private @Nullable Supplier<Codes.RowSink> createSemiJoinRowSinkFactory(
+      Context cx, @Nullable Frame fromFrame, Core.Where where,
+      List<Core.FromStep> remainingSteps, Type elementType) {
+    final Set<Core.IdPat> rowVars = new HashSet<>();
+    where.bindings.forEach(b -> rowVars.add(b.id));
+    final List<Core.Exp> conjuncts = conjunctions(where.exp);
+    final List<SemiJoin> semiJoins = new ArrayList<>();
+    for (Core.Exp conjunct : conjuncts) {
+      semiJoins.add(semiJoin(conjunct, rowVars));
+    }
+    if (semiJoins.stream().allMatch(Objects::isNull)) {
+      return null;
+    }
+    Supplier<Codes.RowSink> factory =
+        createRowSinkFactory(cx, fromFrame, where.bindings, remainingSteps,
+            elementType);
+    final List<Core.Exp> conditions = new ArrayList<>();
+    for (int i = conjuncts.size() - 1; i >= 0; i--) {
+      final SemiJoin semiJoin = semiJoins.get(i);
+      if (semiJoin == null) {
+        conditions.add(0, conjuncts.get(i));
+        continue;
+      }
+      factory = whereFactory(cx, conditions, factory);
+      conditions.clear();
+      final Code keyCode =
+          semiJoin.key == null ? null : compile(cx, semiJoin.key);
+      final Code collectionCode = compile(cx, semiJoin.collection);
+      final Supplier<Codes.RowSink> nextFactory = factory;
+      factory = () -> Codes.semiJoinRowSink(keyCode, collectionCode,
+          semiJoin.anti, nextFactory.get());
+    }
+    return whereFactory(cx, conditions, factory);
+  }
+
+  /** Returns a factory for a {@code where} row sink that evaluates a list
+   * of conditions, followed by the row sinks created by a given factory;
+   * or that factory, if the list is empty. */
+  private Supplier<Codes.RowSink> whereFactory(Context cx,
+      List<Core.Exp> conditions, Supplier<Codes.RowSink> factory) {
+    if (conditions.isEmpty()) {
+      return factory;
+    }
+    final Code filterCode = compileConjunctions(cx, conditions);
+    final ImmutableList<Codes.ColumnFilter> columnFilters =
+        columnFilters(conditions);
+    return () -> Codes.whereRowSink(filterCode, columnFilters, factory.get());
+  }
+
+  /** Converts a condition into a semi-join or anti-join, or returns null.
+   *
+   * <p>A semi-join is a condition that tests whether a key, computed from
+   * the current row, is in a collection that does not depend on the current
+   * row (and can therefore be evaluated once, and put in a hash set):
+   *
+   * <ul>
+   * <li>{@code key elem collection}, {@code key notElem collection},
+   *   {@code not (key elem collection)};
+   * <li>{@code exists collection}, {@code notExists collection}, where the
+   *   collection does not depend on the current row; the semi-join has no
+   *   key, and tests only whether the collection is empty;
+   * <li>{@code exists (from ... where inner = outer ...)} and the same with
+   *   {@code notExists}, where {@code outer} is an expression on the
+   *   current row, and nothing else in the {@code from} depends on the
+   *   current row; this is equivalent to
+   *   {@code outer elem (from ... yield inner)}.
+   * </ul>
+   *
+   * @param exp Condition
+   * @param rowVars Variables of the current row
+   */
+  private @Nullable SemiJoin semiJoin(Core.Exp exp, Set<Core.IdPat> rowVars) {
+    if (isCallTo(exp, BuiltIn.NOT)) {
+      final SemiJoin semiJoin = semiJoin(((Core.Apply) exp).arg, rowVars);
+      return semiJoin == null ? null
+          : new SemiJoin(semiJoin.key, semiJoin.collection, !semiJoin.anti);
+    }
+    if (isCallTo(exp, BuiltIn.OP_ELEM) || isCallTo(exp, BuiltIn.OP_NOT_ELEM)) {
+      final Core.Tuple tuple = (Core.Tuple) ((Core.Apply) exp).arg;
+      final Core.Exp collection = tuple.args.get(1);
+      if (!Collections.disjoint(references(collection), rowVars)) {
+        return null;
+      }
+      return new SemiJoin(tuple.args.get(0), collection,
+          isCallTo(exp, BuiltIn.OP_NOT_ELEM));
+    }
+    if (isCallTo(exp, BuiltIn.RELATIONAL_EXISTS)
+        || isCallTo(exp, BuiltIn.RELATIONAL_NOT_EXISTS)) {
+      final boolean anti = isCallTo(exp, BuiltIn.RELATIONAL_NOT_EXISTS);
+      final Core.Exp collection = ((Core.Apply) exp).arg;
+      if (Collections.disjoint(references(collection), rowVars)) {
+        return new SemiJoin(null, collection, anti);
+      }
+      if (collection.op == Op.FROM) {
+        return decorrelate((Core.From) collection, rowVars, anti);
+      }
+    }
+    return null;
+  }
+
+  /** Converts {@code exists (from ... where inner = outer ...)} into a
+   * semi-join whose key is {@code outer} and whose collection is
+   * {@code from ... yield inner}; or returns null.
+   *
+   * <p>The {@code from} must consist of one or more scans that do not
+   * depend on the current row, a {@code where}, and zero or more
+   * {@code yield} steps. The {@code where} may have several conjuncts of
+   * the form {@code inner = outer} (they become a composite key), and other
+   * conjuncts that do not depend on the current row.
+   *
+   * <p>The other conjuncts become {@code where} steps before the keys, and
+   * all are evaluated for every inner row, whereas the original condition
+   * evaluates a conjunct only if the conjuncts before it are true. So that
+   * the semi-join raises an exception only if the original would, the
+   * other conjuncts must not be able to fail (see {@link Hoister#isSafe}),
+   * and each key must not be able to fail unless it is the first
+   * conjunct. */
+  private @Nullable SemiJoin decorrelate(Core.From from,
+      Set<Core.IdPat> rowVars, boolean anti) {
+    int w = 0;
+    while (w < from.steps.size() && from.steps.get(w).op == Op.INNER_JOIN) {
+      final Core.Scan scan = (Core.Scan) from.steps.get(w);
+      if (!Collections.disjoint(references(scan.exp), rowVars)
+          || !Collections.disjoint(references(scan.condition), rowVars)) {
+        return null;
+      }
+      ++w;
+    }
+    if (w == 0
+        || w == from.steps.size()
+        || from.steps.get(w).op != Op.WHERE
+        || !Util.skip(from.steps, w + 1).stream()
+            .allMatch(step -> step.op == Op.YIELD)) {
+      return null;
+    }
+    final Core.Where where = (Core.Where) from.steps.get(w);
+    final Set<Core.IdPat> innerVars = new HashSet<>();
+    where.bindings.forEach(b -> innerVars.add(b.id));
+    final List<Core.Exp> innerKeys = new ArrayList<>();
+    final List<Core.Exp> outerKeys = new ArrayList<>();
+    final List<Core.FromStep> steps = new ArrayList<>(from.steps.subList(0, w));
+    final List<Core.Exp> conjuncts = conjunctions(where.exp);
+    for (int i = 0; i < conjuncts.size(); i++) {
+      final Core.Exp e = conjuncts.get(i);
+      final boolean safe = Hoister.isSafe(e);
+      if (Collections.disjoint(references(e), rowVars)) {
+        if (!safe) {
+          return null;
+        }
+        steps.add(core.where(where.bindings, e));
+      } else if (!safe && i > 0
+          || !equiJoinKey(e, innerVars, rowVars, innerKeys, outerKeys)) {
+        return null;
+      }
+    }
+    steps.add(core.yield_(typeSystem, key(innerKeys)));
+    return new SemiJoin(key(outerKeys), core.from(typeSystem, steps), anti);
+  }
+
+  /** Combines a list of key expressions into a single key; a composite key
+   * is a tuple. */
+  private Core.Exp key(List<Core.Exp> keys) {
+    return keys.size() == 1
+        ? keys.get(0)
+        : core.tuple(typeSystem, null, keys);
+  }
+
+  /** Returns whether an expression is of the form {@code inner = outer} (or
+   * {@code outer = inner}), and if so, adds its arguments to the lists of
+   * keys. */
+  private static boolean equiJoinKey(Core.Exp exp,
+      Set<Core.IdPat> innerVars, Set<Core.IdPat> outerVars,
+      List<Core.Exp> innerKeys, List<Core.Exp> outerKeys) {
+    if (!isCallTo(exp, BuiltIn.OP_EQ)) {
+      return false;
+    }
+    final Core.Apply apply = (Core.Apply) exp;
+    if (!(apply.arg instanceof Core.Tuple)) {
+      return false;
+    }
+    final List<Core.Exp> args = ((Core.Tuple) apply.arg).args;
+    final Set<Core.IdPat> refs0 = references(args.get(0));
+    final Set<Core.IdPat> refs1 = references(args.get(1));
+    if (isKey(refs0, innerVars, outerVars)
+        && isKey(refs1, outerVars, innerVars)) {
+      innerKeys.add(args.get(0));
+      outerKeys.add(args.get(1));
+      return true;
+    }
+    if (isKey(refs1, innerVars, outerVars)
+        && isKey(refs0, outerVars, innerVars)) {
+      innerKeys.add(args.get(1));
+      outerKeys.add(args.get(0));
+      return true;
+    }
+    return false;
+  }
+
+  /** Returns whether a set of variables contains at least one of the
+   * required variables and none of the forbidden variables. */
+  private static boolean isKey(Set<Core.IdPat> refs,
+      Set<Core.IdPat> required, Set<Core.IdPat> forbidden) {
+    return !Collections.disjoint(refs, required)
+        && Collections.disjoint(refs, forbidden);
+  }
+
+  /** Returns whether an expression is a call to a given built-in function. */
+  private static boolean isCallTo(Core.Exp exp, BuiltIn builtIn) {
+    return exp.op == Op.APPLY
+        && ((Core.Apply) exp).fn.op == Op.FN_LITERAL
+        && ((Core.Literal) ((Core.Apply) exp).fn).value == builtIn;
+  }
+
+  /** Splits a boolean expression into a list of expressions that are
+   * combined using {@code andalso}. Returns an empty list if the expression
+   * is {@code true}. */
+  static List<Core.Exp> conjunctions(Core.Exp exp) {
+    final List<Core.Exp> list = new ArrayList<>();
+    new Object() {
+      void add(Core.Exp e) {
+        if (isCallTo(e, BuiltIn.Z_ANDALSO)) {
+          ((Core.Tuple) ((Core.Apply) e).arg).args.forEach(this::add);
+        } else if (e.op != Op.BOOL_LITERAL
+            || !Boolean.TRUE.equals(((Core.Literal) e).value)) {
+          list.add(e);
+        }
+      }
+    }.add(exp);
+    return list;
+  }
+
+  /** Compiles the collection of a scan. If it is a call to {@code union},
+   * {@code except} or {@code intersect}, the scan can read its elements
+   * without first copying them into a list. */
+  private Code compileScanExp(Context cx, Core.Exp exp) {
+    final Code code = compile(cx, exp);
+    for (BuiltIn builtIn : SET_OPS) {
+      if (isCallTo(exp, builtIn)
+          && ((Core.Apply) exp).arg.op == Op.TUPLE) {
+        final Core.Tuple tuple = (Core.Tuple) ((Core.Apply) exp).arg;
+        return Codes.setOpScan(builtIn, compile(cx, tuple.args.get(0)),
+            compile(cx, tuple.args.get(1)), code);
+      }
+    }
+    return code;
+  }
+
+  private static final List<BuiltIn> SET_OPS =
+      ImmutableList.of(BuiltIn.OP_UNION, BuiltIn.OP_EXCEPT,
+          BuiltIn.OP_INTERSECT);
+
+  /** Converts a condition to a list of column filters, one per conjunct,
+   * or returns null if any conjunct is not of the form
+   * "column op constant". */
+  private static @Nullable ImmutableList<Codes.ColumnFilter> columnFilters(
+      Core.Exp condition) {
+    return columnFilters(conjunctions(condition));
+  }
+
+  private static @Nullable ImmutableList<Codes.ColumnFilter> columnFilters(
+      List<Core.Exp> conditions) {
+    final ImmutableList.Builder<Codes.ColumnFilter> filters =
+        ImmutableList.builder();
+    for (Core.Exp e : conditions) {
+      final Codes.ColumnFilter filter = columnFilter(e);
+      if (filter == null) {
+        return null;
+      }
+      filters.add(filter);
+    }
+    return filters.build();
+  }
+
+  /** Converts an expression of the form "column op constant" or "constant
+   * op column" (where the column is a variable or a field of a variable,
+   * and the operator is a comparison), or "column" (where the column is
+   * of type {@code bool}) to a column filter; otherwise returns null. */
+  private static @Nullable Codes.ColumnFilter columnFilter(Core.Exp exp) {
+    if (exp.type == PrimitiveType.BOOL && column(exp) != null) {
+      return columnFilter(exp, BuiltIn.OP_EQ, core.boolLiteral(true));
+    }
+    for (BuiltIn builtIn : COMPARISONS) {
+      if (isCallTo(exp, builtIn)) {
+        final Core.Tuple tuple = (Core.Tuple) ((Core.Apply) exp).arg;
+        final Codes.ColumnFilter filter =
+            columnFilter(tuple.args.get(0), builtIn, tuple.args.get(1));
+        if (filter != null) {
+          return filter;
+        }
+        return columnFilter(tuple.args.get(1), reverse(builtIn),
+            tuple.args.get(0));
+      }
+    }
+    return null;
+  }
+
+  private static @Nullable Codes.ColumnFilter columnFilter(Core.Exp left,
+      BuiltIn builtIn, Core.Exp right) {
+    final Pair<Core.IdPat, Integer> column = column(left);
+    if (column == null) {
+      return null;
+    }
+    final Object constant;
+    if (left.type == PrimitiveType.INT && right.op == Op.INT_LITERAL) {
+      constant = ((BigDecimal) ((Core.Literal) right).value).intValue();
+    } else if (left.type == PrimitiveType.REAL
+        && right.op == Op.REAL_LITERAL) {
+      constant = ((BigDecimal) ((Core.Literal) right).value).floatValue();
+    } else if (left.type == PrimitiveType.BOOL
+        && right.op == Op.BOOL_LITERAL
+        && (builtIn == BuiltIn.OP_EQ || builtIn == BuiltIn.OP_NE)) {
+      constant = ((Core.Literal) right).value;
+    } else {
+      return null;
+    }
+    return Codes.columnFilter(column.left, column.right, builtIn, constant);
+  }
+
+  /** If an expression is a variable, or a field of a variable, returns the
+   * variable and the field ordinal (or -1); otherwise returns null. */
+  private static @Nullable Pair<Core.IdPat, Integer> column(Core.Exp exp) {
+    if (exp.op == Op.ID) {
+      return Pair.of(((Core.Id) exp).idPat, -1);
+    }
+    if (exp.op == Op.APPLY
+        && ((Core.Apply) exp).fn.op == Op.RECORD_SELECTOR
+        && ((Core.Apply) exp).arg.op == Op.ID) {
+      final Core.Apply apply = (Core.Apply) exp;
+      return Pair.of(((Core.Id) apply.arg).idPat,
+          ((Core.RecordSelector) apply.fn).slot);
+    }
+    return null;
+  }
+
+  private static final List<BuiltIn> COMPARISONS =
+      ImmutableList.of(BuiltIn.OP_EQ, BuiltIn.OP_NE, BuiltIn.OP_LT,
+          BuiltIn.OP_LE, BuiltIn.OP_GT, BuiltIn.OP_GE);
+
+  /** Returns the comparison that is equivalent to a given comparison with
+   * its arguments swapped; for example, "a < b" is equivalent to
+   * "b > a". */
+  private static BuiltIn reverse(BuiltIn builtIn) {
+    switch (builtIn) {
+    case OP_LT:
+      return BuiltIn.OP_GT;
+    case OP_LE:
+      return BuiltIn.OP_GE;
+    case OP_GT:
+      return BuiltIn.OP_LT;
+    case OP_GE:
+      return BuiltIn.OP_LE;
+    default:
+      return builtIn;
+    }
+  }
+
+  /** Returns the variables referenced by an expression. */
+  static Set<Core.IdPat> references(Core.Exp exp) {
+    final Set<Core.IdPat> refs = new HashSet<>();
+    exp.accept(
+        new Visitor() {
+          @Override protected void visit(Core.Id id) {
+            refs.add(id.idPat);
+          }
+        });
+    return refs;
+  }
+
+  /** Compiles a list of key expressions to a single key; a composite key is
+   * a tuple. */
+  private Code compileKey(Context cx, List<Core.Exp> keys) {
+    if (keys.size() == 1) {
+      return compile(cx, keys.get(0));
+    }
+    return Codes.tuple(compileArgs(cx, keys));
+  }
+
+  /** Compiles a list of conditions, combining them using {@code andalso}. */
+  private Code compileConjunctions(Context cx, List<Core.Exp> conditions) {
+    Code code = null;
+    for (Core.Exp condition : conditions) {
+      final Code c = compile(cx, condition);
+      code = code == null ? c : Codes.andAlso(code, c);
+    }
+    return code == null ? Codes.constant(true) : code;
+  }
+
   /** Compiles a function value to an {@link Applicable}, if possible, or
    * returns null. */
-  private Applicable compileApplicable(Context cx, Core.Exp fn, Type argType) {
+  Applicable compileApplicable(Context cx, Core.Exp fn, Type argType) {
     switch (fn.op) {
     case FN_LITERAL:
       final BuiltIn builtIn = (BuiltIn) ((Core.Literal) fn).value;
@@ -460,12 +1145,13 @@ public class Compiler {
     return null;
   }
 
-  private Code compileLet(Context cx, Core.Let let) {
+  private Code compileLet(Context cx, Core.Let let, boolean tail) {
     final List<Code> matchCodes = new ArrayList<>();
     final List<Binding> bindings = new ArrayList<>();
     compileValDecl(cx, let.decl, matchCodes, bindings, null);
-    Context cx2 = cx.bindAll(bindings);
-    final Code resultCode = compile(cx2, let.exp);
+    Context cx2 = cx.bindFrame(bindings, EvalEnvs.patNames(let.decl.pat));
+    final Code resultCode =
+        tail ? compileTail(cx2, let.exp) : compile(cx2, let.exp);
     return finishCompileLet(cx2, matchCodes, resultCode, let.type);
   }
 
@@ -474,11 +1160,11 @@ public class Compiler {
     return Codes.let(matchCodes, resultCode);
   }
 
-  private Code compileLocal(Context cx, Core.Local local) {
+  private Code compileLocal(Context cx, Core.Local local, boolean tail) {
     final List<Binding> bindings = new ArrayList<>();
     compileDatatypeDecl(ImmutableList.of(local.dataType), bindings, null);
     Context cx2 = cx.bindAll(bindings);
-    return compile(cx2, local.exp);
+    return tail ? compileTail(cx2, local.exp) : compile(cx2, local.exp);
   }
 
   void compileDecl(Context cx, Core.Decl decl, List<Code> matchCodes,
@@ -533,13 +1219,104 @@ public class Compiler {
     case Z_LIST:
       argCodes = compileArgs(cx, ((Core.Tuple) arg).args);
       return Codes.list(argCodes);
-    default:
-      final Object o = Codes.BUILT_IN_VALUES.get(builtIn);
-      if (o instanceof Applicable) {
-        final Code argCode = compile(cx, arg);
-        return Codes.apply((Applicable) o, argCode);
+    case Z_NEGATE_INT:
+      return Codes.negateInt(compile(cx, arg));
+    case Z_NEGATE_REAL:
+      return Codes.negateReal(compile(cx, arg));
+    case OP_CARET:
+      // "a ^ b ^ c" is "(a ^ b) ^ c"; concatenate the operands in one go,
+      // rather than creating a string for each "^".
+      if (arg instanceof Core.Tuple) {
+        final List<Core.Exp> operands = new ArrayList<>();
+        ((Core.Tuple) arg).args.forEach(a -> addConcatOperands(a, operands));
+        return Codes.concat(compileArgs(cx, operands));
+      }
+      break;
+    case STRING_CONCAT:
+      // "String.concat [a, b ^ c]" is "a ^ b ^ c"
+      if (isCallTo(arg, BuiltIn.Z_LIST)
+          && ((Core.Apply) arg).arg instanceof Core.Tuple) {
+        final List<Core.Exp> operands = new ArrayList<>();
+        ((Core.Tuple) ((Core.Apply) arg).arg).args.forEach(a ->
+            addConcatOperands(a, operands));
+        return Codes.concat(compileArgs(cx, operands));
+      }
+      break;
+    }
+    final Object o = Codes.BUILT_IN_VALUES.get(builtIn);
+    if (o instanceof Applicable) {
+      final Code code = compilePrimitiveCall(cx, builtIn, arg);
+      if (code != null) {
+        return code;
       }
-      throw new AssertionError("unknown " + builtIn);
+      final Code argCode = compile(cx, arg);
+      return Codes.apply((Applicable) o, argCode);
+    }
+    throw new AssertionError("unknown " + builtIn);
+  }
+
+  /** Adds the operands of a string expression to a list. If the expression
+   * is a call to {@code ^}, adds the operands of each side; otherwise adds
+   * the expression. */
+  static void addConcatOperands(Core.Exp exp, List<Core.Exp> operands) {
+    if (isCallTo(exp, BuiltIn.OP_CARET)
+        && ((Core.Apply) exp).arg instanceof Core.Tuple) {
+      ((Core.Tuple) ((Core.Apply) exp).arg).args.forEach(arg ->
+          addConcatOperands(arg, operands));
+    } else {
+      operands.add(exp);
+    }
+  }
+
+  /** Compiles a call to an arithmetic or comparison operator whose
+   * arguments are a tuple of two {@code int} or {@code real} values;
+   * returns null if the call is not of that form.
+   *
+   * <p>The resulting code does not construct the tuple, and passes
+   * intermediate results between arithmetic operators without boxing. */
+  private @Nullable Code compilePrimitiveCall(Context cx, BuiltIn builtIn,
+      Core.Exp arg) {
+    if (!(arg instanceof Core.Tuple)
+        || ((Core.Tuple) arg).args.size() != 2) {
+      return null;
+    }
+    final List<Core.Exp> args = ((Core.Tuple) arg).args;
+    final Type type = args.get(0).type;
+    switch (builtIn) {
+    case Z_PLUS_INT:
+    case Z_MINUS_INT:
+    case Z_TIMES_INT:
+    case Z_DIVIDE_INT:
+    case OP_DIV:
+    case OP_MOD:
+      if (type != PrimitiveType.INT) {
+        return null;
+      }
+      return Codes.intArithmetic(builtIn, compile(cx, args.get(0)),
+          compile(cx, args.get(1)));
+    case Z_PLUS_REAL:
+    case Z_MINUS_REAL:
+    case Z_TIMES_REAL:
+    case Z_DIVIDE_REAL:
+      return Codes.realArithmetic(builtIn, compile(cx, args.get(0)),
+          compile(cx, args.get(1)));
+    case OP_EQ:
+    case OP_NE:
+    case OP_LT:
+    case OP_LE:
+    case OP_GT:
+    case OP_GE:
+      if (type == PrimitiveType.INT) {
+        return Codes.intComparison(builtIn, compile(cx, args.get(0)),
+            compile(cx, args.get(1)));
+      }
+      if (type == PrimitiveType.REAL) {
+        return Codes.realComparison(builtIn, compile(cx, args.get(0)),
+            compile(cx, args.get(1)));
+      }
+      return null;
+    default:
+      return null;
     }
   }
 
@@ -554,15 +1331,36 @@ public class Compiler {
     @SuppressWarnings("UnstableApiUsage")
     final ImmutableList<Pair<Core.Pat, Code>> patCodes =
         matchList.stream()
-            .map(match -> compileMatch(cx, match))
+            .map(match -> compileMatch(cx, match, false))
             .collect(ImmutableList.toImmutableList());
     return new MatchCode(patCodes);
   }
 
-  private Pair<Core.Pat, Code> compileMatch(Context cx, Core.Match match) {
+  /** Compiles a match.
+   *
+   * @param cx Compile context
+   * @param match Match
+   * @param generate Whether to try to generate Java code for the body
+   * @return Pattern and code for the body
+   */
+  private Pair<Core.Pat, Code> compileMatch(Context cx, Core.Match match,
+      boolean generate) {
     final List<Binding> bindings = new ArrayList<>();
     Compiles.bindPattern(typeSystem, bindings, match.pat);
-    final Code code = compile(cx.bindAll(bindings), match.exp);
+    // When a closure binds a pattern, it creates a frame, unless the pattern
+    // has no variables.
+    final List<String> names = EvalEnvs.patNames(match.pat);
+    final Context cx2 = names.isEmpty()
+        ? cx.bindAll(bindings)
+        : cx.bindFrame(bindings, names);
+    if (generate) {
+      final Code code = CodeGenerator.generate(this, cx2, match.exp,
+          "MorelFn" + generatedClassCount++);
+      if (code != null) {
+        return Pair.of(match.pat, code);
+      }
+    }
+    final Code code = compileTail(cx2, match.exp);
     return Pair.of(match.pat, code);
   }
 
@@ -586,7 +1384,13 @@ public class Compiler {
             }
           });
     }
-    final Context cx1 = cx.bindAll(bindings);
+    // A recursive reference evaluates the definition, via a LinkCode, in the
+    // environment of the reference, so we do not know the layout of the
+    // environment that a recursive function will capture. Variables bound
+    // inside the function still have known slots.
+    final Context cx1 = valDecl.rec
+        ? cx.bindAll(bindings).withFrame(null)
+        : cx.bindAll(bindings);
     // Using 'compileArg' rather than 'compile' encourages CalciteCompiler
     // to use a pure Calcite implementation if possible, and has no effect
     // in the basic Compiler.
@@ -663,9 +1467,11 @@ public class Compiler {
   /** Code that implements {@link Compiler#compileMatchList(Context, List)}. */
   private static class MatchCode implements Code {
     private final ImmutableList<Pair<Core.Pat, Code>> patCodes;
+    private final Matchers.MatchTree matchTree;
 
     MatchCode(ImmutableList<Pair<Core.Pat, Code>> patCodes) {
       this.patCodes = patCodes;
+      this.matchTree = Closure.matchTree(patCodes);
     }
 
     @Override public Describer describe(Describer describer) {
@@ -675,7 +1481,23 @@ public class Compiler {
     }
 
     @Override public Object eval(EvalEnv evalEnv) {
-      return new Closure(evalEnv, patCodes);
+      return new Closure(evalEnv, patCodes, matchTree);
+    }
+  }
+
+  /** A condition that can be evaluated as a semi-join or anti-join; see
+   * {@link #semiJoin}. */
+  private static class SemiJoin {
+    /** Key, or null if the condition tests only whether the collection is
+     * empty. */
+    final @Nullable Core.Exp key;
+    final Core.Exp collection;
+    final boolean anti;
+
+    SemiJoin(@Nullable Core.Exp key, Core.Exp collection, boolean anti) {
+      this.key = key;
+      this.collection = requireNonNull(collection);
+      this.anti = anti;
     }
   }
 }
@@ -91,6 +91,14 @@ public abstract class Compiles {
       coreDecl = coreDecl0.accept(inliner);
     } else {
       // Inline few times, or until we reach fixed point, whichever is sooner.
+      // After each pass, if property "relationalize" is set, convert calls
+      // to list functions into "from" expressions; otherwise, unless in
+      // hybrid mode, fuse chains of list functions that inlining has
+      // revealed.
+      final Relationalizer fuser =
+          Prop.RELATIONALIZE.booleanValue(session.map)
+              ? Relationalizer.of(typeSystem, env)
+              : hybrid ? null : Relationalizer.fuser(typeSystem, env);
       coreDecl = coreDecl0;
       for (int i = 0; i < inlinePassCount; i++) {
         final Analyzer.Analysis analysis =
@@ -98,11 +106,22 @@ public abstract class Compiles {
         final Inliner inliner = Inliner.of(typeSystem, env, analysis);
         final Core.Decl coreDecl1 = coreDecl;
         coreDecl = coreDecl1.accept(inliner);
+        if (fuser != null) {
+          coreDecl = coreDecl.accept(fuser);
+        }
         if (coreDecl == coreDecl1) {
           break;
         }
       }
     }
+    if (!hybrid) {
+      // Calcite does its own join reordering, filter push-down and
+      // hoisting, and cannot translate a query that references variables
+      // that are bound in a "let".
+      coreDecl = coreDecl.accept(ScanReorderer.of(typeSystem));
+      coreDecl = coreDecl.accept(PredicatePusher.of(typeSystem));
+      coreDecl = coreDecl.accept(Hoister.of(typeSystem));
+    }
     final Compiler compiler;
     if (hybrid) {
       if (calcite == null) {
@@ -110,7 +129,9 @@ public abstract class Compiles {
       }
       compiler = new CalciteCompiler(typeSystem, calcite);
     } else {
-      compiler = new Compiler(typeSystem);
+      compiler = new Compiler(typeSystem, Prop.CODEGEN.booleanValue(session.map),
+          Prop.PARALLELISM.intValue(session.map),
+          Prop.MEMORY_BUDGET.intValue(session.map));
     }
     return compiler.compileStatement(env, coreDecl);
   }
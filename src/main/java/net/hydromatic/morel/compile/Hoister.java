@@ -0,0 +1,508 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.compile;
+
+import net.hydromatic.morel.ast.Core;
+import net.hydromatic.morel.ast.Op;
+import net.hydromatic.morel.ast.Shuttle;
+import net.hydromatic.morel.ast.Visitor;
+import net.hydromatic.morel.type.FnType;
+import net.hydromatic.morel.type.Type;
+import net.hydromatic.morel.type.TypeSystem;
+
+import com.google.common.collect.ImmutableSet;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static net.hydromatic.morel.ast.CoreBuilder.core;
+
+/**
+ * Shuttle that moves expressions that do not depend on the current row out
+ * of the steps of a {@link Core.From}, and evaluates each repeated
+ * subexpression of a step once per row.
+ *
+ * <p>For example,
+ *
+ * <blockquote><pre>
+ * from e in emps
+ *   where String.size e.name &gt; String.size prefix
+ *     andalso String.size e.name &lt; 10
+ * </pre></blockquote>
+ *
+ * <p>becomes
+ *
+ * <blockquote><pre>
+ * let
+ *   val v0 = String.size prefix
+ * in
+ *   from e in emps
+ *     where let
+ *         val v1 = String.size e.name
+ *       in
+ *         v1 &gt; v0 andalso v1 &lt; 10
+ *       end
+ * end
+ * </pre></blockquote>
+ *
+ * <p>A moved expression is evaluated once, even if the {@code from} produces
+ * no rows, or the expression was in an arm of {@code andalso} that would not
+ * have been evaluated. So we only move expressions that cannot fail: calls to
+ * built-in functions that always return (comparisons, {@code String.size},
+ * {@code elem}, {@code List.length} but not {@code div} or {@code hd}),
+ * tuples, fields, and {@code from} expressions built from those.
+ */
+public class Hoister extends Shuttle {
+  /** Built-in functions that return a value for every argument, and do not
+   * call functions supplied by the user. */
+  private static final Set<BuiltIn> SAFE_BUILT_INS =
+      ImmutableSet.of(BuiltIn.NOT, BuiltIn.Z_ANDALSO, BuiltIn.Z_ORELSE,
+          BuiltIn.OP_EQ, BuiltIn.OP_NE, BuiltIn.OP_LT, BuiltIn.OP_LE,
+          BuiltIn.OP_GT, BuiltIn.OP_GE, BuiltIn.OP_ELEM, BuiltIn.OP_NOT_ELEM,
+          BuiltIn.OP_PLUS, BuiltIn.OP_MINUS, BuiltIn.OP_TIMES,
+          BuiltIn.OP_NEGATE, BuiltIn.Z_PLUS_INT, BuiltIn.Z_PLUS_REAL,
+          BuiltIn.Z_MINUS_INT, BuiltIn.Z_MINUS_REAL, BuiltIn.Z_TIMES_INT,
+          BuiltIn.Z_TIMES_REAL, BuiltIn.Z_NEGATE_INT, BuiltIn.Z_NEGATE_REAL,
+          BuiltIn.OP_CARET, BuiltIn.OP_CONS, BuiltIn.Z_LIST,
+          BuiltIn.OP_UNION, BuiltIn.OP_EXCEPT, BuiltIn.OP_INTERSECT,
+          BuiltIn.STRING_SIZE, BuiltIn.STRING_IS_PREFIX,
+          BuiltIn.STRING_IS_SUBSTRING, BuiltIn.STRING_IS_SUFFIX,
+          BuiltIn.LIST_NULL, BuiltIn.LIST_LENGTH, BuiltIn.LIST_REV,
+          BuiltIn.LIST_OP_AT, BuiltIn.LIST_CONCAT,
+          BuiltIn.RELATIONAL_COUNT, BuiltIn.RELATIONAL_EXISTS,
+          BuiltIn.RELATIONAL_NOT_EXISTS);
+
+  /** Aggregate functions that return a value for every group. */
+  private static final Set<BuiltIn> SAFE_AGGREGATES =
+      ImmutableSet.of(BuiltIn.RELATIONAL_COUNT, BuiltIn.RELATIONAL_SUM);
+
+  /** Private constructor. */
+  private Hoister(TypeSystem typeSystem) {
+    super(typeSystem);
+  }
+
+  /** Creates a Hoister. */
+  public static Hoister of(TypeSystem typeSystem) {
+    return new Hoister(typeSystem);
+  }
+
+  @Override protected Core.Exp visit(Core.From from) {
+    // Rewrite nested "from" expressions first, so that what they hoist can be
+    // hoisted again, out of this "from", if it does not depend on its rows.
+    final Core.From from2 = (Core.From) super.visit(from);
+    return new FromHoister(from2).hoist();
+  }
+
+  /** Returns whether an expression can be evaluated early, and more often
+   * than the program asks, without changing the result of the program. */
+  static boolean isSafe(Core.Exp exp) {
+    switch (exp.op) {
+    case ID:
+    case RECORD_SELECTOR:
+      return true;
+
+    case TUPLE:
+      return ((Core.Tuple) exp).args.stream().allMatch(Hoister::isSafe);
+
+    case LET:
+      final Core.Let let = (Core.Let) exp;
+      return !let.decl.rec
+          && isSafe(let.decl.exp)
+          && isSafe(let.exp);
+
+    case APPLY:
+      final Core.Apply apply = (Core.Apply) exp;
+      switch (apply.fn.op) {
+      case RECORD_SELECTOR:
+        break;
+      case FN_LITERAL:
+        if (!SAFE_BUILT_INS.contains(((Core.Literal) apply.fn).value)) {
+          return false;
+        }
+        break;
+      case APPLY:
+        // Partial application of a curried built-in, such as
+        // "String.isPrefix s".
+        if (!isSafe(apply.fn)) {
+          return false;
+        }
+        break;
+      default:
+        return false;
+      }
+      return isSafe(apply.arg);
+
+    case FROM:
+      return ((Core.From) exp).steps.stream().allMatch(Hoister::isSafe);
+
+    case CASE:
+      // A case with one arm whose pattern always matches, such as the
+      // "case v of (x, y) => x + y" that "fn (x, y) => x + y" becomes.
+      final Core.Case caseOf = (Core.Case) exp;
+      return caseOf.matchList.size() == 1
+          && isIrrefutable(caseOf.matchList.get(0).pat)
+          && isSafe(caseOf.exp)
+          && isSafe(caseOf.matchList.get(0).exp);
+
+    default:
+      return exp instanceof Core.Literal
+          && exp.op != Op.FN_LITERAL;
+    }
+  }
+
+  /** Returns whether a pattern matches every value of its type. */
+  private static boolean isIrrefutable(Core.Pat pat) {
+    switch (pat.op) {
+    case ID_PAT:
+    case WILDCARD_PAT:
+      return true;
+    case TUPLE_PAT:
+      return ((Core.TuplePat) pat).args.stream()
+          .allMatch(Hoister::isIrrefutable);
+    case RECORD_PAT:
+      return ((Core.RecordPat) pat).args.stream()
+          .allMatch(Hoister::isIrrefutable);
+    default:
+      return false;
+    }
+  }
+
+  static boolean isSafe(Core.FromStep step) {
+    switch (step.op) {
+    case INNER_JOIN:
+      final Core.Scan scan = (Core.Scan) step;
+      return isSafe(scan.exp)
+          && (scan.condition == null || isSafe(scan.condition));
+    case WHERE:
+      return isSafe(((Core.Where) step).exp);
+    case YIELD:
+      return isSafe(((Core.Yield) step).exp);
+    case ORDER:
+      return ((Core.Order) step).orderItems.stream()
+          .allMatch(item -> isSafe(item.exp));
+    case GROUP:
+      final Core.Group group = (Core.Group) step;
+      return group.groupExps.values().stream().allMatch(Hoister::isSafe)
+          && group.aggregates.values().stream()
+              .allMatch(aggregate ->
+                  aggregate.aggregate.op == Op.FN_LITERAL
+                      && SAFE_AGGREGATES.contains(
+                          ((Core.Literal) aggregate.aggregate).value)
+                      && (aggregate.argument == null
+                          || isSafe(aggregate.argument)));
+    default:
+      return false;
+    }
+  }
+
+  /** Returns a string that is the same for two expressions if and only if
+   * they are structurally identical, or null if the expression is too
+   * complex to compare. */
+  private static @Nullable String key(Core.Exp exp) {
+    switch (exp.op) {
+    case ID:
+      final Core.IdPat idPat = ((Core.Id) exp).idPat;
+      return "$" + idPat.name + "#" + idPat.i;
+
+    case RECORD_SELECTOR:
+      return "#" + ((Core.RecordSelector) exp).slot + ":"
+          + exp.type.moniker();
+
+    case TUPLE:
+      final StringBuilder b = new StringBuilder("(");
+      for (Core.Exp arg : ((Core.Tuple) exp).args) {
+        final String argKey = key(arg);
+        if (argKey == null) {
+          return null;
+        }
+        b.append(argKey).append(",");
+      }
+      return b.append("):").append(exp.type.moniker()).toString();
+
+    case APPLY:
+      final Core.Apply apply = (Core.Apply) exp;
+      final String fnKey = key(apply.fn);
+      final String argKey = key(apply.arg);
+      return fnKey == null || argKey == null ? null
+          : "[" + fnKey + " " + argKey + "]";
+
+    default:
+      if (exp instanceof Core.Literal) {
+        return exp.op + ":" + ((Core.Literal) exp).value + ":"
+            + exp.type.moniker();
+      }
+      return null;
+    }
+  }
+
+  /** Finds the variables that an expression references and binds. */
+  private static VarFinder vars(Core.Exp exp) {
+    final VarFinder finder = new VarFinder();
+    exp.accept(finder);
+    return finder;
+  }
+
+  /** Hoists expressions out of the steps of one {@link Core.From}. */
+  private class FromHoister {
+    final Core.From from;
+    /** Variables bound by the steps. */
+    final Set<Core.IdPat> fromVars = new HashSet<>();
+    /** Hoisted expressions, to be evaluated before the {@code from}. */
+    final List<Core.ValDecl> decls = new ArrayList<>();
+    final Map<String, Core.Id> hoistedIds = new HashMap<>();
+
+    FromHoister(Core.From from) {
+      this.from = from;
+      from.steps.forEach(step ->
+          step.bindings.forEach(binding -> fromVars.add(binding.id)));
+    }
+
+    Core.Exp hoist() {
+      final List<Core.FromStep> steps = new ArrayList<>();
+      for (Core.FromStep step : from.steps) {
+        steps.add(
+            hoist(step, steps.isEmpty(),
+                steps.size() == from.steps.size() - 1));
+      }
+      if (steps.equals(from.steps)) {
+        return from;
+      }
+      Core.Exp exp = from.copy(typeSystem, steps);
+      for (int i = decls.size() - 1; i >= 0; i--) {
+        exp = core.let(decls.get(i), exp);
+      }
+      return exp;
+    }
+
+    private Core.FromStep hoist(Core.FromStep step, boolean first,
+        boolean last) {
+      switch (step.op) {
+      case INNER_JOIN:
+        // The expression of the first scan is only evaluated once.
+        final Core.Scan scan = (Core.Scan) step;
+        return scan.copy(scan.bindings, scan.pat,
+            first ? scan.exp : rewrite(scan.exp),
+            scan.condition == null ? null : rewrite(scan.condition));
+
+      case WHERE:
+        final Core.Where where = (Core.Where) step;
+        return where.copy(rewrite(where.exp), where.bindings);
+
+      case YIELD:
+        // A yield that is not the last step must remain a tuple, so rewrite
+        // each of its fields.
+        final Core.Yield yield = (Core.Yield) step;
+        if (!last && yield.exp instanceof Core.Tuple) {
+          final Core.Tuple tuple = (Core.Tuple) yield.exp;
+          final List<Core.Exp> args = new ArrayList<>();
+          tuple.args.forEach(arg -> args.add(rewrite(arg)));
+          return yield.copy(yield.bindings, tuple.copy(typeSystem, args));
+        }
+        return yield.copy(yield.bindings, rewrite(yield.exp));
+
+      case ORDER:
+        final Core.Order order = (Core.Order) step;
+        final List<Core.OrderItem> orderItems = new ArrayList<>();
+        order.orderItems.forEach(item ->
+            orderItems.add(item.copy(rewrite(item.exp), item.direction)));
+        return order.copy(order.bindings, orderItems);
+
+      case GROUP:
+        final Core.Group group = (Core.Group) step;
+        final SortedMap<Core.IdPat, Core.Exp> groupExps =
+            new TreeMap<>(group.groupExps.comparator());
+        group.groupExps.forEach((id, exp) -> groupExps.put(id, rewrite(exp)));
+        final SortedMap<Core.IdPat, Core.Aggregate> aggregates =
+            new TreeMap<>(group.aggregates.comparator());
+        group.aggregates.forEach((id, aggregate) ->
+            aggregates.put(id,
+                aggregate.copy(aggregate.type, aggregate.aggregate,
+                    aggregate.argument == null ? null
+                        : rewrite(aggregate.argument))));
+        return group.copy(groupExps, aggregates);
+
+      default:
+        return step;
+      }
+    }
+
+    /** Hoists the row-invariant parts of an expression, then shares its
+     * repeated parts. */
+    private Core.Exp rewrite(Core.Exp exp) {
+      return share(hoist(exp));
+    }
+
+    /** Replaces each maximal row-invariant subexpression with a reference to
+     * a variable that is computed before the {@code from}. */
+    private Core.Exp hoist(Core.Exp exp) {
+      // Variables that the expression binds (in a "fn", "case", "let" or
+      // nested "from") are not visible outside it.
+      final Set<Core.IdPat> scopeVars = new HashSet<>(fromVars);
+      scopeVars.addAll(vars(exp).bound);
+      return exp.accept(new Shuttle(typeSystem) {
+        @Override protected Core.Exp visit(Core.Apply apply) {
+          return isInvariant(apply) ? hoisted(apply) : super.visit(apply);
+        }
+
+        @Override protected Core.Exp visit(Core.Tuple tuple) {
+          return isInvariant(tuple) ? hoisted(tuple) : super.visit(tuple);
+        }
+
+        @Override protected Core.Exp visit(Core.Let let) {
+          return isInvariant(let) ? hoisted(let) : super.visit(let);
+        }
+
+        @Override protected Core.Exp visit(Core.From from) {
+          return isInvariant(from) ? hoisted(from) : super.visit(from);
+        }
+
+        private boolean isInvariant(Core.Exp exp) {
+          final VarFinder finder = vars(exp);
+          return finder.call
+              && !(exp.type instanceof FnType)
+              && isSafe(exp)
+              && Collections.disjoint(finder.free(), scopeVars);
+        }
+      });
+    }
+
+    /** Creates a variable for a hoisted or shared expression. Its name
+     * cannot clash with the names that {@link Resolver} gives to the
+     * parameters of lambdas, into which the variable may be hoisted. */
+    private Core.IdPat temporary(Type type) {
+      final NameGenerator nameGenerator = typeSystem.nameGenerator;
+      return core.idPat(type, nameGenerator.getTemporary(), nameGenerator);
+    }
+
+    /** Returns a reference to a variable that holds the value of a hoisted
+     * expression, creating the variable if this is the first occurrence. */
+    private Core.Id hoisted(Core.Exp exp) {
+      final String key = key(exp);
+      if (key != null && hoistedIds.containsKey(key)) {
+        return hoistedIds.get(key);
+      }
+      final Core.IdPat idPat = temporary(exp.type);
+      decls.add(core.valDecl(false, idPat, exp));
+      final Core.Id id = core.id(idPat);
+      if (key != null) {
+        hoistedIds.put(key, id);
+      }
+      return id;
+    }
+
+    /** Replaces each maximal subexpression that occurs more than once with a
+     * reference to a variable, which is computed once per row. */
+    private Core.Exp share(Core.Exp exp) {
+      final Set<Core.IdPat> boundVars = vars(exp).bound;
+      final Map<String, Integer> counts = new HashMap<>();
+      exp.accept(new Visitor() {
+        @Override protected void visit(Core.Apply apply) {
+          final String key = key(apply);
+          if (key != null && apply.fn.op != Op.RECORD_SELECTOR) {
+            final Integer count = counts.get(key);
+            counts.put(key, count == null ? 1 : count + 1);
+          }
+          super.visit(apply);
+        }
+      });
+      if (counts.values().stream().allMatch(count -> count < 2)) {
+        return exp;
+      }
+      final List<Core.ValDecl> sharedDecls = new ArrayList<>();
+      final Map<String, Core.Id> sharedIds = new HashMap<>();
+      final Core.Exp exp2 = exp.accept(new Shuttle(typeSystem) {
+        @Override protected Core.Exp visit(Core.Apply apply) {
+          final String key = key(apply);
+          final Integer count = key == null ? null : counts.get(key);
+          if (count == null
+              || count < 2
+              || apply.type instanceof FnType
+              || !isSafe(apply)
+              || !Collections.disjoint(vars(apply).free(), boundVars)) {
+            return super.visit(apply);
+          }
+          Core.Id id = sharedIds.get(key);
+          if (id == null) {
+            final Core.IdPat idPat = temporary(apply.type);
+            sharedDecls.add(core.valDecl(false, idPat, apply));
+            id = core.id(idPat);
+            sharedIds.put(key, id);
+          }
+          return id;
+        }
+      });
+      Core.Exp exp3 = exp2;
+      for (int i = sharedDecls.size() - 1; i >= 0; i--) {
+        exp3 = core.let(sharedDecls.get(i), exp3);
+      }
+      return exp3;
+    }
+  }
+
+  /** Visitor that finds the variables that an expression references and
+   * binds, and whether it does any significant work. */
+  private static class VarFinder extends Visitor {
+    final Set<Core.IdPat> refs = new HashSet<>();
+    final Set<Core.IdPat> bound = new HashSet<>();
+    boolean call;
+
+    /** Returns the variables that are referenced but not bound. */
+    Set<Core.IdPat> free() {
+      final Set<Core.IdPat> free = new HashSet<>(refs);
+      free.removeAll(bound);
+      return free;
+    }
+
+    @Override protected void visit(Core.Id id) {
+      refs.add(id.idPat);
+    }
+
+    @Override protected void visit(Core.IdPat idPat) {
+      bound.add(idPat);
+    }
+
+    @Override protected void visit(Core.Apply apply) {
+      // Field access and list construction are too cheap to be worth a
+      // variable.
+      if (apply.fn.op != Op.RECORD_SELECTOR
+          && !(apply.fn.op == Op.FN_LITERAL
+              && ((Core.Literal) apply.fn).value == BuiltIn.Z_LIST)) {
+        call = true;
+      }
+      super.visit(apply);
+    }
+
+    @Override protected void visit(Core.From from) {
+      call = true;
+      from.steps.forEach(step ->
+          step.bindings.forEach(binding -> bound.add(binding.id)));
+      super.visit(from);
+    }
+  }
+}
+
+// End Hoister.java
@@ -37,6 +37,15 @@ public class NameGenerator {
     return "v" + id++;
   }
 
+  /** Generates a name for a variable that is introduced while optimizing a
+   * program. The name is unique in this program and starts with '$', like
+   * other names that Morel uses internally (such as "$session"), so it does
+   * not clash with a name generated by {@link #get()} of another generator,
+   * such as the one that {@link Resolver} creates for each declaration. */
+  public String getTemporary() {
+    return "$v" + id++;
+  }
+
   /** Returns the number of times that "name" has been used for a variable. */
   public int inc(String name) {
     return nameCounts.computeIfAbsent(name, n -> new AtomicInteger(0))
@@ -0,0 +1,227 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.compile;
+
+import net.hydromatic.morel.ast.Core;
+import net.hydromatic.morel.ast.Op;
+import net.hydromatic.morel.ast.Shuttle;
+import net.hydromatic.morel.ast.Visitor;
+import net.hydromatic.morel.type.Binding;
+import net.hydromatic.morel.type.TypeSystem;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static net.hydromatic.morel.ast.CoreBuilder.core;
+
+/**
+ * Shuttle that moves the conditions of each {@code where} step of a
+ * {@link Core.From} into the condition of the earliest scan at which all
+ * of the variables that they reference are bound, and evaluates the
+ * cheapest conditions first.
+ *
+ * <p>For example, in
+ *
+ * <blockquote><pre>
+ * from a in as, b in bs
+ *   where a.x &gt; 10 andalso a.y = b.y
+ * </pre></blockquote>
+ *
+ * <p>the condition {@code a.x > 10} moves to the scan of {@code as}, and
+ * is evaluated before the scan of {@code bs}, rather than for each pair of
+ * rows; {@code a.y = b.y} moves to the scan of {@code bs}.
+ *
+ * <p>A condition that moves is evaluated for rows that previously did not
+ * reach it, and before conditions and scans that previously preceded it. To
+ * keep the result of a program the same, a condition only moves if it, and
+ * everything it moves ahead of, cannot fail (see
+ * {@link Hoister#isSafe(Core.Exp)}). Conditions that may be semi-joins
+ * (such as {@code elem} and {@code exists}) remain in their {@code where}.
+ */
+public class PredicatePusher extends Shuttle {
+  /** Private constructor. */
+  private PredicatePusher(TypeSystem typeSystem) {
+    super(typeSystem);
+  }
+
+  /** Creates a PredicatePusher. */
+  public static PredicatePusher of(TypeSystem typeSystem) {
+    return new PredicatePusher(typeSystem);
+  }
+
+  @Override protected Core.Exp visit(Core.From from) {
+    final Core.From from2 = (Core.From) super.visit(from);
+    final List<Core.FromStep> steps = new ArrayList<>(from2.steps);
+    for (int i = 0; i < steps.size(); i++) {
+      if (steps.get(i).op != Op.WHERE) {
+        continue;
+      }
+      final Core.Where where = (Core.Where) steps.get(i);
+      final List<Core.Exp> conjunctions = Compiler.conjunctions(where.exp);
+      final List<Core.Exp> conditions = new ArrayList<>();
+      boolean push = true;
+      for (Core.Exp condition : conjunctions) {
+        push &= Hoister.isSafe(condition);
+        final int j = push && !isSemiJoin(condition)
+            ? target(steps, i, condition)
+            : -1;
+        if (j < 0) {
+          conditions.add(condition);
+        } else {
+          final Core.Scan scan = (Core.Scan) steps.get(j);
+          final List<Core.Exp> scanConditions =
+              new ArrayList<>(Compiler.conjunctions(scan.condition));
+          scanConditions.add(condition);
+          steps.set(j,
+              scan.copy(scan.bindings, scan.pat, scan.exp,
+                  core.andAlso(typeSystem, sort(scanConditions))));
+        }
+      }
+      final List<Core.Exp> sortedConditions = sort(conditions);
+      if (sortedConditions.isEmpty()) {
+        steps.remove(i--);
+      } else if (!sortedConditions.equals(conjunctions)) {
+        steps.set(i,
+            where.copy(core.andAlso(typeSystem, sortedConditions),
+                where.bindings));
+      }
+    }
+    if (steps.equals(from2.steps)) {
+      return from2;
+    }
+    return from2.copy(typeSystem, steps);
+  }
+
+  /** Returns the index of the earliest scan before step {@code i} to whose
+   * condition {@code condition} can be moved, or -1.
+   *
+   * <p>Returns -1 if the best scan is immediately before step {@code i};
+   * the condition would be evaluated for the same rows, and the compiler
+   * already treats a {@code where} that follows a scan as part of the
+   * scan's join condition. */
+  private static int target(List<Core.FromStep> steps, int i,
+      Core.Exp condition) {
+    final Set<Core.IdPat> vars = new HashSet<>();
+    steps.get(i).bindings.forEach(b -> vars.add(b.id));
+    vars.retainAll(Compiler.references(condition));
+    int target = -1;
+    for (int k = i - 1; k >= 0; k--) {
+      final Core.FromStep step = steps.get(k);
+      if (step.op == Op.INNER_JOIN) {
+        if (!ids(step.bindings).containsAll(vars)) {
+          break;
+        }
+        target = k;
+      } else if (step.op != Op.WHERE) {
+        break;
+      }
+      if (k > 0 && !isSafe(step)) {
+        break; // condition cannot move ahead of this step
+      }
+    }
+    return target == i - 1 ? -1 : target;
+  }
+
+  private static Set<Core.IdPat> ids(List<Binding> bindings) {
+    final Set<Core.IdPat> ids = new HashSet<>();
+    bindings.forEach(b -> ids.add(b.id));
+    return ids;
+  }
+
+  private static boolean isSafe(Core.FromStep step) {
+    switch (step.op) {
+    case INNER_JOIN:
+      final Core.Scan scan = (Core.Scan) step;
+      return Hoister.isSafe(scan.exp)
+          && (scan.condition == null || Hoister.isSafe(scan.condition));
+    case WHERE:
+      return Hoister.isSafe(((Core.Where) step).exp);
+    default:
+      return false;
+    }
+  }
+
+  /** Returns whether a condition might be evaluated as a semi-join or an
+   * anti-join. */
+  private static boolean isSemiJoin(Core.Exp exp) {
+    if (exp.op == Op.APPLY
+        && ((Core.Apply) exp).fn.op == Op.FN_LITERAL) {
+      switch ((BuiltIn) ((Core.Literal) ((Core.Apply) exp).fn).value) {
+      case NOT:
+        return isSemiJoin(((Core.Apply) exp).arg);
+      case OP_ELEM:
+      case OP_NOT_ELEM:
+      case RELATIONAL_EXISTS:
+      case RELATIONAL_NOT_EXISTS:
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Sorts conditions so that the cheapest is evaluated first. If a
+   * condition might fail, it and the conditions after it remain in their
+   * original order. */
+  private static List<Core.Exp> sort(List<Core.Exp> conditions) {
+    int n = 0;
+    while (n < conditions.size() && Hoister.isSafe(conditions.get(n))) {
+      ++n;
+    }
+    final List<Core.Exp> list = new ArrayList<>(conditions);
+    list.subList(0, n).sort(Comparator.comparingInt(PredicatePusher::cost));
+    return list;
+  }
+
+  /** Estimates the cost of evaluating an expression. A call to a built-in
+   * function is cheap, a call to any other function is more expensive, and
+   * a {@code from} expression is very expensive. */
+  static int cost(Core.Exp exp) {
+    final int[] cost = {0};
+    exp.accept(new Visitor() {
+      @Override protected void visit(Core.Apply apply) {
+        switch (apply.fn.op) {
+        case RECORD_SELECTOR:
+          break;
+        case FN_LITERAL:
+          cost[0] += 1;
+          break;
+        default:
+          cost[0] += 10;
+        }
+        super.visit(apply);
+      }
+
+      @Override protected void visit(Core.Case caseOf) {
+        cost[0] += 5;
+        super.visit(caseOf);
+      }
+
+      @Override protected void visit(Core.From from) {
+        cost[0] += 100;
+        super.visit(from);
+      }
+    });
+    return cost[0];
+  }
+}
+
+// End PredicatePusher.java
@@ -20,9 +20,11 @@ package net.hydromatic.morel.compile;
 
 import net.hydromatic.morel.ast.Core;
 import net.hydromatic.morel.ast.Op;
+import net.hydromatic.morel.ast.Shuttle;
 import net.hydromatic.morel.type.Binding;
 import net.hydromatic.morel.type.FnType;
 import net.hydromatic.morel.type.ListType;
+import net.hydromatic.morel.type.PrimitiveType;
 import net.hydromatic.morel.type.RecordLikeType;
 import net.hydromatic.morel.type.RecordType;
 import net.hydromatic.morel.type.Type;
@@ -31,7 +33,9 @@ import net.hydromatic.morel.type.TypeSystem;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSortedMap;
 import org.apache.calcite.util.Util;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
+import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -41,22 +45,79 @@ import static net.hydromatic.morel.compile.Resolver.append;
 /**
  * Shuttle that converts calls to {@link BuiltIn#LIST_FILTER}
  * and {@link BuiltIn#LIST_MAP} into {@link Core.From} expressions.
+ *
+ * <p>A chain of such calls becomes a single {@code from} expression, so
+ * that each element passes through all of the functions before the next
+ * element is read, and no intermediate list is created. For example,
+ *
+ * <blockquote><pre>
+ * List.foldl f 0 (List.map g (List.filter p xs))
+ * </pre></blockquote>
+ *
+ * <p>becomes
+ *
+ * <blockquote><pre>
+ * List.foldl f 0 (from v in xs where p v yield g v)
+ * </pre></blockquote>
+ *
+ * <p>and, at run time, {@code List.foldl} reads the rows of the
+ * {@code from} one at a time. The functions that consume a list this way
+ * are {@code List.all}, {@code List.app}, {@code List.exists},
+ * {@code List.find}, {@code List.foldl} and {@code List.length}.
+ *
+ * <p>A Relationalizer created by {@link #fuser} converts a call only if
+ * it is part of a chain, or the argument of one of those functions; one
+ * created by {@link #of} converts every call, and also converts calls to
+ * other list functions into expressions on a {@code from}, so that the
+ * whole expression can be evaluated by the {@code from} engine, or pushed
+ * down to a database in hybrid mode:
+ *
+ * <ul>
+ * <li>{@code List.exists p xs} becomes
+ *   {@code exists (from v in xs where p v)};
+ * <li>{@code List.all p xs} becomes
+ *   {@code notExists (from v in xs where not (p v))};
+ * <li>{@code List.find p xs} becomes
+ *   {@code List.find (fn _ => true) (from v in xs where p v)};
+ * <li>{@code List.partition p xs} becomes
+ *   {@code (from v in xs where p v, from v in xs where not (p v))};
+ * <li>{@code List.concat xss} becomes
+ *   {@code from xs in xss, x in xs yield x};
+ * <li>{@code List.foldl (fn (x, acc) => x + acc) 0 xs} becomes
+ *   {@code sum xs}, and {@code List.foldl (fn (_, n) => n + 1) 0 xs}
+ *   becomes {@code count xs}.
+ * </ul>
+ *
+ * <p>Each of these reads each element at most once, and stops at the same
+ * element as the original, except {@code List.partition}, which applies
+ * its predicate twice to each element; it is converted only if the
+ * predicate is cheap and cannot fail.
  */
 public class Relationalizer extends EnvShuttle {
+  /** Whether to convert only calls that can be fused with other calls. */
+  private final boolean fuseOnly;
+
   /** Private constructor. */
-  private Relationalizer(TypeSystem typeSystem, Environment env) {
+  private Relationalizer(TypeSystem typeSystem, Environment env,
+      boolean fuseOnly) {
     super(typeSystem, env);
+    this.fuseOnly = fuseOnly;
   }
 
-  /** Creates a Relationalizer.
-   *
-   * <p>If {@code analysis} is null, no variables are inlined. */
+  /** Creates a Relationalizer that converts every call. */
   public static Relationalizer of(TypeSystem typeSystem, Environment env) {
-    return new Relationalizer(typeSystem, env);
+    return new Relationalizer(typeSystem, env, false);
+  }
+
+  /** Creates a Relationalizer that converts only calls that can be fused
+   * with other calls. */
+  public static Relationalizer fuser(TypeSystem typeSystem,
+      Environment env) {
+    return new Relationalizer(typeSystem, env, true);
   }
 
   @Override protected EnvShuttle bind(Binding binding) {
-    return new Relationalizer(typeSystem, env.bind(binding));
+    return new Relationalizer(typeSystem, env.bind(binding), fuseOnly);
   }
 
   @Override protected Relationalizer bind(List<Binding> bindingList) {
@@ -64,76 +125,480 @@ public class Relationalizer extends EnvShuttle {
     // will have the same effect, just slower.
     final Environment env2 = env.bindAll(bindingList);
     if (env2 != env) {
-      return new Relationalizer(typeSystem, env2);
+      return new Relationalizer(typeSystem, env2, fuseOnly);
     }
     return this;
   }
 
   @Override protected Core.Exp visit(Core.Apply apply) {
-    switch (apply.fn.op) {
-    case APPLY:
-      final Core.Apply apply2 = (Core.Apply) apply.fn;
-      switch (apply2.fn.op) {
-      case FN_LITERAL:
-        final Core.Literal literal = (Core.Literal) apply2.fn;
-        if (literal.value == BuiltIn.LIST_MAP) {
-          // List.map f list
-          //  =>
-          // from e in list yield (f e)
-          final Core.Exp f = apply2.arg;
-          final FnType fnType = (FnType) f.type;
-          final Core.From from = toFrom(apply.arg);
-          // TODO: if the last step is a non-record yield, there is no
-          // "defaultYieldExp", and therefore we cannot add another yield
-          // step. We will have to inline the yield expression as a let.
-          final Core.Yield yieldStep = core.yield_(typeSystem,
-              core.apply(fnType.resultType, f,
-                  core.implicitYieldExp(typeSystem, from.steps)));
-          return core.from(typeSystem, append(from.steps, yieldStep));
-        }
-        if (literal.value == BuiltIn.LIST_FILTER) {
-          // List.filter f list
-          //  =>
-          // from e in list where (f e)
-          final Core.Exp f = apply2.arg;
-          final FnType fnType = (FnType) f.type;
-          final Core.From from = toFrom(apply.arg);
-          final Core.Where whereStep =
-              core.where(core.lastBindings(from.steps),
-                  core.apply(fnType.resultType, f,
-                      core.implicitYieldExp(typeSystem, from.steps)));
-          return core.from(typeSystem, append(from.steps, whereStep));
+    final BuiltIn builtIn = listFunction(apply);
+    if (builtIn == null) {
+      return super.visit(apply);
+    }
+    if (!fuseOnly) {
+      final Core.Exp exp = relationalizeCall(apply, builtIn);
+      return exp != null ? exp : super.visit(apply);
+    }
+    final boolean mapOrFilter =
+        builtIn == BuiltIn.LIST_MAP || builtIn == BuiltIn.LIST_FILTER;
+    if (!mapOrFilter && !isMapOrFilter(apply.arg)) {
+      return super.visit(apply);
+    }
+    if (!canFuse(apply, builtIn)) {
+      return mapOrFilter
+          ? visitChain(apply)
+          : apply.copy(apply.fn.accept(this), visitChain(apply.arg));
+    }
+    if (mapOrFilter) {
+      return relationalize(apply, builtIn);
+    }
+    // The argument of a function that consumes a list, such as
+    // "List.foldl f z (List.map g xs)"; make the argument a "from", so
+    // that the consumer reads rows without creating a list.
+    final Core.Apply arg = (Core.Apply) apply.arg;
+    return apply.copy(apply.fn.accept(this),
+        relationalize(arg, listFunction(arg)));
+  }
+
+  /** Converts a call to {@link BuiltIn#LIST_MAP} or
+   * {@link BuiltIn#LIST_FILTER}, and any such calls in its list argument,
+   * into a {@link Core.From}. */
+  private Core.From relationalize(Core.Apply apply, BuiltIn builtIn) {
+    final Core.Exp f = ((Core.Apply) apply.fn).arg.accept(this);
+    final Core.Exp list = isMapOrFilter(apply.arg)
+        ? relationalize((Core.Apply) apply.arg, listFunction(apply.arg))
+        : apply.arg.accept(this);
+    final FnType fnType = (FnType) f.type;
+    final Core.From from = toFrom(list);
+    final Core.Exp exp =
+        core.apply(fnType.resultType, f,
+            core.implicitYieldExp(typeSystem, from.steps));
+    if (builtIn == BuiltIn.LIST_MAP) {
+      // List.map f list
+      //  =>
+      // from e in list yield (f e)
+      return core.from(typeSystem,
+          append(from.steps, core.yield_(typeSystem, exp)));
+    } else {
+      // List.filter f list
+      //  =>
+      // from e in list where (f e)
+      return core.from(typeSystem,
+          append(from.steps, core.where(core.lastBindings(from.steps), exp)));
+    }
+  }
+
+  /** Converts a call to a list function into an expression on a
+   * {@link Core.From}, or returns null if the call cannot be converted, or
+   * would be no cheaper. */
+  private Core.@Nullable Exp relationalizeCall(Core.Apply apply,
+      BuiltIn builtIn) {
+    switch (builtIn) {
+    case LIST_MAP:
+    case LIST_FILTER:
+      return relationalize(apply, builtIn);
+
+    case LIST_CONCAT:
+      // List.concat xss
+      //  =>
+      // from xs in xss, x in xs yield x
+      final Core.From from = toFrom(apply.arg.accept(this));
+      final Core.Scan scan =
+          scan(from.steps, core.implicitYieldExp(typeSystem, from.steps));
+      return core.from(typeSystem,
+          ImmutableList.<Core.FromStep>builder().addAll(from.steps)
+              .add(scan)
+              .add(core.yield_(typeSystem, core.id((Core.IdPat) scan.pat)))
+              .build());
+
+    case LIST_FOLDL:
+      final Core.Apply fnApply = (Core.Apply) apply.fn;
+      final BuiltIn aggregate =
+          aggregate(((Core.Apply) fnApply.fn).arg, fnApply.arg);
+      if (aggregate == null) {
+        return null;
+      }
+      // List.foldl (fn (x, acc) => x + acc) 0 xs
+      //  =>
+      // sum xs
+      return core.apply(apply.type,
+          core.functionLiteral(typeSystem, aggregate),
+          apply.arg.accept(this));
+
+    case LIST_ALL:
+    case LIST_EXISTS:
+    case LIST_FIND:
+    case LIST_PARTITION:
+      if (builtIn == BuiltIn.LIST_FIND
+          && isTrue(((Core.Apply) apply.fn).arg)) {
+        return null; // already converted
+      }
+      final Core.Exp p = ((Core.Apply) apply.fn).arg.accept(this);
+      if (builtIn == BuiltIn.LIST_PARTITION
+          && !(isSafeFn(p) && PredicatePusher.cost(((Core.Fn) p).exp) < 10)) {
+        // Evaluates the predicate twice for each element. Only worth it if
+        // the predicate is cheap (calls no user function); and so that it
+        // raises the same exception, it must not fail.
+        return null;
+      }
+      final Core.Exp list = apply.arg.accept(this);
+      switch (builtIn) {
+      case LIST_EXISTS:
+        // List.exists p xs
+        //  =>
+        // Relational.exists (from v in xs where p v)
+        return core.apply(apply.type,
+            core.functionLiteral(typeSystem, BuiltIn.RELATIONAL_EXISTS),
+            where(list, p, false));
+
+      case LIST_ALL:
+        // List.all p xs
+        //  =>
+        // Relational.notExists (from v in xs where not (p v))
+        return core.apply(apply.type,
+            core.functionLiteral(typeSystem, BuiltIn.RELATIONAL_NOT_EXISTS),
+            where(list, p, true));
+
+      case LIST_FIND:
+        // List.find p xs
+        //  =>
+        // List.find (fn _ => true) (from v in xs where p v)
+        final Core.From from2 = where(list, p, false);
+        final Type elementType = ((ListType) from2.type).elementType;
+        final Core.IdPat idPat =
+            core.idPat(elementType, typeSystem.nameGenerator.getTemporary(),
+                typeSystem.nameGenerator);
+        final Core.Fn fn =
+            core.fn(typeSystem.fnType(elementType, PrimitiveType.BOOL), idPat,
+                core.boolLiteral(true));
+        return apply.copy(((Core.Apply) apply.fn).copy(
+            ((Core.Apply) apply.fn).fn, fn), from2);
+
+      default:
+        // List.partition p xs
+        //  =>
+        // let val v0 = xs
+        // in (from v in v0 where p v, from v in v0 where not (p v))
+        // end
+        if (list.op == Op.ID || list instanceof Core.Literal) {
+          return core.tuple((RecordLikeType) apply.type,
+              where(list, p, false), where(list, p, true));
         }
+        final Core.IdPat listPat =
+            core.idPat(list.type, typeSystem.nameGenerator.getTemporary(),
+                typeSystem.nameGenerator);
+        final Core.Id listId = core.id(listPat);
+        return core.let(core.valDecl(false, listPat, list),
+            core.tuple((RecordLikeType) apply.type,
+                where(listId, p, false), where(listId, p, true)));
       }
+
+    default:
+      return null;
+    }
+  }
+
+  /** Converts an expression of list type to a {@code from} that returns
+   * the elements for which a predicate is true, or if {@code negate}, is
+   * false. */
+  private Core.From where(Core.Exp list, Core.Exp p, boolean negate) {
+    final Core.From from = toFrom(list);
+    Core.Exp exp =
+        core.apply(PrimitiveType.BOOL, p,
+            core.implicitYieldExp(typeSystem, from.steps));
+    if (negate) {
+      exp =
+          core.apply(PrimitiveType.BOOL,
+              core.functionLiteral(typeSystem, BuiltIn.NOT), exp);
+    }
+    return core.from(typeSystem,
+        append(from.steps, core.where(core.lastBindings(from.steps), exp)));
+  }
+
+  /** If {@code List.foldl f z} computes a known aggregate function, returns
+   * that function; otherwise null.
+   *
+   * <p>Recognizes {@code fn (x, acc) => x + acc} (or {@code acc + x}) with
+   * zero, which is {@link BuiltIn#RELATIONAL_SUM} (returned as
+   * {@link BuiltIn#Z_SUM_INT} or {@link BuiltIn#Z_SUM_REAL}, as the
+   * inliner would expand it), and
+   * {@code fn (_, n) => n + 1} (or {@code 1 + n}) with zero, which is
+   * {@link BuiltIn#RELATIONAL_COUNT}. */
+  private static @Nullable BuiltIn aggregate(Core.Exp f, Core.Exp z) {
+    if (f.op != Op.FN
+        || z.op != Op.INT_LITERAL && z.op != Op.REAL_LITERAL
+        || ((BigDecimal) ((Core.Literal) z).value).signum() != 0) {
+      return null;
+    }
+    final Core.Fn fn = (Core.Fn) f;
+    if (fn.exp.op != Op.CASE) {
+      return null;
+    }
+    final Core.Case caseOf = (Core.Case) fn.exp;
+    if (caseOf.exp.op != Op.ID
+        || !((Core.Id) caseOf.exp).idPat.equals(fn.idPat)
+        || caseOf.matchList.size() != 1
+        || caseOf.matchList.get(0).pat.op != Op.TUPLE_PAT) {
+      return null;
+    }
+    final Core.Match match = caseOf.matchList.get(0);
+    final List<Core.Pat> pats = ((Core.TuplePat) match.pat).args;
+    if (pats.get(1).op != Op.ID_PAT
+        || !isPlus(match.exp)) {
+      return null;
+    }
+    final List<Core.Exp> args = ((Core.Tuple) ((Core.Apply) match.exp).arg).args;
+    final Core.IdPat acc = (Core.IdPat) pats.get(1);
+    final int i = isId(args.get(0), acc) ? 0 : isId(args.get(1), acc) ? 1 : -1;
+    if (i < 0) {
+      return null;
+    }
+    final Core.Exp other = args.get(1 - i);
+    final Core.Pat pat = pats.get(0);
+    if (pat.op == Op.ID_PAT && isId(other, (Core.IdPat) pat)) {
+      return z.op == Op.INT_LITERAL ? BuiltIn.Z_SUM_INT : BuiltIn.Z_SUM_REAL;
+    }
+    if ((pat.op == Op.ID_PAT || pat.op == Op.WILDCARD_PAT)
+        && other.op == Op.INT_LITERAL
+        && ((BigDecimal) ((Core.Literal) other).value)
+            .compareTo(BigDecimal.ONE) == 0
+        && z.op == Op.INT_LITERAL) {
+      return BuiltIn.RELATIONAL_COUNT;
+    }
+    return null;
+  }
+
+  /** Returns whether an expression is a call to {@code +} with a pair of
+   * arguments. */
+  private static boolean isPlus(Core.Exp exp) {
+    if (exp.op != Op.APPLY
+        || ((Core.Apply) exp).fn.op != Op.FN_LITERAL
+        || ((Core.Apply) exp).arg.op != Op.TUPLE) {
+      return false;
+    }
+    switch ((BuiltIn) ((Core.Literal) ((Core.Apply) exp).fn).value) {
+    case OP_PLUS:
+    case Z_PLUS_INT:
+    case Z_PLUS_REAL:
+      return true;
+    default:
+      return false;
     }
-    return super.visit(apply);
   }
 
+  private static boolean isId(Core.Exp exp, Core.IdPat idPat) {
+    return exp.op == Op.ID && ((Core.Id) exp).idPat.equals(idPat);
+  }
+
+  /** Returns whether a function always returns {@code true}. */
+  private static boolean isTrue(Core.Exp fn) {
+    return fn.op == Op.FN
+        && ((Core.Fn) fn).exp.op == Op.BOOL_LITERAL
+        && (Boolean) ((Core.Literal) ((Core.Fn) fn).exp).value;
+  }
+
+  /** Visits the functions and the innermost list of a chain of calls to
+   * {@link BuiltIn#LIST_MAP} and {@link BuiltIn#LIST_FILTER}, but does not
+   * convert the calls. */
+  private Core.Exp visitChain(Core.Exp exp) {
+    if (!isMapOrFilter(exp)) {
+      return exp.accept(this);
+    }
+    final Core.Apply apply = (Core.Apply) exp;
+    final Core.Apply fnApply = (Core.Apply) apply.fn;
+    return apply.copy(fnApply.copy(fnApply.fn, fnApply.arg.accept(this)),
+        visitChain(apply.arg));
+  }
+
+  /** Returns whether a chain of calls, ending in a call to
+   * {@code builtIn}, can be fused without changing the result of the
+   * program.
+   *
+   * <p>Fused, the functions are applied to each element in turn, rather
+   * than each function to every element; and a function that stops early,
+   * such as {@code List.exists}, stops the others too. So that the same
+   * exception is raised, at most one of the functions may fail, and if the
+   * consumer stops early, none. It is not worth fusing a single call to
+   * {@code List.map} or {@code List.filter} unless its list is a
+   * {@code from}. */
+  private static boolean canFuse(Core.Apply apply, BuiltIn builtIn) {
+    int unsafeCount = 0;
+    int callCount = 0;
+    Core.Exp exp = apply;
+    switch (builtIn) {
+    case LIST_MAP:
+    case LIST_FILTER:
+      break;
+    case LIST_CONCAT:
+    case LIST_PARTITION:
+      return false; // these consume the whole list, and gain nothing
+    case LIST_LENGTH:
+      exp = apply.arg;
+      ++callCount; // the consumer counts as a call
+      break;
+    case LIST_FOLDL:
+      // List.foldl f z list
+      if (!isSafeFn(((Core.Apply) ((Core.Apply) apply.fn).fn).arg)) {
+        ++unsafeCount;
+      }
+      exp = apply.arg;
+      ++callCount;
+      break;
+    default:
+      // List.exists f list, etc.
+      if (!isSafeFn(((Core.Apply) apply.fn).arg)) {
+        ++unsafeCount;
+      }
+      exp = apply.arg;
+      ++callCount;
+    }
+    while (isMapOrFilter(exp)) {
+      ++callCount;
+      if (!isSafeFn(((Core.Apply) ((Core.Apply) exp).fn).arg)) {
+        ++unsafeCount;
+      }
+      exp = ((Core.Apply) exp).arg;
+    }
+    if (exp.op == Op.FROM) {
+      if (!Hoister.isSafe(exp)) {
+        ++unsafeCount;
+      }
+    } else if (callCount < 2) {
+      return false; // a single call to List.map or List.filter
+    }
+    switch (builtIn) {
+    case LIST_ALL:
+    case LIST_EXISTS:
+    case LIST_FIND:
+      return unsafeCount == 0;
+    default:
+      return unsafeCount <= 1;
+    }
+  }
+
+  private static boolean allSafe(List<Core.FromStep> steps) {
+    return steps.stream().allMatch(Hoister::isSafe);
+  }
+
+  /** Returns whether applying a function to any argument cannot fail. */
+  private static boolean isSafeFn(Core.Exp fn) {
+    switch (fn.op) {
+    case FN:
+      return Hoister.isSafe(((Core.Fn) fn).exp);
+    case RECORD_SELECTOR:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /** If an expression is a call to a function that takes a list as its last
+   * argument, and that this Relationalizer may convert, or fuse with the
+   * {@code from} that computes the list, returns the function; otherwise
+   * null. */
+  private static @Nullable BuiltIn listFunction(Core.Exp exp) {
+    if (exp.op != Op.APPLY) {
+      return null;
+    }
+    Core.Exp fn = ((Core.Apply) exp).fn;
+    int argCount = 1;
+    while (fn.op == Op.APPLY) {
+      fn = ((Core.Apply) fn).fn;
+      ++argCount;
+    }
+    if (fn.op != Op.FN_LITERAL) {
+      return null;
+    }
+    final BuiltIn builtIn = (BuiltIn) ((Core.Literal) fn).value;
+    switch (builtIn) {
+    case LIST_CONCAT:
+    case LIST_LENGTH:
+      return argCount == 1 ? builtIn : null;
+    case LIST_ALL:
+    case LIST_APP:
+    case LIST_EXISTS:
+    case LIST_FILTER:
+    case LIST_FIND:
+    case LIST_MAP:
+    case LIST_PARTITION:
+      return argCount == 2 ? builtIn : null;
+    case LIST_FOLDL:
+      return argCount == 3 ? builtIn : null;
+    default:
+      return null;
+    }
+  }
+
+  private static boolean isRecord(Core.Exp exp) {
+    return exp.op == Op.TUPLE && exp.type.op() == Op.RECORD_TYPE;
+  }
+
+  private static boolean isMapOrFilter(Core.Exp exp) {
+    final BuiltIn builtIn = listFunction(exp);
+    return builtIn == BuiltIn.LIST_MAP || builtIn == BuiltIn.LIST_FILTER;
+  }
+
+  /** Converts an expression of list type to a {@code from} to which steps
+   * can be appended. */
   private Core.From toFrom(Core.Exp exp) {
     if (exp instanceof Core.From) {
-      return (Core.From) exp;
+      final Core.From from = (Core.From) exp;
+      if (from.steps.isEmpty()
+          || !(Util.last(from.steps) instanceof Core.Yield)
+          || isRecord(((Core.Yield) Util.last(from.steps)).exp)) {
+        return from;
+      }
+      // A "yield" that is followed by other steps must be a record
+      // expression; "yield e" becomes "yield {v = e}".
+      final Core.Yield yield = (Core.Yield) Util.last(from.steps);
+      final String name = typeSystem.nameGenerator.getTemporary();
+      final RecordLikeType recordType =
+          typeSystem.recordType(
+              ImmutableSortedMap.<String, Type>orderedBy(RecordType.ORDERING)
+                  .put(name, yield.exp.type).build());
+      final List<Core.FromStep> steps = new ArrayList<>(from.steps);
+      steps.set(steps.size() - 1,
+          core.yield_(typeSystem, core.tuple(recordType, yield.exp)));
+      return core.from(typeSystem, steps);
     } else {
-      final ListType listType = (ListType) exp.type;
-      final String name = typeSystem.nameGenerator.get();
-      final Core.IdPat id =
-          core.idPat(listType.elementType, name, typeSystem.nameGenerator);
-      final List<Binding> bindings = new ArrayList<>();
-      Compiles.acceptBinding(typeSystem, id, bindings);
-      final Core.Scan scan =
-          core.scan(Op.INNER_JOIN, bindings, id, exp, core.boolLiteral(true));
-      return core.from(typeSystem, ImmutableList.of(scan));
+      return core.from(typeSystem,
+          ImmutableList.of(scan(ImmutableList.of(), exp)));
     }
   }
 
+  /** Creates a scan over an expression of list type, to follow the given
+   * steps. */
+  private Core.Scan scan(List<Core.FromStep> steps, Core.Exp exp) {
+    final ListType listType = (ListType) exp.type;
+    final String name = typeSystem.nameGenerator.getTemporary();
+    final Core.IdPat id =
+        core.idPat(listType.elementType, name, typeSystem.nameGenerator);
+    final List<Binding> bindings = new ArrayList<>(core.lastBindings(steps));
+    Compiles.acceptBinding(typeSystem, id, bindings);
+    return core.scan(Op.INNER_JOIN, bindings, id, exp, core.boolLiteral(true));
+  }
+
   @Override public Core.Exp visit(Core.From from) {
     final Core.From from2 = (Core.From) super.visit(from);
     if (from2.steps.size() > 0) {
       final Core.FromStep step = from2.steps.get(0);
       if (step instanceof Core.Scan
           && ((Core.Scan) step).exp.op == Op.FROM
-          && ((Core.Scan) step).pat.op == Op.ID_PAT) {
+          && ((Core.Scan) step).pat.op == Op.ID_PAT
+          && Compiler.conjunctions(((Core.Scan) step).condition).isEmpty()) {
         final Core.From from3 = (Core.From) ((Core.Scan) step).exp;
         final Core.IdPat idPat3 = (Core.IdPat) ((Core.Scan) step).pat;
+        if (from2.steps.size() == 1) {
+          // "from e in (from ...)" has the same rows as "from ..."
+          return from3;
+        }
+        if (fuseOnly
+            && !allSafe(Util.skip(from2.steps))
+            && !allSafe(Util.skip(from3.steps))) {
+          // Fused, the steps of both would be evaluated for each row in
+          // turn; if both may fail, a different exception may be raised.
+          return from2;
+        }
         final List<Core.FromStep> steps = new ArrayList<>(from3.steps);
         final Core.Exp exp;
         if (steps.isEmpty()) {
@@ -143,19 +608,75 @@ public class Relationalizer extends EnvShuttle {
         } else {
           exp = core.implicitYieldExp(typeSystem, from3.steps);
         }
+        if (exp.op == Op.ID
+            && ((Core.Id) exp).idPat.name.equals(idPat3.name)
+            && exp.type.equals(idPat3.type)
+            && core.lastBindings(steps).size() == 1
+            && core.lastBindings(steps).get(0).id.equals(
+                ((Core.Id) exp).idPat)) {
+          // The yield would be "yield {e = e}", binding a variable of the
+          // same name and value as the only variable of the inner "from";
+          // leave it out, and make the later steps use that variable.
+          steps.addAll(
+              rename(Util.skip(from2.steps), idPat3, ((Core.Id) exp).idPat));
+          return core.from(typeSystem, steps);
+        }
         final ImmutableSortedMap.Builder<String, Type> argNameTypes =
             ImmutableSortedMap.orderedBy(RecordType.ORDERING);
         RecordLikeType recordType =
             typeSystem.recordType(argNameTypes
                 .put(idPat3.name, exp.type).build());
+        // The later steps reference the variable of the scan, so the
+        // yield must bind the same variable.
         steps.add(
-            core.yield_(typeSystem, core.tuple(recordType, exp)));
+            core.yield_(ImmutableList.of(Binding.of(idPat3)),
+                core.tuple(recordType, exp)));
         steps.addAll(Util.skip(from2.steps));
         return core.from(typeSystem, steps);
       }
     }
     return from2;
   }
+
+  /** Replaces a variable in the expressions and bindings of a list of
+   * steps. */
+  private List<Core.FromStep> rename(List<Core.FromStep> steps,
+      Core.IdPat idPat, Core.IdPat idPat2) {
+    final Shuttle shuttle = new Shuttle(typeSystem) {
+      @Override protected Core.Exp visit(Core.Id id) {
+        return id.idPat.equals(idPat) ? core.id(idPat2) : id;
+      }
+
+      @Override protected Core.Scan visit(Core.Scan scan) {
+        return scan.copy(rename(scan.bindings), scan.pat,
+            scan.exp.accept(this),
+            scan.condition == null ? null : scan.condition.accept(this));
+      }
+
+      @Override protected Core.Where visit(Core.Where where) {
+        return where.copy(where.exp.accept(this), rename(where.bindings));
+      }
+
+      @Override protected Core.Order visit(Core.Order order) {
+        return order.copy(rename(order.bindings),
+            visitList(order.orderItems));
+      }
+
+      @Override protected Core.Yield visit(Core.Yield yield) {
+        return yield.copy(rename(yield.bindings), yield.exp.accept(this));
+      }
+
+      private List<Binding> rename(List<Binding> bindings) {
+        final List<Binding> bindings2 = new ArrayList<>();
+        bindings.forEach(b ->
+            bindings2.add(b.id.equals(idPat) ? Binding.of(idPat2) : b));
+        return bindings2;
+      }
+    };
+    final List<Core.FromStep> steps2 = new ArrayList<>();
+    steps.forEach(step -> steps2.add(step.accept(shuttle)));
+    return steps2;
+  }
 }
 
 // End Relationalizer.java
@@ -0,0 +1,340 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.compile;
+
+import net.hydromatic.morel.ast.Core;
+import net.hydromatic.morel.ast.Op;
+import net.hydromatic.morel.ast.Shuttle;
+import net.hydromatic.morel.foreign.RelList;
+import net.hydromatic.morel.type.Binding;
+import net.hydromatic.morel.type.TypeSystem;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.apache.calcite.util.Util;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static net.hydromatic.morel.ast.CoreBuilder.core;
+
+/**
+ * Shuttle that reorders the scans at the start of a {@link Core.From} into
+ * the order that has the least estimated cost.
+ *
+ * <p>The size of a collection is known if it is a list literal, a value
+ * (such as a list bound by an earlier declaration), or a table in a foreign
+ * schema, for which we use the row count estimated by Calcite's
+ * metadata.
+ *
+ * <p>A {@code from} with several scans returns its rows in the order of
+ * nested loops, with the first scan outermost. Reordering the scans
+ * changes the order of the rows, so we only reorder a {@code from} whose
+ * consumer ignores order, such as {@code count}, {@code exists} or the
+ * right-hand side of {@code elem}.
+ */
+public class ScanReorderer extends Shuttle {
+  /** Functions whose result does not depend on the order of the elements
+   * of their list argument. */
+  private static final Set<BuiltIn> ORDER_INSENSITIVE =
+      ImmutableSet.of(BuiltIn.RELATIONAL_COUNT, BuiltIn.RELATIONAL_EXISTS,
+          BuiltIn.RELATIONAL_NOT_EXISTS, BuiltIn.LIST_NULL,
+          BuiltIn.LIST_LENGTH);
+
+  /** Maximum number of scans to reorder; we consider every order, so the
+   * effort grows factorially. */
+  private static final int MAX_SCANS = 6;
+
+  /** Estimated fraction of the rows of a scan that satisfy a condition that
+   * references only that scan. */
+  private static final double SELECTIVITY = 0.5d;
+
+  /** Private constructor. */
+  private ScanReorderer(TypeSystem typeSystem) {
+    super(typeSystem);
+  }
+
+  /** Creates a ScanReorderer. */
+  public static ScanReorderer of(TypeSystem typeSystem) {
+    return new ScanReorderer(typeSystem);
+  }
+
+  @Override protected Core.Exp visit(Core.Apply apply) {
+    final Core.Apply apply2 = (Core.Apply) super.visit(apply);
+    if (apply2.fn.op != Op.FN_LITERAL) {
+      return apply2;
+    }
+    final BuiltIn builtIn = (BuiltIn) ((Core.Literal) apply2.fn).value;
+    if (ORDER_INSENSITIVE.contains(builtIn)
+        && apply2.arg.op == Op.FROM) {
+      return apply2.copy(apply2.fn, reorder((Core.From) apply2.arg));
+    }
+    if ((builtIn == BuiltIn.OP_ELEM || builtIn == BuiltIn.OP_NOT_ELEM)
+        && apply2.arg.op == Op.TUPLE
+        && ((Core.Tuple) apply2.arg).args.get(1).op == Op.FROM) {
+      final Core.Tuple tuple = (Core.Tuple) apply2.arg;
+      final Core.Exp from = reorder((Core.From) tuple.args.get(1));
+      return apply2.copy(apply2.fn,
+          tuple.copy(typeSystem, ImmutableList.of(tuple.args.get(0), from)));
+    }
+    return apply2;
+  }
+
+  /** Reorders the leading scans of a {@code from} expression into the order
+   * of least estimated cost; returns the expression unchanged if they
+   * cannot be reordered, or their sizes are not known. */
+  private Core.Exp reorder(Core.From from) {
+    int n = 0;
+    while (n < from.steps.size()
+        && from.steps.get(n).op == Op.INNER_JOIN
+        && Compiler.conjunctions(((Core.Scan) from.steps.get(n)).condition)
+            .isEmpty()) {
+      ++n;
+    }
+    if (n < 2 || n > MAX_SCANS) {
+      return from;
+    }
+    final List<Core.FromStep> scans = new ArrayList<>();
+    scans.addAll(from.steps.subList(0, n));
+    final List<Binding> lastBindings = scans.get(n - 1).bindings;
+    final Set<Core.IdPat> vars = new HashSet<>();
+    lastBindings.forEach(b -> vars.add(b.id));
+    final List<Set<Core.IdPat>> scanVars = new ArrayList<>();
+    final List<Double> sizes = new ArrayList<>();
+    for (Core.FromStep step : scans) {
+      final Core.Scan scan = (Core.Scan) step;
+      // The scans must not depend on each other, and because each scan's
+      // collection will be evaluated a different number of times, it must
+      // not fail.
+      final Double size = size(scan.exp);
+      if (size == null
+          || !Hoister.isSafe(scan.exp)
+          || !Collections.disjoint(Compiler.references(scan.exp), vars)) {
+        return from;
+      }
+      sizes.add(size);
+      final List<Binding> patBindings = new ArrayList<>();
+      Compiles.acceptBinding(typeSystem, scan.pat, patBindings);
+      final Set<Core.IdPat> patVars = new HashSet<>();
+      patBindings.forEach(b -> patVars.add(b.id));
+      scanVars.add(patVars);
+    }
+
+    // Conditions in the 'where' steps that follow the scans. A condition on
+    // just one scan reduces its size; a condition "x = y" between two scans
+    // allows a hash join.
+    final List<Core.Exp> conditions = new ArrayList<>();
+    for (Core.FromStep step : Util.skip(from.steps, n)) {
+      if (step.op != Op.WHERE) {
+        break;
+      }
+      conditions.addAll(Compiler.conjunctions(((Core.Where) step).exp));
+    }
+    for (Core.Exp condition : conditions) {
+      final Set<Core.IdPat> refs = Compiler.references(condition);
+      refs.retainAll(vars);
+      for (int i = 0; i < n; i++) {
+        if (!refs.isEmpty() && scanVars.get(i).containsAll(refs)) {
+          sizes.set(i, sizes.get(i) * SELECTIVITY);
+        }
+      }
+    }
+
+    final Estimator estimator =
+        new Estimator(sizes, scanVars, conditions, vars);
+    final List<Integer> order = estimator.best();
+    if (isIdentity(order)) {
+      return from;
+    }
+
+    // Scans in the new order, then the 'where' steps that follow them (which
+    // see the same variables, in a different order), then a 'yield' that
+    // restores the original layout for the remaining steps (if any).
+    final List<Core.FromStep> steps = new ArrayList<>();
+    final List<Binding> bindings = new ArrayList<>();
+    for (int i : order) {
+      final Core.Scan scan = (Core.Scan) scans.get(i);
+      Compiles.acceptBinding(typeSystem, scan.pat, bindings);
+      steps.add(
+          core.scan(scan.op, bindings, scan.pat, scan.exp, scan.condition));
+    }
+    int w = n;
+    while (w < from.steps.size() && from.steps.get(w).op == Op.WHERE) {
+      final Core.Where where = (Core.Where) from.steps.get(w++);
+      steps.add(where.copy(where.exp, bindings));
+    }
+    if (w < from.steps.size()) {
+      if (lastBindings.size() < 2) {
+        return from; // the yield would not be a record
+      }
+      steps.add(
+          core.yield_(lastBindings,
+              core.implicitYieldExp(typeSystem, scans)));
+      steps.addAll(from.steps.subList(w, from.steps.size()));
+    }
+    return from.copy(typeSystem, steps);
+  }
+
+  private static boolean isIdentity(List<Integer> order) {
+    for (int i = 0; i < order.size(); i++) {
+      if (order.get(i) != i) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Estimates the cost of each order of the scans, and finds the
+   * cheapest. */
+  private static class Estimator {
+    final List<Double> sizes;
+    final List<Set<Core.IdPat>> scanVars;
+    final List<Core.Exp> conditions;
+    final Set<Core.IdPat> vars;
+    List<Integer> bestOrder;
+    double bestCost = Double.MAX_VALUE;
+
+    Estimator(List<Double> sizes, List<Set<Core.IdPat>> scanVars,
+        List<Core.Exp> conditions, Set<Core.IdPat> vars) {
+      this.sizes = sizes;
+      this.scanVars = scanVars;
+      this.conditions = conditions;
+      this.vars = vars;
+    }
+
+    /** Returns the cheapest order; if several orders have the same cost,
+     * the one closest to the original order. */
+    List<Integer> best() {
+      permute(new ArrayList<>());
+      return bestOrder;
+    }
+
+    private void permute(List<Integer> order) {
+      if (order.size() == sizes.size()) {
+        final double cost = cost(order);
+        if (cost < bestCost) {
+          bestCost = cost;
+          bestOrder = new ArrayList<>(order);
+        }
+        return;
+      }
+      for (int i = 0; i < sizes.size(); i++) {
+        if (!order.contains(i)) {
+          order.add(i);
+          permute(order);
+          order.remove(order.size() - 1);
+        }
+      }
+    }
+
+    /** Estimates the cost of evaluating scans in a given order. Without a
+     * join key, a scan reads each element of its collection once per row
+     * of the previous scans. With a join key, a scan reads its collection
+     * once (into a hash table), and probes the table once per row. */
+    private double cost(List<Integer> order) {
+      final Set<Core.IdPat> previousVars = new HashSet<>();
+      double rows = 1;
+      double cost = 0;
+      for (int i : order) {
+        final double size = sizes.get(i);
+        if (!previousVars.isEmpty()
+            && hasJoinKey(scanVars.get(i), previousVars)) {
+          cost += size + rows;
+          rows = Math.max(rows, size);
+        } else {
+          cost += rows * size;
+          rows *= size;
+        }
+        previousVars.addAll(scanVars.get(i));
+      }
+      return cost;
+    }
+
+    /** Returns whether there is a condition "x = y" where "x" references
+     * only the variables of a scan, and "y" only the variables of the
+     * previous scans. */
+    private boolean hasJoinKey(Set<Core.IdPat> innerVars,
+        Set<Core.IdPat> outerVars) {
+      for (Core.Exp condition : conditions) {
+        if (condition.op == Op.APPLY
+            && ((Core.Apply) condition).fn.op == Op.FN_LITERAL
+            && ((Core.Literal) ((Core.Apply) condition).fn).value
+                == BuiltIn.OP_EQ
+            && ((Core.Apply) condition).arg.op == Op.TUPLE) {
+          final List<Core.Exp> args =
+              ((Core.Tuple) ((Core.Apply) condition).arg).args;
+          final Set<Core.IdPat> refs0 = refs(args.get(0));
+          final Set<Core.IdPat> refs1 = refs(args.get(1));
+          if (isKey(refs0, innerVars) && isKey(refs1, outerVars)
+              || isKey(refs1, innerVars) && isKey(refs0, outerVars)) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    private Set<Core.IdPat> refs(Core.Exp exp) {
+      final Set<Core.IdPat> refs = Compiler.references(exp);
+      refs.retainAll(vars);
+      return refs;
+    }
+
+    private static boolean isKey(Set<Core.IdPat> refs,
+        Set<Core.IdPat> scanVars) {
+      return !refs.isEmpty() && scanVars.containsAll(refs);
+    }
+  }
+
+  /** Returns the number of elements in a collection, or an estimate, or
+   * null if not known. */
+  private static @Nullable Double size(Core.Exp exp) {
+    switch (exp.op) {
+    case VALUE_LITERAL:
+      final Object value = ((Core.Literal) exp).unwrap();
+      if (value instanceof RelList) {
+        return ((RelList) value).estimateRowCount();
+      }
+      if (value instanceof Collection) {
+        return (double) ((Collection) value).size();
+      }
+      return null;
+
+    case APPLY:
+      final Core.Apply apply = (Core.Apply) exp;
+      if (apply.fn.op == Op.FN_LITERAL
+          && ((Core.Literal) apply.fn).value == BuiltIn.Z_LIST) {
+        return apply.arg.op == Op.TUPLE
+            ? (double) ((Core.Tuple) apply.arg).args.size()
+            : 1d;
+      }
+      return null;
+
+    default:
+      return null;
+    }
+  }
+}
+
+// End ScanReorderer.java
@@ -0,0 +1,46 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.eval;
+
+/** Computes an aggregate function incrementally, one row at a time.
+ *
+ * <p>{@link #init} creates the state for an empty group; {@link #add} folds
+ * each row's value into the state; {@link #result} converts the state into
+ * the value of the aggregate function. Two states computed over disjoint
+ * sets of rows can be combined by {@link #merge}.
+ *
+ * <p>A state may be immutable (in which case {@code add} and {@code merge}
+ * return a new state) or mutable (in which case they may modify and return
+ * their first argument). Callers must use the returned state. */
+public interface Accumulator extends Describable {
+  /** Returns the state for an empty group. */
+  Object init();
+
+  /** Adds a value to a state, and returns the new state. */
+  Object add(Object state, Object value);
+
+  /** Combines two states, and returns the combined state. The rows of
+   * {@code state0} are considered to precede those of {@code state1}. */
+  Object merge(Object state0, Object state1);
+
+  /** Returns the value of the aggregate function. */
+  Object result(EvalEnv env, Object state);
+}
+
+// End Accumulator.java
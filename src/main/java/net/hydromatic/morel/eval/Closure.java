@@ -22,9 +22,7 @@ import net.hydromatic.morel.ast.Core;
 import net.hydromatic.morel.util.Pair;
 
 import com.google.common.collect.ImmutableList;
-import org.apache.calcite.util.Util;
 
-import java.math.BigDecimal;
 import java.util.List;
 
 import static java.util.Objects.requireNonNull;
@@ -47,11 +45,32 @@ public class Closure implements Comparable<Closure>, Applicable {
    * code {@code "no"}. */
   private final ImmutableList<Pair<Core.Pat, Code>> patCodes;
 
+  /** The patterns in {@link #patCodes}, compiled. */
+  private final Matchers.MatchTree matchTree;
+
   /** Not a public API. */
   public Closure(EvalEnv evalEnv,
       ImmutableList<Pair<Core.Pat, Code>> patCodes) {
+    this(evalEnv, patCodes, matchTree(patCodes));
+  }
+
+  /** Not a public API.
+   *
+   * <p>Use this constructor if you can compute {@code matchTree} once (say at
+   * compile time) rather than each time a closure is created. */
+  public Closure(EvalEnv evalEnv,
+      ImmutableList<Pair<Core.Pat, Code>> patCodes,
+      Matchers.MatchTree matchTree) {
     this.evalEnv = requireNonNull(evalEnv).fix();
     this.patCodes = requireNonNull(patCodes);
+    this.matchTree = requireNonNull(matchTree);
+    assert matchTree.size() == patCodes.size();
+  }
+
+  /** Compiles the patterns of a list of (pattern, code) pairs. */
+  public static Matchers.MatchTree matchTree(
+      List<Pair<Core.Pat, Code>> patCodes) {
+    return Matchers.matchTree(Pair.left(patCodes));
   }
 
   @Override public String toString() {
@@ -71,11 +90,10 @@ public class Closure implements Comparable<Closure>, Applicable {
    * when you invoke {@code (fn (x, y) => x + y) (3, 4)}, the binder
    * sets {@code x} to 3 and {@code y} to 4. */
   EvalEnv bind(Object argValue) {
-    final EvalEnv[] envRef = {evalEnv};
-    for (Pair<Core.Pat, Code> patCode : patCodes) {
-      final Core.Pat pat = patCode.left;
-      if (bindRecurse(pat, envRef, argValue)) {
-        return envRef[0];
+    for (int i : matchTree.candidates(argValue)) {
+      final EvalEnv env = matchTree.bind(i, evalEnv, argValue);
+      if (env != null) {
+        return env;
       }
     }
     throw new AssertionError("no match");
@@ -83,12 +101,12 @@ public class Closure implements Comparable<Closure>, Applicable {
 
   /** Similar to {@link #bind}, but evaluates an expression first. */
   EvalEnv evalBind(EvalEnv env) {
-    final EvalEnv[] envRef = {evalEnv};
-    for (Pair<Core.Pat, Code> patCode : patCodes) {
+    for (int i = 0; i < patCodes.size(); i++) {
+      final Pair<Core.Pat, Code> patCode = patCodes.get(i);
       final Object argValue = patCode.right.eval(env);
-      final Core.Pat pat = patCode.left;
-      if (bindRecurse(pat, envRef, argValue)) {
-        return envRef[0];
+      final EvalEnv env2 = matchTree.bind(i, evalEnv, argValue);
+      if (env2 != null) {
+        return env2;
       }
     }
     throw new AssertionError("no match");
@@ -96,111 +114,46 @@ public class Closure implements Comparable<Closure>, Applicable {
 
   /** Similar to {@link #bind}, but also evaluates. */
   Object bindEval(Object argValue) {
-    final EvalEnv[] envRef = {evalEnv};
-    for (Pair<Core.Pat, Code> patCode : patCodes) {
-      final Core.Pat pat = patCode.left;
-      if (bindRecurse(pat, envRef, argValue)) {
-        final Code code = patCode.right;
-        return code.eval(envRef[0]);
+    for (int i : matchTree.candidates(argValue)) {
+      final EvalEnv env = matchTree.bind(i, evalEnv, argValue);
+      if (env != null) {
+        return patCodes.get(i).right.eval(env);
       }
     }
     throw new AssertionError("no match: " + Pair.left(patCodes));
   }
 
+  /** {@inheritDoc}
+   *
+   * <p>If the body returns a {@link TailCall}, executes it, and repeats until
+   * the result is a value. Thus a chain of tail calls uses a constant amount
+   * of stack. */
   @Override public Object apply(EvalEnv env, Object argValue) {
-    return bindEval(argValue);
+    Object o = bindEval(argValue);
+    while (o instanceof TailCall) {
+      final TailCall tailCall = (TailCall) o;
+      o = tailCall.closure.bindEval(tailCall.argValue);
+    }
+    return o;
   }
 
   @Override public Describer describe(Describer describer) {
     return describer.start("closure", d -> {});
   }
 
-  private boolean bindRecurse(Core.Pat pat, EvalEnv[] envRef,
-      Object argValue) {
-    final List<Object> listValue;
-    final Core.LiteralPat literalPat;
-    switch (pat.op) {
-    case ID_PAT:
-      final Core.IdPat idPat = (Core.IdPat) pat;
-      envRef[0] = envRef[0].bind(idPat.name, argValue);
-      return true;
-
-    case WILDCARD_PAT:
-      return true;
-
-    case BOOL_LITERAL_PAT:
-    case CHAR_LITERAL_PAT:
-    case STRING_LITERAL_PAT:
-      literalPat = (Core.LiteralPat) pat;
-      return literalPat.value.equals(argValue);
-
-    case INT_LITERAL_PAT:
-      literalPat = (Core.LiteralPat) pat;
-      return ((BigDecimal) literalPat.value).intValue() == (Integer) argValue;
-
-    case REAL_LITERAL_PAT:
-      literalPat = (Core.LiteralPat) pat;
-      return ((BigDecimal) literalPat.value).doubleValue() == (Double) argValue;
-
-    case TUPLE_PAT:
-      final Core.TuplePat tuplePat = (Core.TuplePat) pat;
-      listValue = (List) argValue;
-      for (Pair<Core.Pat, Object> pair : Pair.zip(tuplePat.args, listValue)) {
-        if (!bindRecurse(pair.left, envRef, pair.right)) {
-          return false;
-        }
-      }
-      return true;
-
-    case RECORD_PAT:
-      final Core.RecordPat recordPat = (Core.RecordPat) pat;
-      listValue = (List) argValue;
-      for (Pair<Core.Pat, Object> pair : Pair.zip(recordPat.args, listValue)) {
-        if (!bindRecurse(pair.left, envRef, pair.right)) {
-          return false;
-        }
-      }
-      return true;
-
-    case LIST_PAT:
-      final Core.ListPat listPat = (Core.ListPat) pat;
-      listValue = (List) argValue;
-      if (listValue.size() != listPat.args.size()) {
-        return false;
-      }
-      for (Pair<Core.Pat, Object> pair : Pair.zip(listPat.args, listValue)) {
-        if (!bindRecurse(pair.left, envRef, pair.right)) {
-          return false;
-        }
-      }
-      return true;
-
-    case CONS_PAT:
-      final Core.ConPat consPat = (Core.ConPat) pat;
-      @SuppressWarnings("unchecked") final List<Object> consValue =
-          (List) argValue;
-      if (consValue.isEmpty()) {
-        return false;
-      }
-      final Object head = consValue.get(0);
-      final List<Object> tail = Util.skip(consValue);
-      List<Core.Pat> patArgs = ((Core.TuplePat) consPat.pat).args;
-      return bindRecurse(patArgs.get(0), envRef, head)
-          && bindRecurse(patArgs.get(1), envRef, tail);
-
-    case CON0_PAT:
-      final Core.Con0Pat con0Pat = (Core.Con0Pat) pat;
-      final List con0Value = (List) argValue;
-      return con0Value.get(0).equals(con0Pat.tyCon);
-
-    case CON_PAT:
-      final Core.ConPat conPat = (Core.ConPat) pat;
-      final List conValue = (List) argValue;
-      return conValue.get(0).equals(conPat.tyCon)
-          && bindRecurse(conPat.pat, envRef, conValue.get(1));
-
-    default:
-      throw new AssertionError("cannot compile " + pat.op + ": " + pat);
+  /** Call to a closure that has not been executed yet.
+   *
+   * <p>Code in tail position in the body of a closure returns a
+   * {@code TailCall} rather than calling the closure; see
+   * {@link Codes#tailCall(Code)}. It is never visible outside
+   * {@link Closure#apply(EvalEnv, Object)}. */
+  static final class TailCall {
+    final Closure closure;
+    final Object argValue;
+
+    TailCall(Closure closure, Object argValue) {
+      this.closure = requireNonNull(closure);
+      this.argValue = argValue;
     }
   }
 }
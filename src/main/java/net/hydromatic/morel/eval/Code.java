@@ -22,6 +22,24 @@ package net.hydromatic.morel.eval;
 public interface Code extends Describable {
   Object eval(EvalEnv evalEnv);
 
+  /** Evaluates code whose value is an {@code int}.
+   *
+   * <p>The default implementation unboxes the result of {@link #eval};
+   * implementations that compute an {@code int} should override, to avoid
+   * boxing. */
+  default int evalInt(EvalEnv evalEnv) {
+    return (Integer) eval(evalEnv);
+  }
+
+  /** Evaluates code whose value is a {@code real}.
+   *
+   * <p>The default implementation unboxes the result of {@link #eval};
+   * implementations that compute a {@code real} should override, to avoid
+   * boxing. */
+  default float evalReal(EvalEnv evalEnv) {
+    return (Float) eval(evalEnv);
+  }
+
   default boolean isConstant() {
     return false;
   }
@@ -24,35 +24,53 @@ import net.hydromatic.morel.compile.BuiltIn;
 import net.hydromatic.morel.compile.Environment;
 import net.hydromatic.morel.compile.Macro;
 import net.hydromatic.morel.type.Binding;
+import net.hydromatic.morel.type.DataType;
 import net.hydromatic.morel.type.ListType;
 import net.hydromatic.morel.type.PrimitiveType;
 import net.hydromatic.morel.type.TupleType;
 import net.hydromatic.morel.type.Type;
 import net.hydromatic.morel.type.TypeSystem;
-import net.hydromatic.morel.util.MapList;
+import net.hydromatic.morel.util.CharList;
+import net.hydromatic.morel.util.LazyList;
 import net.hydromatic.morel.util.Ord;
 import net.hydromatic.morel.util.Pair;
+import net.hydromatic.morel.util.PersistentList;
+import net.hydromatic.morel.util.PersistentVector;
+import net.hydromatic.morel.util.TyConValue;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Multimaps;
 import com.google.common.collect.Ordering;
 import com.google.common.primitives.Chars;
 import org.apache.calcite.runtime.FlatLists;
+import org.apache.calcite.util.Util;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntBinaryOperator;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
@@ -74,9 +92,12 @@ public abstract class Codes {
   }
 
   /** Value of {@code NONE}.
+   *
+   * <p>Ordinals of type constructors are their position in alphabetical
+   * order: in {@code option}, {@code NONE} is 0 and {@code SOME} is 1.
    *
    * @see #optionSome(Object) */
-  private static final List OPTION_NONE = ImmutableList.of("NONE");
+  private static final List OPTION_NONE = TyConValue.of(0, "NONE");
 
   /** Returns a Code that evaluates to the same value in all environments. */
   public static Code constant(Object value) {
@@ -325,14 +346,21 @@ public abstract class Codes {
         }
       };
 
+  /** Returns a Code that concatenates strings.
+   *
+   * <p>It evaluates each operand, then copies each into one buffer of the
+   * right size. The equivalent calls to {@link #OP_CARET},
+   * {@code (a ^ b) ^ c}, would copy {@code a} twice. */
+  public static Code concat(List<Code> codes) {
+    return new ConcatCode(ImmutableList.copyOf(codes));
+  }
+
   /** @see BuiltIn#OP_CONS */
   private static final Applicable OP_CONS =
       new ApplicableImpl(BuiltIn.OP_CONS) {
         @Override public Object apply(EvalEnv env, Object arg) {
           final List list = (List) arg;
-          return ImmutableList.builder().add(list.get(0))
-              .addAll((Iterable) list.get(1))
-              .build();
+          return PersistentList.cons(list.get(0), (List) list.get(1));
         }
       };
 
@@ -341,13 +369,9 @@ public abstract class Codes {
       new ApplicableImpl(BuiltIn.OP_EXCEPT) {
         @Override public Object apply(EvalEnv env, Object arg) {
           final List list = (List) arg;
-          final List list0 = (List) list.get(0);
-          List collection = new ArrayList(list0);
-          final Set set = new HashSet((List) list.get(1));
-          if (!collection.removeAll(set)) {
-            collection = list0;
-          }
-          return ImmutableList.copyOf(collection);
+          return filter((List<Object>) list.get(0),
+              setOp(BuiltIn.OP_EXCEPT, (List) list.get(0),
+                  (List) list.get(1)));
         }
       };
 
@@ -356,16 +380,91 @@ public abstract class Codes {
       new ApplicableImpl(BuiltIn.OP_INTERSECT) {
         @Override public Object apply(EvalEnv env, Object arg) {
           final List list = (List) arg;
-          final List list0 = (List) list.get(0);
-          List collection = new ArrayList(list0);
-          final Set set = new HashSet((List) list.get(1));
-          if (!collection.retainAll(set)) {
-            collection = list0;
-          }
-          return ImmutableList.copyOf(collection);
+          return filter((List<Object>) list.get(0),
+              setOp(BuiltIn.OP_INTERSECT, (List) list.get(0),
+                  (List) list.get(1)));
         }
       };
 
+  /** Returns a predicate that returns whether an element of {@code list0}
+   * belongs in the result of {@code list0 except list1} or
+   * {@code list0 intersect list1}.
+   *
+   * <p>Builds a hash set from the smaller of the two lists. If
+   * {@code list1} is smaller, the set contains its elements. Otherwise the
+   * set starts with the distinct elements of {@code list0}, and a pass over
+   * {@code list1} moves to a second set those that occur in it. */
+  private static Predicate<Object> setOp(BuiltIn builtIn, List<Object> list0,
+      List<Object> list1) {
+    final boolean except = builtIn == BuiltIn.OP_EXCEPT;
+    if (list0.isEmpty() || list1.isEmpty()) {
+      return o -> except;
+    }
+    final Set<Object> found;
+    if (list1.size() <= list0.size()) {
+      found = new HashSet<>(list1);
+    } else {
+      final Set<Object> candidates = new HashSet<>(list0);
+      found = new HashSet<>();
+      for (Object o : list1) {
+        if (candidates.remove(o)) {
+          found.add(o);
+          if (candidates.isEmpty()) {
+            break;
+          }
+        }
+      }
+    }
+    return except ? o -> !found.contains(o) : found::contains;
+  }
+
+  /** Returns the elements of a list that satisfy a predicate. Returns the
+   * list itself if they all do. */
+  private static List<Object> filter(List<Object> list,
+      Predicate<Object> predicate) {
+    final ImmutableList.Builder<Object> b = ImmutableList.builder();
+    int count = 0;
+    for (Object o : list) {
+      if (predicate.test(o)) {
+        b.add(o);
+        ++count;
+      }
+    }
+    return count == list.size() ? list : b.build();
+  }
+
+  /** Returns a Code that evaluates {@code union}, {@code except} or
+   * {@code intersect} as the collection of a scan in a {@code from}
+   * expression.
+   *
+   * <p>The result is an {@link Iterable} that reads the elements of the
+   * left-hand list (and for {@code union}, the right-hand list) as the scan
+   * requests them, rather than copying them into a new list.
+   *
+   * @param builtIn Operator
+   * @param code0 Code for the left-hand list
+   * @param code1 Code for the right-hand list
+   * @param code Code for the whole expression; used only to describe
+   */
+  public static Code setOpScan(BuiltIn builtIn, Code code0, Code code1,
+      Code code) {
+    return new Code() {
+      @Override public Describer describe(Describer describer) {
+        return code.describe(describer);
+      }
+
+      @SuppressWarnings("unchecked")
+      @Override public Object eval(EvalEnv env) {
+        final List<Object> list0 = (List<Object>) code0.eval(env);
+        final List<Object> list1 = (List<Object>) code1.eval(env);
+        if (builtIn == BuiltIn.OP_UNION) {
+          return Iterables.concat(list0, list1);
+        }
+        return Iterables.filter(list0, setOp(builtIn, list0, list1)::test);
+      }
+    };
+  }
+
   /** @see BuiltIn#OP_UNION */
   private static final Applicable OP_UNION = union(BuiltIn.OP_UNION);
 
@@ -375,6 +474,16 @@ public abstract class Codes {
     return new GetCode(name);
   }
 
+  /** Returns a Code that returns the value of variable "name", which the
+   * compiler has determined is in slot {@code slot} of the frame that is
+   * {@code depth} frames out from the current environment.
+   *
+   * <p>Equivalent to {@link #get(String)}, but does not need to search the
+   * environment. */
+  public static Code get(String name, int depth, int slot) {
+    return new SlotGetCode(name, depth, slot);
+  }
+
   /** Returns a Code that returns a tuple consisting of the values of variables
    * "name0", ... "nameN" in the current environment. */
   public static Code getTuple(Iterable<String> names) {
@@ -403,14 +512,375 @@ public abstract class Codes {
    * argument. */
   public static Code apply(Code fnCode, Code argCode) {
     assert !fnCode.isConstant(); // if constant, use "apply(Closure, Code)"
+    if (fnCode instanceof ApplyCode) {
+      // A curried function such as "List.find f" that consumes only as
+      // much of its list argument as it needs.
+      final BuiltIn builtIn = BUILT_IN_MAP.get(((ApplyCode) fnCode).fnValue);
+      if (builtIn != null) {
+        switch (builtIn) {
+        case LIST_ALL:
+        case LIST_APP:
+        case LIST_EXISTS:
+        case LIST_FIND:
+          argCode = stream(argCode);
+        }
+      }
+    } else if (fnCode instanceof ApplyCodeCode
+        && ((ApplyCodeCode) fnCode).fnCode instanceof ApplyCode) {
+      // A curried function such as "List.foldl f z" that reads each element
+      // of its list argument once.
+      final ApplyCode applyCode = (ApplyCode) ((ApplyCodeCode) fnCode).fnCode;
+      if (BUILT_IN_MAP.get(applyCode.fnValue) == BuiltIn.LIST_FOLDL) {
+        argCode = stream(argCode);
+      }
+    }
     return new ApplyCodeCode(fnCode, argCode);
   }
 
   /** Generates the code for applying a function value to an argument. */
   public static Code apply(Applicable fnValue, Code argCode) {
+    final BuiltIn builtIn = BUILT_IN_MAP.get(fnValue);
+    if (builtIn != null) {
+      switch (builtIn) {
+      case LIST_HD:
+      case LIST_NULL:
+      case RELATIONAL_EXISTS:
+      case RELATIONAL_NOT_EXISTS:
+        // These functions consume only a prefix of their argument, and
+        // do not retain it.
+        argCode = lazy(argCode, 1);
+        break;
+      case RELATIONAL_ONLY:
+        // Needs to know whether there is more than one row.
+        argCode = lazy(argCode, 2);
+        break;
+      case LIST_LENGTH:
+      case RELATIONAL_COUNT:
+      case Z_SUM_INT:
+      case Z_SUM_REAL:
+        // Read each row once, and do not retain it.
+        argCode = stream(argCode);
+        break;
+      case LIST_NTH:
+      case LIST_TAKE:
+        // Argument is a tuple (list, n).
+        if (argCode instanceof TupleCode
+            && isFrom(((TupleCode) argCode).codes.get(0))) {
+          argCode =
+              new LazyPrefixCode((TupleCode) argCode,
+                  builtIn == BuiltIn.LIST_NTH ? 1 : 0);
+        }
+        break;
+      }
+    }
     return new ApplyCode(fnValue, argCode);
   }
 
+  /** If {@code code} is a {@code from} expression, returns a code that
+   * evaluates it lazily; otherwise returns {@code code} unchanged.
+   *
+   * <p>The lazy list may refer to the environment after the code has
+   * finished evaluating, and the environment may have changed by then (for
+   * instance, a {@code from} nested inside another {@code from} refers to
+   * the variables of the current row of the outer one). Therefore, only use
+   * this for the argument of a function that has finished with the list by
+   * the time it returns. */
+  private static Code lazy(Code code, int limit) {
+    if (isFrom(code)) {
+      return new Code() {
+        @Override public Describer describe(Describer describer) {
+          return code.describe(describer);
+        }
+
+        @Override public Object eval(EvalEnv env) {
+          return evalLazy(code, env, limit);
+        }
+      };
+    }
+    return code;
+  }
+
+  /** If {@code code} is a {@code from} expression, returns a code that
+   * evaluates it to a list whose rows are computed as they are read, and
+   * are not retained; otherwise returns {@code code} unchanged.
+   *
+   * <p>The same caveats apply as for {@link #lazy(Code, int)}, and in
+   * addition, the function must read the list at most once. */
+  private static Code stream(Code code) {
+    if (isFrom(code)) {
+      return new Code() {
+        @Override public Describer describe(Describer describer) {
+          return code.describe(describer);
+        }
+
+        @Override public Object eval(EvalEnv env) {
+          return evalLazy(code, env, -1, true);
+        }
+      };
+    }
+    return code;
+  }
+
+  /** List that can be read only once, by calling {@link #iterator()} or
+   * {@link #size()}, and that does not retain its elements.
+   *
+   * <p>The argument of a function that reads each element of a list once,
+   * such as {@code List.foldl}, when that argument is a {@code from}
+   * expression. */
+  private static class StreamList extends AbstractList<Object> {
+    private @Nullable Iterator<?> iterator;
+
+    StreamList(Iterator<?> iterator) {
+      this.iterator = requireNonNull(iterator);
+    }
+
+    /** Returns the iterator; throws if it has already been returned. */
+    private Iterator<?> take() {
+      final Iterator<?> iterator = this.iterator;
+      if (iterator == null) {
+        throw new IllegalStateException("list has already been read");
+      }
+      this.iterator = null;
+      return iterator;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public Iterator<Object> iterator() {
+      return (Iterator<Object>) take();
+    }
+
+    @Override public int size() {
+      final Iterator<?> iterator = take();
+      int n = 0;
+      while (iterator.hasNext()) {
+        iterator.next();
+        ++n;
+      }
+      return n;
+    }
+
+    @Override public Object get(int index) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /** Returns whether a code is a {@code from} expression, possibly inside
+   * {@code let}s that compute values that do not depend on its rows. */
+  private static boolean isFrom(Code code) {
+    if (code instanceof Let1Code) {
+      return isFrom(((Let1Code) code).resultCode);
+    }
+    if (code instanceof LetCode) {
+      return isFrom(((LetCode) code).resultCode);
+    }
+    return code instanceof FromCode;
+  }
+
+  /** Evaluates a code for which {@link #isFrom(Code)} returned true, computing
+   * no more than {@code limit} rows of the {@code from} expression. */
+  private static Object evalLazy(Code code, EvalEnv env, int limit) {
+    return evalLazy(code, env, limit, false);
+  }
+
+  /** As {@link #evalLazy(Code, EvalEnv, int)}; if {@code stream}, the
+   * result may be a {@link StreamList}. */
+  private static Object evalLazy(Code code, EvalEnv env, int limit,
+      boolean stream) {
+    if (code instanceof Let1Code) {
+      final Let1Code let1Code = (Let1Code) code;
+      final Closure fnValue = (Closure) let1Code.matchCode.eval(env);
+      return evalLazy(let1Code.resultCode, fnValue.evalBind(env), limit,
+          stream);
+    }
+    if (code instanceof LetCode) {
+      final LetCode letCode = (LetCode) code;
+      EvalEnv env2 = env;
+      for (Code matchCode : letCode.matchCodes) {
+        final Closure fnValue = (Closure) matchCode.eval(env);
+        env2 = fnValue.evalBind(env2);
+      }
+      return evalLazy(letCode.resultCode, env2, limit, stream);
+    }
+    return ((FromCode) code).evalLazy(env, limit, stream);
+  }
+
+  /** Code that evaluates the argument {@code (list, n)} of
+   * {@link BuiltIn#LIST_TAKE} or {@link BuiltIn#LIST_NTH}, where
+   * {@code list} is a {@code from} expression, evaluating {@code n} first so
+   * that the {@code from} expression computes no more rows than needed. */
+  private static class LazyPrefixCode implements Code {
+    private final TupleCode tupleCode;
+    /** Number of rows needed beyond {@code n}: 0 for {@code take}, 1 for
+     * {@code nth}. */
+    private final int extra;
+
+    LazyPrefixCode(TupleCode tupleCode, int extra) {
+      this.tupleCode = requireNonNull(tupleCode);
+      this.extra = extra;
+    }
+
+    @Override public Describer describe(Describer describer) {
+      return tupleCode.describe(describer);
+    }
+
+    @Override public Object eval(EvalEnv env) {
+      final int n = (Integer) tupleCode.codes.get(1).eval(env);
+      final Object list =
+          evalLazy(tupleCode.codes.get(0), env, n < 0 ? -1 : n + extra);
+      return FlatLists.of(list, n);
+    }
+  }
+
+  /** Returns a Code that applies an arithmetic operator ({@code +},
+   * {@code -}, {@code *}, {@code /}, {@code div} or {@code mod}) to two
+   * {@code int} values.
+   *
+   * <p>Unlike {@link #apply(Applicable, Code)} applied to a tuple, it does
+   * not create a tuple, and if the operands are also arithmetic, it does not
+   * box their results. */
+  public static Code intArithmetic(BuiltIn builtIn, Code code0, Code code1) {
+    final IntBinaryOperator op;
+    switch (builtIn) {
+    case Z_PLUS_INT:
+      op = Integer::sum;
+      break;
+    case Z_MINUS_INT:
+      op = (a, b) -> a - b;
+      break;
+    case Z_TIMES_INT:
+      op = (a, b) -> a * b;
+      break;
+    case Z_DIVIDE_INT:
+      op = (a, b) -> a / b;
+      break;
+    case OP_DIV:
+      op = Math::floorDiv;
+      break;
+    case OP_MOD:
+      op = Math::floorMod;
+      break;
+    default:
+      throw new AssertionError("not int arithmetic: " + builtIn);
+    }
+    return new IntArithmeticCode(BUILT_IN_VALUES.get(builtIn), op, code0,
+        code1);
+  }
+
+  /** Returns a Code that applies an arithmetic operator ({@code +},
+   * {@code -}, {@code *} or {@code /}) to two {@code real} values.
+   *
+   * @see #intArithmetic(BuiltIn, Code, Code) */
+  public static Code realArithmetic(BuiltIn builtIn, Code code0, Code code1) {
+    final FloatBinaryOperator op;
+    switch (builtIn) {
+    case Z_PLUS_REAL:
+      op = Float::sum;
+      break;
+    case Z_MINUS_REAL:
+      op = (a, b) -> a - b;
+      break;
+    case Z_TIMES_REAL:
+      op = (a, b) -> a * b;
+      break;
+    case Z_DIVIDE_REAL:
+      op = (a, b) -> a / b;
+      break;
+    default:
+      throw new AssertionError("not real arithmetic: " + builtIn);
+    }
+    return new RealArithmeticCode(BUILT_IN_VALUES.get(builtIn), op, code0,
+        code1);
+  }
+
+  /** Returns a Code that compares two {@code int} values
+   * ({@code =}, {@code <>}, {@code <}, {@code <=}, {@code >} or
+   * {@code >=}).
+   *
+   * @see #intArithmetic(BuiltIn, Code, Code) */
+  public static Code intComparison(BuiltIn builtIn, Code code0, Code code1) {
+    return new IntComparisonCode(BUILT_IN_VALUES.get(builtIn),
+        Comparison.of(builtIn), code0, code1);
+  }
+
+  /** Returns a Code that compares two {@code real} values.
+   *
+   * <p>Values are compared as if by {@link Float#compareTo}, consistent
+   * with the built-in functions.
+   *
+   * @see #intComparison(BuiltIn, Code, Code) */
+  public static Code realComparison(BuiltIn builtIn, Code code0, Code code1) {
+    return new RealComparisonCode(BUILT_IN_VALUES.get(builtIn),
+        Comparison.of(builtIn), code0, code1);
+  }
+
+  /** Returns a Code that negates an {@code int} value. */
+  public static Code negateInt(Code code) {
+    return new ApplyCode(Z_NEGATE_INT, code) {
+      @Override public Object eval(EvalEnv env) {
+        return evalInt(env);
+      }
+
+      @Override public int evalInt(EvalEnv env) {
+        return -argCode.evalInt(env);
+      }
+    };
+  }
+
+  /** Returns a Code that negates a {@code real} value. */
+  public static Code negateReal(Code code) {
+    return new ApplyCode(Z_NEGATE_REAL, code) {
+      @Override public Object eval(EvalEnv env) {
+        return evalReal(env);
+      }
+
+      @Override public float evalReal(EvalEnv env) {
+        return -argCode.evalReal(env);
+      }
+    };
+  }
+
+  /** Creates a tuple or record value with the given field values.
+   *
+   * <p>Tuples and records are immutable lists. Those with up to 6 fields
+   * store their fields inline, and are comparable; wider ones are backed by
+   * a copy of the array. */
+  public static List<Object> tupleValue(Object... values) {
+    return FlatLists.copyOf(values);
+  }
+
+  /** Applies a function to an argument, as a tail call if the function is a
+   * {@link Closure}; see {@link #tailCall(Code)}. Generated code calls this
+   * method for calls in tail position. */
+  public static Object tailApply(Applicable fnValue, EvalEnv env,
+      Object arg) {
+    if (fnValue instanceof Closure) {
+      return new Closure.TailCall((Closure) fnValue, arg);
+    }
+    return fnValue.apply(env, arg);
+  }
+
+  /** Converts code that applies a function into a tail call, if possible;
+   * otherwise returns the code unchanged.
+   *
+   * <p>A tail call does not call a {@link Closure}; it returns a
+   * {@link Closure.TailCall} that the closure whose body contains the call
+   * will execute after its body has returned. Therefore the code must be the
+   * last thing that the body of a closure evaluates. */
+  public static Code tailCall(Code code) {
+    if (code instanceof ApplyCodeCode
+        && !(code instanceof TailApplyCodeCode)) {
+      final ApplyCodeCode apply = (ApplyCodeCode) code;
+      return new TailApplyCodeCode(apply.fnCode, apply.argCode);
+    }
+    if (code instanceof ApplyCode
+        && !(code instanceof TailApplyCode)
+        && ((ApplyCode) code).fnValue instanceof Closure) {
+      final ApplyCode apply = (ApplyCode) code;
+      return new TailApplyCode((Closure) apply.fnValue, apply.argCode);
+    }
+    return code;
+  }
+
   public static Code list(Iterable<? extends Code> codes) {
     return tuple(codes);
   }
@@ -420,59 +890,112 @@ public abstract class Codes {
   }
 
   /** Returns an applicable that constructs an instance of a datatype.
-   * The instance is a list with two elements [constructorName, value]. */
-  public static Applicable tyCon(Type dataType, String name) {
-    requireNonNull(dataType);
+   * The instance is a {@link TyConValue}, a list with two elements
+   * [constructorName, value]. */
+  public static Applicable tyCon(DataType dataType, String name) {
     requireNonNull(name);
+    final int ordinal = dataType.ordinal(name);
     return new ApplicableImpl("tyCon") {
       @Override public Object apply(EvalEnv env, Object arg) {
-        return ImmutableList.of(name, arg);
+        return TyConValue.of(ordinal, name, arg);
       }
     };
   }
 
   public static Code from(Supplier<RowSink> rowSinkFactory) {
-    return new Code() {
-      @Override public Describer describe(Describer describer) {
-        return describer.start("from", d ->
-            d.arg("sink", rowSinkFactory.get()));
-      }
+    return from(rowSinkFactory, 1);
+  }
 
-      @Override public Object eval(EvalEnv env) {
-        final RowSink rowSink = rowSinkFactory.get();
-        rowSink.accept(env);
-        return rowSink.result(env);
-      }
-    };
+  /** Creates a {@link Code} that evaluates a {@code from} expression, using
+   * up to {@code parallelism} threads. */
+  public static Code from(Supplier<RowSink> rowSinkFactory, int parallelism) {
+    return new FromCode(rowSinkFactory, parallelism);
   }
 
   /** Creates a {@link RowSink} for a {@code join} clause. */
   public static RowSink scanRowSink(Op op, Core.Pat pat, Code code,
       Code conditionCode, RowSink rowSink) {
-    return new ScanRowSink(op, pat, code, conditionCode, rowSink);
+    return new ScanRowSink(op, pat, code, conditionCode, null, rowSink);
+  }
+
+  /** Creates a {@link RowSink} for a {@code join} clause whose condition is
+   * also expressed as a list of column filters, so that it can be evaluated
+   * over batches of rows. */
+  public static RowSink scanRowSink(Op op, Core.Pat pat, Code code,
+      Code conditionCode, @Nullable ImmutableList<ColumnFilter> columnFilters,
+      RowSink rowSink) {
+    return new ScanRowSink(op, pat, code, conditionCode, columnFilters,
+        rowSink);
+  }
+
+  /** Creates a {@link RowSink} for a {@code join} clause that is evaluated
+   * using a hash table. */
+  public static RowSink hashJoinRowSink(Op op, Core.Pat pat, Code code,
+      Code innerKeyCode, Code outerKeyCode, Code conditionCode,
+      RowSink rowSink) {
+    return new HashJoinRowSink(op, pat, code, innerKeyCode, outerKeyCode,
+        conditionCode, rowSink);
   }
 
   /** Creates a {@link RowSink} for a {@code where} clause. */
   public static RowSink whereRowSink(Code filterCode, RowSink rowSink) {
-    return new WhereRowSink(filterCode, rowSink);
+    return new WhereRowSink(filterCode, null, rowSink);
+  }
+
+  /** Creates a {@link RowSink} for a {@code where} clause whose condition
+   * is also expressed as a list of column filters.
+   *
+   * <p>If the preceding scan binds the variables that the column filters
+   * reference, it evaluates them over a batch of rows at a time, and
+   * bypasses this sink. */
+  public static RowSink whereRowSink(Code filterCode,
+      @Nullable ImmutableList<ColumnFilter> columnFilters, RowSink rowSink) {
+    return new WhereRowSink(filterCode, columnFilters, rowSink);
+  }
+
+  /** Creates a {@link RowSink} that passes a row if a key is in a
+   * collection (a semi-join) or, if {@code anti}, if the key is not in the
+   * collection (an anti-join).
+   *
+   * <p>The collection is evaluated once, on the first row, and its elements
+   * are put in a hash set. If {@code keyCode} is null, passes every row if
+   * the collection is non-empty (or, if {@code anti}, empty). */
+  public static RowSink semiJoinRowSink(@Nullable Code keyCode,
+      Code collectionCode, boolean anti, RowSink rowSink) {
+    return new SemiJoinRowSink(keyCode, collectionCode, anti, rowSink);
+  }
+
+  /** Creates a filter that compares a column with a constant.
+   *
+   * @param idPat Variable bound by a scan
+   * @param field Ordinal of the field of the variable that is compared, or
+   *   -1 to compare the whole variable
+   * @param builtIn Comparison operator, e.g. {@link BuiltIn#OP_LT}
+   * @param constant Value to compare with; an {@code Integer},
+   *   {@code Float} or {@code Boolean}
+   */
+  public static ColumnFilter columnFilter(Core.IdPat idPat, int field,
+      BuiltIn builtIn, Object constant) {
+    return new ColumnFilter(idPat, field, Comparison.of(builtIn), constant);
   }
 
   /** Creates a {@link RowSink} for a {@code order} clause. */
   public static RowSink orderRowSink(ImmutableList<Pair<Code, Boolean>> codes,
-      ImmutableList<Binding> bindings, RowSink rowSink) {
+      ImmutableList<Binding> bindings, int memoryBudget, RowSink rowSink) {
     @SuppressWarnings("UnstableApiUsage")
     final ImmutableList<String> labels = bindings.stream().map(b -> b.id.name)
         .collect(ImmutableList.toImmutableList());
-    return new OrderRowSink(codes, labels, rowSink);
+    return new OrderRowSink(codes, labels, memoryBudget, rowSink);
   }
 
   /** Creates a {@link RowSink} for a {@code group} clause. */
   public static RowSink groupRowSink(Code keyCode,
-      ImmutableList<Applicable> aggregateCodes, ImmutableList<String> inNames,
+      ImmutableList<Code> argumentCodes,
+      ImmutableList<Accumulator> accumulators,
       ImmutableList<String> keyNames,
-      ImmutableList<String> outNames, RowSink rowSink) {
-    return new GroupRowSink(keyCode, aggregateCodes, inNames, keyNames,
-        outNames, rowSink);
+      ImmutableList<String> outNames, int memoryBudget, RowSink rowSink) {
+    return new GroupRowSink(keyCode, argumentCodes, accumulators, keyNames,
+        outNames, memoryBudget, rowSink);
   }
 
   /** Creates a {@link RowSink} for a non-terminal {@code yield} step. */
@@ -670,7 +1193,17 @@ public abstract class Codes {
     if (n > STRING_MAX_SIZE) {
       throw new MorelRuntimeException(BuiltInExn.SIZE);
     }
-    return String.join(separator, list);
+    // Allocate the result once, rather than growing a buffer.
+    final StringBuilder b = new StringBuilder((int) n);
+    boolean first = true;
+    for (String s : list) {
+      if (!first) {
+        b.append(separator);
+      }
+      first = false;
+      b.append(s);
+    }
+    return b.toString();
   }
 
   /** @see BuiltIn#STRING_STR */
@@ -689,6 +1222,11 @@ public abstract class Codes {
           // Note: In theory this function should raise Size, but it is not
           // possible in practice because List.size() is never larger than
           // Integer.MAX_VALUE.
+          if (arg instanceof CharList) {
+            // The list came from "String.explode", perhaps followed by "tl"
+            // or "List.drop"; its characters are a range of a string.
+            return ((CharList) arg).string();
+          }
           return String.valueOf(Chars.toArray((List) arg));
         }
       };
@@ -697,8 +1235,9 @@ public abstract class Codes {
   private static final Applicable STRING_EXPLODE =
       new ApplicableImpl(BuiltIn.STRING_EXPLODE) {
         @Override public Object apply(EvalEnv env, Object arg) {
-          final String s = (String) arg;
-          return MapList.of(s.length(), s::charAt);
+          // The characters of the string, without copying them. Its tail
+          // is another range of the same string.
+          return CharList.of((String) arg);
         }
       };
 
@@ -827,7 +1366,7 @@ public abstract class Codes {
         final List tuple = (List) arg;
         final List list0 = (List) tuple.get(0);
         final List list1 = (List) tuple.get(1);
-        return ImmutableList.builder().addAll(list0).addAll(list1).build();
+        return PersistentList.append(list0, list1);
       }
     };
   }
@@ -849,11 +1388,10 @@ public abstract class Codes {
       new ApplicableImpl(BuiltIn.LIST_TL) {
         @Override public Object apply(EvalEnv env, Object arg) {
           final List list = (List) arg;
-          final int size = list.size();
-          if (size == 0) {
+          if (list.isEmpty()) {
             throw new MorelRuntimeException(BuiltInExn.EMPTY);
           }
-          return list.subList(1, size);
+          return PersistentList.tail(list);
         }
       };
 
@@ -879,7 +1417,7 @@ public abstract class Codes {
             return OPTION_NONE;
           } else {
             return optionSome(
-                ImmutableList.of(list.get(0), list.subList(1, list.size())));
+                ImmutableList.of(list.get(0), PersistentList.tail(list)));
           }
         }
       };
@@ -893,7 +1431,7 @@ public abstract class Codes {
         final List tuple = (List) arg;
         final List list = (List) tuple.get(0);
         final int i = (Integer) tuple.get(1);
-        if (i < 0 || i >= list.size()) {
+        if (i < 0 || !LazyList.sizeAtLeast(list, i + 1)) {
           throw new MorelRuntimeException(BuiltInExn.SUBSCRIPT);
         }
         return list.get(i);
@@ -908,7 +1446,7 @@ public abstract class Codes {
           final List tuple = (List) arg;
           final List list = (List) tuple.get(0);
           final int i = (Integer) tuple.get(1);
-          if (i < 0 || i > list.size()) {
+          if (i < 0 || !LazyList.sizeAtLeast(list, i)) {
             throw new MorelRuntimeException(BuiltInExn.SUBSCRIPT);
           }
           return list.subList(0, i);
@@ -955,8 +1493,7 @@ public abstract class Codes {
           final List tuple = (List) arg;
           final List list0 = (List) tuple.get(0);
           final List list1 = (List) tuple.get(1);
-          return ImmutableList.builder().addAll(Lists.reverse(list0))
-              .addAll(list1).build();
+          return PersistentList.revAppend(list0, list1);
         }
       };
 
@@ -1356,7 +1893,7 @@ public abstract class Codes {
    *
    * @see #OPTION_NONE */
   private static List optionSome(Object o) {
-    return ImmutableList.of("SOME", o);
+    return TyConValue.of(1, "SOME", o);
   }
 
   /** @see BuiltIn#OPTION_MAP_PARTIAL */
@@ -1464,7 +2001,7 @@ public abstract class Codes {
           if (list.isEmpty()) {
             throw new MorelRuntimeException(BuiltInExn.EMPTY);
           }
-          if (list.size() > 1) {
+          if (LazyList.sizeAtLeast(list, 2)) {
             throw new MorelRuntimeException(BuiltInExn.SIZE);
           }
           return list.get(0);
@@ -1595,9 +2132,10 @@ public abstract class Codes {
         }
       };
 
-  private static final List ORDER_LESS = ImmutableList.of("LESS");
-  private static final List ORDER_EQUAL = ImmutableList.of("EQUAL");
-  private static final List ORDER_GREATER = ImmutableList.of("GREATER");
+  // Ordinals are the position of the constructor in alphabetical order
+  private static final List ORDER_EQUAL = TyConValue.of(0, "EQUAL");
+  private static final List ORDER_GREATER = TyConValue.of(1, "GREATER");
+  private static final List ORDER_LESS = TyConValue.of(2, "LESS");
 
   /** @see BuiltIn#VECTOR_MAX_LEN */
   private static final int VECTOR_MAX_LEN = (1 << 24) - 1;
@@ -1631,9 +2169,7 @@ public abstract class Codes {
             throw new MorelRuntimeException(BuiltInExn.SUBSCRIPT);
           }
           final Object x = tuple.get(2);
-          final Object[] elements = vec.toArray();
-          elements[i] = x;
-          return ImmutableList.copyOf(elements);
+          return PersistentVector.set(vec, i, x);
         }
       };
 
@@ -1643,11 +2179,11 @@ public abstract class Codes {
         @Override public Object apply(EvalEnv env, Object arg) {
           @SuppressWarnings("unchecked") final List<List<Object>> lists =
               (List<List<Object>>) arg;
-          final ImmutableList.Builder<Object> b = ImmutableList.builder();
+          List<Object> vec = PersistentVector.of();
           for (List<Object> list : lists) {
-            b.addAll(list);
+            vec = PersistentVector.concat(vec, list);
           }
-          return b.build();
+          return vec;
         }
       };
 
@@ -1943,34 +2479,127 @@ public abstract class Codes {
     return hEnv[0];
   }
 
-  public static Applicable aggregate(Environment env0, Code aggregateCode,
-      List<String> names, @Nullable Code argumentCode) {
-    return new ApplicableImpl("aggregate") {
-      @Override public Object apply(EvalEnv env, Object arg) {
-        @SuppressWarnings("unchecked") final List<Object> rows =
-            (List<Object>) arg;
-        final List<Object> argRows;
-        if (argumentCode != null) {
-          final MutableEvalEnv env2 = env.bindMutableArray(names);
-          argRows = new ArrayList<>(rows.size());
-          for (Object row : rows) {
-            env2.set(row);
-            argRows.add(argumentCode.eval(env2));
-          }
-        } else if (names.size() != 1) {
-          // Reconcile the fact that we internally represent rows as arrays when
-          // we're buffering for "group", lists at other times.
-          argRows = Lists.transform(rows,
-              row -> Arrays.asList((Object []) row));
-        } else {
-          argRows = rows;
-        }
+  /** Returns an {@link Accumulator} that computes a built-in aggregate
+   * function incrementally, or null if the function is not a built-in or
+   * cannot be computed incrementally. */
+  public static @Nullable Accumulator accumulator(Applicable aggregate) {
+    final BuiltIn builtIn = BUILT_IN_MAP.get(aggregate);
+    if (builtIn == null) {
+      return null;
+    }
+    switch (builtIn) {
+    case RELATIONAL_COUNT:
+      return COUNT_ACCUMULATOR;
+    case Z_SUM_INT:
+      return SUM_INT_ACCUMULATOR;
+    case Z_SUM_REAL:
+      return SUM_REAL_ACCUMULATOR;
+    case RELATIONAL_MIN:
+      return MIN_ACCUMULATOR;
+    case RELATIONAL_MAX:
+      return MAX_ACCUMULATOR;
+    default:
+      return null;
+    }
+  }
+
+  /** Returns an {@link Accumulator} that buffers the values in each group,
+   * and at the end applies an aggregate function to the list of values.
+   *
+   * <p>Used for aggregate functions, such as user-defined functions, that
+   * have no incremental implementation.
+   *
+   * @param aggregateCode Code that evaluates to the aggregate function
+   */
+  public static Accumulator bufferingAccumulator(Code aggregateCode) {
+    return new AccumulatorImpl("aggregate") {
+      @Override public Object init() {
+        return new ArrayList<>();
+      }
+
+      @Override public Object add(Object state, Object value) {
+        final List<Object> list = mutable(state);
+        list.add(value);
+        return list;
+      }
+
+      @SuppressWarnings("unchecked")
+      @Override public Object merge(Object state0, Object state1) {
+        final List<Object> list = mutable(state0);
+        list.addAll((List<Object>) state1);
+        return list;
+      }
+
+      /** Returns a state as a mutable list. (A state that has been read
+       * from a spill file is immutable.) */
+      @SuppressWarnings("unchecked")
+      private List<Object> mutable(Object state) {
+        return state instanceof ArrayList
+            ? (List<Object>) state
+            : new ArrayList<>((List<Object>) state);
+      }
+
+      @Override public Object result(EvalEnv env, Object state) {
         final Applicable aggregate = (Applicable) aggregateCode.eval(env);
-        return aggregate.apply(env, argRows);
+        return aggregate.apply(env, state);
       }
     };
   }
 
+  /** Accumulator for {@link BuiltIn#RELATIONAL_COUNT}. */
+  private static final Accumulator COUNT_ACCUMULATOR =
+      new AccumulatorImpl("aggregate") {
+        @Override public Object init() {
+          return 0;
+        }
+
+        @Override public Object add(Object state, Object value) {
+          return (Integer) state + 1;
+        }
+
+        @Override public Object merge(Object state0, Object state1) {
+          return (Integer) state0 + (Integer) state1;
+        }
+      };
+
+  /** Accumulator for {@link BuiltIn#Z_SUM_INT}. */
+  private static final Accumulator SUM_INT_ACCUMULATOR =
+      new AccumulatorImpl("aggregate") {
+        @Override public Object init() {
+          return 0;
+        }
+
+        @Override public Object add(Object state, Object value) {
+          return (Integer) state + ((Number) value).intValue();
+        }
+
+        @Override public Object merge(Object state0, Object state1) {
+          return (Integer) state0 + (Integer) state1;
+        }
+      };
+
+  /** Accumulator for {@link BuiltIn#Z_SUM_REAL}. */
+  private static final Accumulator SUM_REAL_ACCUMULATOR =
+      new AccumulatorImpl("aggregate") {
+        @Override public Object init() {
+          return 0f;
+        }
+
+        @Override public Object add(Object state, Object value) {
+          return (Float) state + ((Number) value).floatValue();
+        }
+
+        @Override public Object merge(Object state0, Object state1) {
+          return (Float) state0 + (Float) state1;
+        }
+      };
+
+  /** Accumulator for {@link BuiltIn#RELATIONAL_MIN}. */
+  private static final Accumulator MIN_ACCUMULATOR = new ExtremeAccumulator(1);
+
+  /** Accumulator for {@link BuiltIn#RELATIONAL_MAX}. */
+  private static final Accumulator MAX_ACCUMULATOR = new ExtremeAccumulator(-1);
+
   public static final ImmutableMap<BuiltIn, Object> BUILT_IN_VALUES =
       ImmutableMap.<BuiltIn, Object>builder()
           .put(BuiltIn.TRUE, true)
@@ -2131,55 +2760,705 @@ public abstract class Codes {
     }
 
     public Object eval(EvalEnv env) {
-      final Object[] values = new Object[codes.size()];
-      for (int i = 0; i < values.length; i++) {
-        values[i] = codes.get(i).eval(env);
+      switch (codes.size()) {
+      case 2:
+        return FlatLists.of(codes.get(0).eval(env), codes.get(1).eval(env));
+      case 3:
+        return FlatLists.of(codes.get(0).eval(env), codes.get(1).eval(env),
+            codes.get(2).eval(env));
+      default:
+        final Object[] values = new Object[codes.size()];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = codes.get(i).eval(env);
+        }
+        return tupleValue(values);
       }
-      return Arrays.asList(values);
     }
   }
 
-  /** Accepts rows produced by a supplier as part of a {@code from} clause. */
-  public interface RowSink extends Describable {
-    void accept(EvalEnv env);
-    List<Object> result(EvalEnv env);
-  }
-
-  /** Implementation of {@link RowSink} for a {@code join} clause. */
-  static class ScanRowSink implements RowSink {
-    final Op op; // inner, left, right, full
-    private final Core.Pat pat;
-    private final Code code;
-    final Code conditionCode;
-    final RowSink rowSink;
+  /** Code that concatenates strings.
+   *
+   * @see #concat(List) */
+  private static class ConcatCode implements Code {
+    private final List<Code> codes;
 
-    ScanRowSink(Op op, Core.Pat pat, Code code, Code conditionCode,
-        RowSink rowSink) {
-      checkArgument(op == Op.INNER_JOIN);
-      this.op = op;
-      this.pat = pat;
-      this.code = code;
-      this.conditionCode = conditionCode;
-      this.rowSink = rowSink;
+    private ConcatCode(ImmutableList<Code> codes) {
+      this.codes = codes;
     }
 
     @Override public Describer describe(Describer describer) {
-      return describer.start("join", d ->
-          d.arg("op", op.padded.trim())
-              .arg("pat", pat)
-              .arg("exp", code)
-              .argIf("condition", conditionCode, !isConstantTrue(conditionCode))
-              .arg("sink", rowSink));
+      return describer.start("concat", d ->
+          codes.forEach(code -> d.arg("", code)));
     }
 
-    private static boolean isConstantTrue(Code code) {
-      return code.isConstant()
-          && Objects.equals(code.eval(null), true);
+    @Override public Object eval(EvalEnv env) {
+      final String[] strings = new String[codes.size()];
+      long n = 0;
+      for (int i = 0; i < strings.length; i++) {
+        strings[i] = (String) codes.get(i).eval(env);
+        n += strings[i].length();
+      }
+      if (n > STRING_MAX_SIZE) {
+        throw new MorelRuntimeException(BuiltInExn.SIZE);
+      }
+      final StringBuilder b = new StringBuilder((int) n);
+      for (String string : strings) {
+        b.append(string);
+      }
+      return b.toString();
     }
+  }
 
-    public void accept(EvalEnv env) {
-      final MutableEvalEnv mutableEvalEnv = env.bindMutablePat(pat);
-      final Iterable<Object> elements = (Iterable<Object>) code.eval(env);
+  /** Code that evaluates a {@code from} expression. */
+  private static class FromCode implements Code {
+    /** Thread pools, by parallelism; shared by all {@code from}
+     * expressions. */
+    private static final Map<Integer, ForkJoinPool> POOLS =
+        new ConcurrentHashMap<>();
+
+    private final Supplier<RowSink> rowSinkFactory;
+    private final int parallelism;
+
+    FromCode(Supplier<RowSink> rowSinkFactory, int parallelism) {
+      this.rowSinkFactory = requireNonNull(rowSinkFactory);
+      this.parallelism = parallelism;
+    }
+
+    @Override public Describer describe(Describer describer) {
+      return describer.start("from", d ->
+          d.arg("sink", rowSinkFactory.get()));
+    }
+
+    @Override public Object eval(EvalEnv env) {
+      final RowSink rowSink = rowSinkFactory.get();
+      if (parallelism > 1
+          && rowSink instanceof ScanRowSink
+          && !inWorkerThread()) {
+        return evalParallel((ScanRowSink) rowSink, env);
+      }
+      try {
+        rowSink.accept(env);
+        return rowSink.result(env);
+      } finally {
+        release(rowSink);
+      }
+    }
+
+    /** Evaluates this {@code from} expression using several threads.
+     *
+     * <p>Splits the elements of the first scan into contiguous chunks, and
+     * pushes each chunk through its own copy of the row sinks, as far as the
+     * first {@code group}, {@code order} or collect step. Then merges those
+     * sinks' states, in chunk order, and continues in the calling thread.
+     * The result is the same as if the expression were evaluated in a single
+     * thread.
+     *
+     * <p>Queries evaluated in a worker thread (for example, a {@code from}
+     * expression nested in another) do not fork. */
+    private Object evalParallel(ScanRowSink rowSink, EvalEnv env) {
+      final List<Object> elements = toList(rowSink.code.eval(env));
+      final int chunkCount = Math.min(parallelism, elements.size());
+      final List<RowSink> scanRowSinks = new ArrayList<>();
+      scanRowSinks.add(rowSink);
+      try {
+        if (chunkCount <= 1) {
+          rowSink.accept(env, elements);
+          return rowSink.result(env);
+        }
+        return evalParallel(rowSink, env, elements, chunkCount,
+            scanRowSinks);
+      } finally {
+        scanRowSinks.forEach(FromCode::release);
+      }
+    }
+
+    /** Helper for {@link #evalParallel(ScanRowSink, EvalEnv)}. Adds the
+     * first sink of each chunk to {@code scanRowSinks}, so that the caller
+     * can release them. */
+    private Object evalParallel(ScanRowSink rowSink, EvalEnv env,
+        List<Object> elements, int chunkCount, List<RowSink> scanRowSinks) {
+      final ForkJoinPool pool =
+          POOLS.computeIfAbsent(parallelism, ForkJoinPool::new);
+      final List<ForkJoinTask<RowSink>> tasks = new ArrayList<>();
+      // Exceptions thrown by each chunk. (ForkJoinTask.join would wrap them.)
+      final Throwable[] throwables = new Throwable[chunkCount];
+      for (int i = 0; i < chunkCount; i++) {
+        final int chunkIndex = i;
+        final List<Object> chunk =
+            elements.subList(elements.size() * i / chunkCount,
+                elements.size() * (i + 1) / chunkCount);
+        final ScanRowSink scanRowSink =
+            i == 0 ? rowSink : (ScanRowSink) rowSinkFactory.get();
+        if (i > 0) {
+          scanRowSinks.add(scanRowSink);
+        }
+        tasks.add(
+            pool.submit(() -> {
+              try {
+                scanRowSink.accept(env, chunk);
+                final RowSink sink = mergeSink(scanRowSink);
+                if (sink instanceof OrderRowSink) {
+                  ((OrderRowSink) sink).sort(env);
+                }
+                return sink;
+              } catch (Throwable e) {
+                throwables[chunkIndex] = e;
+                return null;
+              }
+            }));
+      }
+      final List<RowSink> sinks = new ArrayList<>();
+      for (ForkJoinTask<RowSink> task : tasks) {
+        sinks.add(task.join());
+      }
+      // If several chunks failed, throw the exception that a single thread
+      // would have thrown.
+      for (Throwable e : throwables) {
+        if (e != null) {
+          Throwables.throwIfUnchecked(e);
+          throw new RuntimeException(e);
+        }
+      }
+      final RowSink sink = sinks.get(0);
+      if (sink instanceof CollectRowSink) {
+        for (RowSink sink2 : Util.skip(sinks)) {
+          ((CollectRowSink) sink).list.addAll(((CollectRowSink) sink2).list);
+        }
+        return sink.result(env);
+      } else if (sink instanceof GroupRowSink) {
+        for (RowSink sink2 : Util.skip(sinks)) {
+          ((GroupRowSink) sink).merge((GroupRowSink) sink2);
+        }
+        return sink.result(env);
+      } else {
+        final OrderRowSink orderRowSink = (OrderRowSink) sink;
+        orderRowSink.merge(env, Util.skip(sinks));
+        return orderRowSink.emit(env);
+      }
+    }
+
+    /** Returns whether the current thread belongs to one of our pools. (It
+     * may belong to some other pool, such as the one running a test
+     * suite.) */
+    private static boolean inWorkerThread() {
+      final ForkJoinPool pool = ForkJoinTask.getPool();
+      return pool != null && POOLS.containsValue(pool);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> toList(Object elements) {
+      return elements instanceof List
+          ? (List<Object>) elements
+          : Lists.newArrayList((Iterable<Object>) elements);
+    }
+
+    /** Returns the first {@code group}, {@code order} or collect sink
+     * downstream of (or equal to) a given sink; the sink whose state needs
+     * to be merged after parallel evaluation. */
+    private static RowSink mergeSink(RowSink sink) {
+      for (;;) {
+        if (sink instanceof ScanRowSink) {
+          sink = ((ScanRowSink) sink).rowSink;
+        } else if (sink instanceof HashJoinRowSink) {
+          sink = ((HashJoinRowSink) sink).rowSink;
+        } else if (sink instanceof FilterRowSink) {
+          sink = ((FilterRowSink) sink).rowSink;
+        } else if (sink instanceof YieldRowSink) {
+          sink = ((YieldRowSink) sink).rowSink;
+        } else {
+          return sink;
+        }
+      }
+    }
+
+    /** Deletes the temporary files of the {@code group} and {@code order}
+     * sinks in a chain. */
+    private static void release(RowSink sink) {
+      for (;;) {
+        if (sink instanceof ScanRowSink) {
+          sink = ((ScanRowSink) sink).rowSink;
+        } else if (sink instanceof HashJoinRowSink) {
+          sink = ((HashJoinRowSink) sink).rowSink;
+        } else if (sink instanceof FilterRowSink) {
+          sink = ((FilterRowSink) sink).rowSink;
+        } else if (sink instanceof YieldRowSink) {
+          sink = ((YieldRowSink) sink).rowSink;
+        } else if (sink instanceof GroupRowSink) {
+          ((GroupRowSink) sink).release();
+          sink = ((GroupRowSink) sink).rowSink;
+        } else if (sink instanceof OrderRowSink) {
+          ((OrderRowSink) sink).release();
+          sink = ((OrderRowSink) sink).rowSink;
+        } else {
+          return;
+        }
+      }
+    }
+
+    /** Evaluates this {@code from} expression, returning a list that
+     * computes each row only when it is needed.
+     *
+     * <p>If the steps are all {@code join}, {@code where} and {@code yield},
+     * the list pulls rows from a {@link FromIterator}, so that a consumer
+     * that looks only at the first few rows does not compute the others.
+     * Otherwise (say the expression has {@code order} or {@code group},
+     * which must read all of their input before they can emit the first
+     * row), evaluates eagerly.
+     *
+     * <p>If the consumer will look at no more than {@code limit} rows, and
+     * the last {@code order} step is followed only by {@code yield} steps,
+     * the {@code order} step keeps only the first {@code limit} rows.
+     *
+     * <p>If {@code stream}, the consumer reads the rows only once, so the
+     * result may be a {@link StreamList}, which does not retain them.
+     *
+     * @param env Environment
+     * @param limit Maximum number of rows the consumer needs, or -1 if not
+     *   known
+     * @param stream Whether the consumer reads the rows only once
+     */
+    Object evalLazy(EvalEnv env, int limit, boolean stream) {
+      final RowSink rowSink = rowSinkFactory.get();
+      final List<RowSink> sinks = new ArrayList<>();
+      for (RowSink sink = rowSink;;) {
+        sinks.add(sink);
+        if (sink instanceof ScanRowSink) {
+          sink = ((ScanRowSink) sink).rowSink;
+        } else if (sink instanceof FilterRowSink) {
+          sink = ((FilterRowSink) sink).rowSink;
+        } else if (sink instanceof YieldRowSink) {
+          sink = ((YieldRowSink) sink).rowSink;
+        } else if (sink instanceof CollectRowSink) {
+          final FromIterator iterator = new FromIterator(sinks, env);
+          return stream
+              ? new StreamList(iterator)
+              : new LazyList<>(iterator);
+        } else {
+          if (limit >= 0) {
+            final OrderRowSink orderRowSink = lastOrder(rowSink);
+            if (orderRowSink != null) {
+              orderRowSink.limit = limit;
+            }
+          }
+          try {
+            rowSink.accept(env);
+            return rowSink.result(env);
+          } finally {
+            release(rowSink);
+          }
+        }
+      }
+    }
+
+    /** Returns the last {@code order} sink in a chain, if it is followed
+     * only by {@code yield} sinks; otherwise null. (A {@code where} or
+     * {@code group} after the {@code order} would change the number of
+     * rows.) */
+    private static @Nullable OrderRowSink lastOrder(RowSink sink) {
+      OrderRowSink orderRowSink = null;
+      for (;;) {
+        if (sink instanceof OrderRowSink) {
+          orderRowSink = (OrderRowSink) sink;
+          sink = orderRowSink.rowSink;
+        } else if (sink instanceof YieldRowSink) {
+          sink = ((YieldRowSink) sink).rowSink;
+        } else if (sink instanceof CollectRowSink) {
+          return orderRowSink;
+        } else {
+          orderRowSink = null;
+          if (sink instanceof ScanRowSink) {
+            sink = ((ScanRowSink) sink).rowSink;
+          } else if (sink instanceof HashJoinRowSink) {
+            sink = ((HashJoinRowSink) sink).rowSink;
+          } else if (sink instanceof FilterRowSink) {
+            sink = ((FilterRowSink) sink).rowSink;
+          } else if (sink instanceof GroupRowSink) {
+            sink = ((GroupRowSink) sink).rowSink;
+          } else {
+            return null;
+          }
+        }
+      }
+    }
+  }
+
+  /** Iterator over the rows of a {@code from} expression whose steps are all
+   * {@code join}, {@code where} and {@code yield}.
+   *
+   * <p>Whereas {@link RowSink#accept} pushes every row through the steps,
+   * this iterator pulls one row at a time. Each step is one element of
+   * {@link #sinks}; the last is a {@link CollectRowSink}. To find the next
+   * row, it resumes at the innermost {@code join} that may have further
+   * elements, and moves forward through the steps until a row reaches the
+   * end, or back to the previous {@code join} when a row is rejected or a
+   * {@code join} runs out of elements. */
+  private static class FromIterator implements Iterator<Object> {
+    private final RowSink[] sinks;
+    /** For each step, the index of the nearest preceding {@code join}, or
+     * -1 if there is none. */
+    private final int[] previousScans;
+    /** For each step, the environment in which it is evaluated. */
+    private final EvalEnv[] envs;
+    /** For each {@code join} step, the environment to which it binds each
+     * element, and an iterator over its elements. */
+    private final MutableEvalEnv[] scanEnvs;
+    private final Iterator<?>[] iterators;
+    /** Step at which to resume; -1 if there are no more rows. */
+    private int resume = 0;
+    private boolean ready;
+    private Object next;
+
+    FromIterator(List<RowSink> sinks, EvalEnv env) {
+      this.sinks = sinks.toArray(new RowSink[0]);
+      this.previousScans = new int[this.sinks.length];
+      this.envs = new EvalEnv[this.sinks.length];
+      this.scanEnvs = new MutableEvalEnv[this.sinks.length];
+      this.iterators = new Iterator[this.sinks.length];
+      int previousScan = -1;
+      for (int i = 0; i < this.sinks.length; i++) {
+        previousScans[i] = previousScan;
+        if (this.sinks[i] instanceof ScanRowSink) {
+          previousScan = i;
+        }
+      }
+      envs[0] = env;
+    }
+
+    @Override public boolean hasNext() {
+      if (!ready) {
+        ready = advance();
+      }
+      return ready;
+    }
+
+    @Override public Object next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      ready = false;
+      final Object o = next;
+      next = null;
+      return o;
+    }
+
+    private boolean advance() {
+      int i = resume;
+      while (i >= 0) {
+        final RowSink sink = sinks[i];
+        if (sink instanceof ScanRowSink) {
+          final ScanRowSink scan = (ScanRowSink) sink;
+          if (iterators[i] == null) {
+            scanEnvs[i] = envs[i].bindMutablePat(scan.pat);
+            iterators[i] =
+                ((Iterable<?>) scan.code.eval(envs[i])).iterator();
+          }
+          if (!iterators[i].hasNext()) {
+            iterators[i] = null;
+            i = previousScans[i];
+            continue;
+          }
+          if (scanEnvs[i].setOpt(iterators[i].next())) {
+            final Boolean b = (Boolean) scan.conditionCode.eval(scanEnvs[i]);
+            if (b != null && b) {
+              envs[i + 1] = scanEnvs[i];
+              ++i;
+            }
+          }
+        } else if (sink instanceof FilterRowSink) {
+          if (((FilterRowSink) sink).test(envs[i])) {
+            envs[i + 1] = envs[i];
+            ++i;
+          } else {
+            i = previousScans[i];
+          }
+        } else if (sink instanceof YieldRowSink) {
+          envs[i + 1] = ((YieldRowSink) sink).bind(envs[i]);
+          ++i;
+        } else {
+          next = ((CollectRowSink) sink).code.eval(envs[i]);
+          resume = previousScans[i];
+          return true;
+        }
+      }
+      resume = -1;
+      return false;
+    }
+  }
+
+  /** Accepts rows produced by a supplier as part of a {@code from} clause. */
+  public interface RowSink extends Describable {
+    void accept(EvalEnv env);
+    List<Object> result(EvalEnv env);
+  }
+
+  /** Predicate of the form "column op constant", where the column is a
+   * variable bound by a scan, or a field of such a variable, of type
+   * {@code int}, {@code real} or {@code bool}.
+   *
+   * <p>A scan evaluates column filters over a batch of rows: it unboxes the
+   * column's values into a primitive array, compares them with the constant
+   * in a tight loop, and removes the rows that fail from the batch's
+   * selection vector. */
+  public static final class ColumnFilter {
+    final Core.IdPat idPat;
+    final int field;
+    final Comparison comparison;
+    final Object constant;
+
+    ColumnFilter(Core.IdPat idPat, int field, Comparison comparison,
+        Object constant) {
+      checkArgument(constant instanceof Integer
+          || constant instanceof Float
+          || constant instanceof Boolean
+          && (comparison == Comparison.EQ || comparison == Comparison.NE));
+      this.idPat = requireNonNull(idPat);
+      this.field = field;
+      this.comparison = requireNonNull(comparison);
+      this.constant = constant;
+    }
+
+    /** Filters a batch. On entry, {@code column[j]} is the value of this
+     * filter's column in the row {@code selection[j]}, for {@code j} less
+     * than {@code count}; removes from {@code selection} the rows that fail
+     * the predicate, and returns how many rows remain. */
+    int filter(Batch batch, int count) {
+      final Object[] column = batch.column;
+      final int[] compares = batch.compares;
+      if (constant instanceof Integer) {
+        final int[] ints = batch.ints;
+        for (int j = 0; j < count; j++) {
+          ints[j] = (Integer) column[j];
+        }
+        final int c = (Integer) constant;
+        for (int j = 0; j < count; j++) {
+          compares[j] = Integer.compare(ints[j], c);
+        }
+      } else if (constant instanceof Float) {
+        final float[] floats = batch.floats;
+        for (int j = 0; j < count; j++) {
+          floats[j] = (Float) column[j];
+        }
+        // Float.compare, like the "<" operator, orders NaN and -0.0
+        final float c = (Float) constant;
+        for (int j = 0; j < count; j++) {
+          compares[j] = Float.compare(floats[j], c);
+        }
+      } else {
+        final boolean[] booleans = batch.booleans;
+        for (int j = 0; j < count; j++) {
+          booleans[j] = (Boolean) column[j];
+        }
+        final boolean c = (Boolean) constant;
+        for (int j = 0; j < count; j++) {
+          compares[j] = booleans[j] == c ? 0 : 1;
+        }
+      }
+      final int[] selection = batch.selection;
+      int k = 0;
+      switch (comparison) {
+      case EQ:
+        for (int j = 0; j < count; j++) {
+          if (compares[j] == 0) {
+            selection[k++] = selection[j];
+          }
+        }
+        break;
+      case NE:
+        for (int j = 0; j < count; j++) {
+          if (compares[j] != 0) {
+            selection[k++] = selection[j];
+          }
+        }
+        break;
+      case LT:
+        for (int j = 0; j < count; j++) {
+          if (compares[j] < 0) {
+            selection[k++] = selection[j];
+          }
+        }
+        break;
+      case LE:
+        for (int j = 0; j < count; j++) {
+          if (compares[j] <= 0) {
+            selection[k++] = selection[j];
+          }
+        }
+        break;
+      case GT:
+        for (int j = 0; j < count; j++) {
+          if (compares[j] > 0) {
+            selection[k++] = selection[j];
+          }
+        }
+        break;
+      case GE:
+        for (int j = 0; j < count; j++) {
+          if (compares[j] >= 0) {
+            selection[k++] = selection[j];
+          }
+        }
+        break;
+      default:
+        throw new AssertionError(comparison);
+      }
+      return k;
+    }
+  }
+
+  /** Work area for a scan that evaluates {@link ColumnFilter}s over batches
+   * of rows. */
+  private static class Batch {
+    static final int SIZE = 1024;
+
+    final Object[] rows = new Object[SIZE];
+    /** Indexes of the rows that have passed the filters so far. */
+    final int[] selection = new int[SIZE];
+    /** Values of the current column, aligned with {@link #selection}. */
+    final Object[] column = new Object[SIZE];
+    final int[] ints = new int[SIZE];
+    final float[] floats = new float[SIZE];
+    final boolean[] booleans = new boolean[SIZE];
+    /** Result of comparing each value with a constant. */
+    final int[] compares = new int[SIZE];
+  }
+
+  /** Implementation of {@link RowSink} for a {@code join} clause.
+   *
+   * <p>If the scan's condition, and the conditions of the {@code where}
+   * steps that immediately follow it, are all {@link ColumnFilter}s on
+   * the variables that this scan binds, evaluates them over batches of
+   * {@link Batch#SIZE} rows, and sends the rows that pass to the step after
+   * the last such {@code where}. */
+  static class ScanRowSink implements RowSink {
+    final Op op; // inner, left, right, full
+    private final Core.Pat pat;
+    private final Code code;
+    final Code conditionCode;
+    final RowSink rowSink;
+    /** Filters to apply to each batch of rows, or null if rows are not
+     * processed in batches. */
+    private final @Nullable ImmutableList<ColumnFilter> batchFilters;
+    /** For each batch filter, the path from an element to the column. */
+    private final int[][] batchPaths;
+    /** Sink that receives rows that pass the batch filters. */
+    private final RowSink batchSink;
+    private Batch batch;
+
+    ScanRowSink(Op op, Core.Pat pat, Code code, Code conditionCode,
+        @Nullable ImmutableList<ColumnFilter> columnFilters,
+        RowSink rowSink) {
+      checkArgument(op == Op.INNER_JOIN);
+      this.op = op;
+      this.pat = pat;
+      this.code = code;
+      this.conditionCode = conditionCode;
+      this.rowSink = rowSink;
+
+      // Gather the filters that can be applied to batches.
+      final List<ColumnFilter> filters = new ArrayList<>();
+      final List<int[]> paths = new ArrayList<>();
+      RowSink sink = rowSink;
+      if (isConstantTrue(conditionCode)
+          || columnFilters != null && addPaths(columnFilters, filters, paths)) {
+        while (sink instanceof WhereRowSink
+            && ((WhereRowSink) sink).columnFilters != null
+            && addPaths(((WhereRowSink) sink).columnFilters, filters, paths)) {
+          sink = ((WhereRowSink) sink).rowSink;
+        }
+      }
+      if (filters.isEmpty()) {
+        this.batchFilters = null;
+        this.batchPaths = null;
+        this.batchSink = null;
+      } else {
+        this.batchFilters = ImmutableList.copyOf(filters);
+        this.batchPaths = paths.toArray(new int[0][]);
+        this.batchSink = sink;
+      }
+    }
+
+    /** Adds filters and the path to the column of each; returns false, and
+     * adds nothing, if any filter references a variable not bound by this
+     * scan. */
+    private boolean addPaths(List<ColumnFilter> columnFilters,
+        List<ColumnFilter> filters, List<int[]> paths) {
+      final List<int[]> paths2 = new ArrayList<>();
+      for (ColumnFilter filter : columnFilters) {
+        final int[] path = path(filter);
+        if (path == null) {
+          return false;
+        }
+        paths2.add(path);
+      }
+      filters.addAll(columnFilters);
+      paths.addAll(paths2);
+      return true;
+    }
+
+    /** Returns the field ordinals that lead from an element to a filter's
+     * column, or null if this scan does not bind the filter's variable. */
+    private int[] path(ColumnFilter filter) {
+      final int[] suffix = filter.field < 0 ? new int[0] : new int[] {filter.field};
+      if (pat.equals(filter.idPat)) {
+        return suffix;
+      }
+      final List<Core.Pat> args;
+      if (pat instanceof Core.TuplePat) {
+        args = ((Core.TuplePat) pat).args;
+      } else if (pat instanceof Core.RecordPat) {
+        args = ((Core.RecordPat) pat).args;
+      } else {
+        return null;
+      }
+      final int i = args.indexOf(filter.idPat);
+      if (i < 0) {
+        return null;
+      }
+      final int[] path = new int[suffix.length + 1];
+      path[0] = i;
+      System.arraycopy(suffix, 0, path, 1, suffix.length);
+      return path;
+    }
+
+    @Override public Describer describe(Describer describer) {
+      return describer.start("join", d ->
+          d.arg("op", op.padded.trim())
+              .arg("pat", pat)
+              .arg("exp", code)
+              .argIf("condition", conditionCode, !isConstantTrue(conditionCode))
+              .arg("sink", rowSink));
+    }
+
+    private static boolean isConstantTrue(Code code) {
+      return code.isConstant()
+          && Objects.equals(code.eval(null), true);
+    }
+
+    public void accept(EvalEnv env) {
+      accept(env, (Iterable<Object>) code.eval(env));
+    }
+
+    /** Scans a given collection of elements, rather than the collection
+     * returned by evaluating this scan's expression. */
+    void accept(EvalEnv env, Iterable<Object> elements) {
+      final MutableEvalEnv mutableEvalEnv = env.bindMutablePat(pat);
+      if (batchFilters != null) {
+        if (batch == null) {
+          batch = new Batch();
+        }
+        int n = 0;
+        for (Object element : elements) {
+          batch.rows[n++] = element;
+          if (n == Batch.SIZE) {
+            acceptBatch(mutableEvalEnv, n);
+            n = 0;
+          }
+        }
+        if (n > 0) {
+          acceptBatch(mutableEvalEnv, n);
+        }
+        return;
+      }
       for (Object element : elements) {
         if (mutableEvalEnv.setOpt(element)) {
           Boolean b = (Boolean) conditionCode.eval(mutableEvalEnv);
@@ -2190,19 +3469,123 @@ public abstract class Codes {
       }
     }
 
+    /** Applies the batch filters to the first {@code n} rows of the batch,
+     * and sends the rows that pass to the sink. */
+    private void acceptBatch(MutableEvalEnv mutableEvalEnv, int n) {
+      final Object[] rows = batch.rows;
+      final int[] selection = batch.selection;
+      for (int j = 0; j < n; j++) {
+        selection[j] = j;
+      }
+      int count = n;
+      for (int f = 0; f < batchFilters.size() && count > 0; f++) {
+        final int[] path = batchPaths[f];
+        final Object[] column = batch.column;
+        for (int j = 0; j < count; j++) {
+          Object o = rows[selection[j]];
+          for (int p : path) {
+            o = ((List) o).get(p);
+          }
+          column[j] = o;
+        }
+        count = batchFilters.get(f).filter(batch, count);
+      }
+      for (int j = 0; j < count; j++) {
+        mutableEvalEnv.setOpt(rows[selection[j]]);
+        batchSink.accept(mutableEvalEnv);
+      }
+      Arrays.fill(rows, 0, n, null);
+    }
+
+    public List<Object> result(EvalEnv env) {
+      return rowSink.result(env);
+    }
+  }
+
+  /** Implementation of {@link RowSink} for a {@code join} clause whose
+   * condition includes one or more equality predicates between the scan and
+   * previous steps.
+   *
+   * <p>On the first row, evaluates the scan's expression and builds a hash
+   * table from the inner key of each element; thereafter, for each row,
+   * looks up the outer key, and emits the matching elements in their original
+   * order. The result is therefore the same as for {@link ScanRowSink}, but
+   * takes time proportional to the sum, rather than the product, of the
+   * sizes of the inputs. */
+  static class HashJoinRowSink implements RowSink {
+    final Op op;
+    private final Core.Pat pat;
+    private final Code code;
+    private final Code innerKeyCode;
+    private final Code outerKeyCode;
+    final Code conditionCode;
+    final RowSink rowSink;
+    /** Elements of the scan, indexed by inner key; populated on first use. */
+    private ListMultimap<Object, Object> multimap;
+
+    HashJoinRowSink(Op op, Core.Pat pat, Code code, Code innerKeyCode,
+        Code outerKeyCode, Code conditionCode, RowSink rowSink) {
+      checkArgument(op == Op.INNER_JOIN);
+      this.op = op;
+      this.pat = pat;
+      this.code = code;
+      this.innerKeyCode = innerKeyCode;
+      this.outerKeyCode = outerKeyCode;
+      this.conditionCode = conditionCode;
+      this.rowSink = rowSink;
+    }
+
+    @Override public Describer describe(Describer describer) {
+      return describer.start("hashJoin", d ->
+          d.arg("op", op.padded.trim())
+              .arg("pat", pat)
+              .arg("exp", code)
+              .arg("innerKey", innerKeyCode)
+              .arg("outerKey", outerKeyCode)
+              .argIf("condition", conditionCode,
+                  !ScanRowSink.isConstantTrue(conditionCode))
+              .arg("sink", rowSink));
+    }
+
+    public void accept(EvalEnv env) {
+      final MutableEvalEnv mutableEvalEnv = env.bindMutablePat(pat);
+      if (multimap == null) {
+        multimap = ArrayListMultimap.create();
+        final Iterable<Object> elements = (Iterable<Object>) code.eval(env);
+        for (Object element : elements) {
+          if (mutableEvalEnv.setOpt(element)) {
+            multimap.put(innerKeyCode.eval(mutableEvalEnv), element);
+          }
+        }
+      }
+      final Object key = outerKeyCode.eval(env);
+      for (Object element : multimap.get(key)) {
+        mutableEvalEnv.setOpt(element);
+        Boolean b = (Boolean) conditionCode.eval(mutableEvalEnv);
+        if (b != null && b) {
+          rowSink.accept(mutableEvalEnv);
+        }
+      }
+    }
+
     public List<Object> result(EvalEnv env) {
       return rowSink.result(env);
     }
   }
 
   /** Implementation of {@link RowSink} for a {@code where} clause. */
-  static class WhereRowSink implements RowSink {
+  static class WhereRowSink extends FilterRowSink {
     final Code filterCode;
-    final RowSink rowSink;
+    /** The condition as a list of filters, or null if it cannot be
+     * expressed so. */
+    final @Nullable ImmutableList<ColumnFilter> columnFilters;
 
-    WhereRowSink(Code filterCode, RowSink rowSink) {
+    WhereRowSink(Code filterCode,
+        @Nullable ImmutableList<ColumnFilter> columnFilters,
+        RowSink rowSink) {
+      super(rowSink);
       this.filterCode = filterCode;
-      this.rowSink = rowSink;
+      this.columnFilters = columnFilters;
     }
 
     @Override public Describer describe(Describer describer) {
@@ -2211,8 +3594,74 @@ public abstract class Codes {
               .arg("sink", rowSink));
     }
 
+    @Override boolean test(EvalEnv env) {
+      return (Boolean) filterCode.eval(env);
+    }
+  }
+
+  /** Implementation of {@link RowSink} for a semi-join or anti-join; a
+   * {@code where} clause whose condition is
+   * {@code key elem collection}, {@code key notElem collection}, or
+   * {@code exists collection}, and whose collection does not depend on the
+   * current row. */
+  static class SemiJoinRowSink extends FilterRowSink {
+    private final @Nullable Code keyCode;
+    private final Code collectionCode;
+    private final boolean anti;
+    /** Elements of the collection; populated on first use. */
+    private Set<Object> set;
+
+    SemiJoinRowSink(@Nullable Code keyCode, Code collectionCode,
+        boolean anti, RowSink rowSink) {
+      super(rowSink);
+      this.keyCode = keyCode;
+      this.collectionCode = requireNonNull(collectionCode);
+      this.anti = anti;
+    }
+
+    @Override public Describer describe(Describer describer) {
+      return describer.start(anti ? "antiJoin" : "semiJoin", d ->
+          d.argIf("key", keyCode, keyCode != null)
+              .arg("collection", collectionCode)
+              .arg("sink", rowSink));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override boolean test(EvalEnv env) {
+      if (set == null) {
+        final Iterable<Object> elements =
+            (Iterable<Object>) collectionCode.eval(env);
+        if (keyCode == null) {
+          // Only emptiness matters.
+          set = Iterables.isEmpty(elements)
+              ? ImmutableSet.of()
+              : ImmutableSet.of(Unit.INSTANCE);
+        } else {
+          set = new HashSet<>();
+          Iterables.addAll(set, elements);
+        }
+      }
+      if (keyCode == null) {
+        return set.isEmpty() == anti;
+      }
+      return set.contains(keyCode.eval(env)) != anti;
+    }
+  }
+
+  /** Abstract implementation of {@link RowSink} for a step that sends some
+   * rows to the next step, unchanged, and discards the others. */
+  abstract static class FilterRowSink implements RowSink {
+    final RowSink rowSink;
+
+    FilterRowSink(RowSink rowSink) {
+      this.rowSink = requireNonNull(rowSink);
+    }
+
+    /** Returns whether a row is to be sent to the next step. */
+    abstract boolean test(EvalEnv env);
+
     public void accept(EvalEnv env) {
-      if ((Boolean) filterCode.eval(env)) {
+      if (test(env)) {
         rowSink.accept(env);
       }
     }
@@ -2222,29 +3671,113 @@ public abstract class Codes {
     }
   }
 
-  /** Implementation of {@link RowSink} for a {@code group} clause. */
+  /** Abstract implementation of {@link Accumulator}. Unless overridden,
+   * the result is the state. */
+  private abstract static class AccumulatorImpl implements Accumulator {
+    private final String name;
+
+    AccumulatorImpl(String name) {
+      this.name = requireNonNull(name);
+    }
+
+    @Override public Describer describe(Describer describer) {
+      return describer.start(name, d -> {});
+    }
+
+    @Override public Object result(EvalEnv env, Object state) {
+      return state;
+    }
+  }
+
+  /** Accumulator that computes the minimum or maximum value.
+   *
+   * <p>The state is null until the first value; like
+   * {@link #RELATIONAL_MIN}, the result for an empty group is an error. If
+   * several values are equal, keeps the first. */
+  private static class ExtremeAccumulator extends AccumulatorImpl {
+    /** 1 for minimum, -1 for maximum. */
+    private final int direction;
+
+    ExtremeAccumulator(int direction) {
+      super("aggregate");
+      this.direction = direction;
+    }
+
+    @Override public Object init() {
+      return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public Object add(Object state, Object value) {
+      return state == null
+          || ((Comparable) value).compareTo(state) * direction < 0
+          ? value : state;
+    }
+
+    @Override public Object merge(Object state0, Object state1) {
+      return state1 == null ? state0 : add(state0, state1);
+    }
+
+    @Override public Object result(EvalEnv env, Object state) {
+      if (state == null) {
+        throw new NoSuchElementException();
+      }
+      return state;
+    }
+  }
+
+  /** Implementation of {@link RowSink} for a {@code group} clause.
+   *
+   * <p>Emits groups in the order that their keys were first seen.
+   *
+   * <p>If there are more than {@link #memoryBudget} groups in memory, writes
+   * each group's key, sequence number and aggregate states to one of
+   * {@link #PARTITION_COUNT} temporary files, chosen by the key's hash
+   * code, and starts again with an empty map. Sequence numbers increase in
+   * the order that groups are written, so the first-seen order of keys is
+   * the order of their lowest sequence numbers. At the end, reads each
+   * partition in turn, merges the states of groups with the same key, and
+   * writes the groups, sorted by sequence number, to a run; then merges the
+   * runs. So the output does not depend on the memory budget. */
   private static class GroupRowSink implements RowSink {
+    private static final int PARTITION_COUNT = 16;
+
     final Code keyCode;
-    final ImmutableList<String> inNames;
     final ImmutableList<String> keyNames;
     /** group names followed by aggregate names */
     final ImmutableList<String> outNames;
-    final ImmutableList<Applicable> aggregateCodes;
+    /** Code to compute, for each aggregate function, its argument from the
+     * input row. */
+    final ImmutableList<Code> argumentCodes;
+    final ImmutableList<Accumulator> accumulators;
     final RowSink rowSink;
-    final ListMultimap<Object, Object> map = ArrayListMultimap.create();
-    final Object[] values;
-
-    GroupRowSink(Code keyCode, ImmutableList<Applicable> aggregateCodes,
-        ImmutableList<String> inNames, ImmutableList<String> keyNames,
-        ImmutableList<String> outNames, RowSink rowSink) {
+    /** For each key, the state of each aggregate function; in the order
+     * that keys were first seen. */
+    final Map<Object, Object[]> map = new LinkedHashMap<>();
+    /** Maximum number of groups in {@link #map}, or -1 if no limit. */
+    final int memoryBudget;
+    /** Files containing groups that have been spilled, one per partition;
+     * null until the first spill. */
+    private SpillFile[] partitions;
+    /** Sequence number of the next group to be spilled. */
+    private int seq;
+    /** Runs of groups sorted by sequence number, one per partition; created
+     * when the partitions are merged. */
+    private final List<SpillFile> runs = new ArrayList<>();
+
+    GroupRowSink(Code keyCode, ImmutableList<Code> argumentCodes,
+        ImmutableList<Accumulator> accumulators,
+        ImmutableList<String> keyNames, ImmutableList<String> outNames,
+        int memoryBudget, RowSink rowSink) {
       this.keyCode = requireNonNull(keyCode);
-      this.aggregateCodes = requireNonNull(aggregateCodes);
-      this.inNames = requireNonNull(inNames);
+      this.argumentCodes = requireNonNull(argumentCodes);
+      this.accumulators = requireNonNull(accumulators);
       this.keyNames = requireNonNull(keyNames);
       this.outNames = requireNonNull(outNames);
+      this.memoryBudget = memoryBudget;
       this.rowSink = requireNonNull(rowSink);
-      this.values = inNames.size() == 1 ? null : new Object[inNames.size()];
       checkArgument(isPrefix(keyNames, outNames));
+      checkArgument(argumentCodes.size() == accumulators.size());
     }
 
     private static <E> boolean isPrefix(List<E> list0, List<E> list1) {
@@ -2255,20 +3788,117 @@ public abstract class Codes {
     @Override public Describer describe(Describer describer) {
       return describer.start("group", d -> {
         d.arg("key", keyCode);
-        aggregateCodes.forEach(a -> d.arg("agg", a));
+        accumulators.forEach(a -> d.arg("agg", a));
         d.arg("sink", rowSink);
       });
     }
 
+    /** Creates the states for a new group. */
+    private Object[] init() {
+      final Object[] states = new Object[accumulators.size()];
+      for (int i = 0; i < states.length; i++) {
+        states[i] = accumulators.get(i).init();
+      }
+      return states;
+    }
+
     public void accept(EvalEnv env) {
-      if (inNames.size() == 1) {
-        map.put(keyCode.eval(env), env.getOpt(inNames.get(0)));
+      final Object key = keyCode.eval(env);
+      Object[] states = map.get(key);
+      if (states == null) {
+        if (memoryBudget >= 0 && map.size() >= memoryBudget) {
+          spill();
+        }
+        states = init();
+        map.put(key, states);
+      }
+      for (int i = 0; i < states.length; i++) {
+        states[i] =
+            accumulators.get(i).add(states[i], argumentCodes.get(i).eval(env));
+      }
+    }
+
+    /** Adds the groups of another group sink to this one. If {@code sink}
+     * received the later rows, the groups are as if this sink had received
+     * all rows. */
+    void merge(GroupRowSink sink) {
+      if (partitions == null && sink.partitions == null) {
+        mergeInto(map, sink.map);
+        return;
+      }
+      // Write our groups, then the other sink's spilled groups (whose
+      // sequence numbers follow ours), to our partitions; then take the
+      // other sink's groups in memory.
+      spill();
+      if (sink.partitions != null) {
+        for (int p = 0; p < PARTITION_COUNT; p++) {
+          final SpillFile.Reader reader = sink.partitions[p].read();
+          while (reader.hasNext()) {
+            final Object key = reader.read();
+            final int seq2 = reader.readInt();
+            write(partitions[p], key, seq + seq2, readStates(reader));
+          }
+          sink.partitions[p].delete();
+        }
+        seq += sink.seq;
+        sink.partitions = null;
+      }
+      map.putAll(sink.map);
+    }
+
+    /** Merges the groups in {@code map1} into {@code map0}. */
+    private void mergeInto(Map<Object, Object[]> map0,
+        Map<Object, Object[]> map1) {
+      map1.forEach((key, states1) -> mergeInto(map0, key, states1));
+    }
+
+    /** Merges a group into {@code map0}. */
+    private void mergeInto(Map<Object, Object[]> map0, Object key,
+        Object[] states1) {
+      final Object[] states0 = map0.get(key);
+      if (states0 == null) {
+        map0.put(key, states1);
       } else {
-        for (int i = 0; i < inNames.size(); i++) {
-          values[i] = env.getOpt(inNames.get(i));
+        for (int i = 0; i < states0.length; i++) {
+          states0[i] = accumulators.get(i).merge(states0[i], states1[i]);
+        }
+      }
+    }
+
+    /** Writes the groups in memory to the partition files, and clears
+     * the map. */
+    private void spill() {
+      if (partitions == null) {
+        partitions = new SpillFile[PARTITION_COUNT];
+        for (int p = 0; p < PARTITION_COUNT; p++) {
+          partitions[p] = SpillFile.create();
         }
-        map.put(keyCode.eval(env), values.clone());
       }
+      map.forEach((key, states) -> write(partitions[partition(key)], key,
+          seq++, states));
+      map.clear();
+    }
+
+    private static int partition(Object key) {
+      return Math.floorMod(key.hashCode(), PARTITION_COUNT);
+    }
+
+    private static void write(SpillFile file, Object key, int seq,
+        Object[] states) {
+      file.write(key);
+      file.writeInt(seq);
+      file.writeInt(states.length);
+      for (Object state : states) {
+        file.write(state);
+      }
+    }
+
+    private static Object[] readStates(SpillFile.Reader reader) {
+      final Object[] states = new Object[reader.readInt()];
+      for (int i = 0; i < states.length; i++) {
+        states[i] = reader.read();
+      }
+      return states;
     }
 
     public List<Object> result(final EvalEnv env) {
@@ -2286,45 +3916,164 @@ public abstract class Codes {
       final EvalEnv env3 =
           keyNames.isEmpty() ? env : groupEnvs[keyNames.size() - 1];
 
-      final Map<Object, List<Object>> map2;
+      if (partitions != null) {
+        // Groups have been spilled. Write the groups in memory too, so that
+        // they have sequence numbers. For each partition, merge groups with
+        // the same key, and write the groups to a run in the order of their
+        // first sequence number; then merge the runs.
+        spill();
+        for (int p = 0; p < PARTITION_COUNT; p++) {
+          final Map<Object, Object[]> map2 = new LinkedHashMap<>();
+          final Map<Object, Integer> seqs = new HashMap<>();
+          final SpillFile.Reader reader = partitions[p].read();
+          while (reader.hasNext()) {
+            final Object key = reader.read();
+            seqs.putIfAbsent(key, reader.readInt());
+            mergeInto(map2, key, readStates(reader));
+          }
+          partitions[p].delete();
+          final SpillFile run = SpillFile.create();
+          map2.forEach((key, states) ->
+              write(run, key, seqs.get(key), states));
+          run.finish();
+          runs.add(run);
+        }
+        partitions = null;
+        final List<Iterator<OrderRow>> iterators = new ArrayList<>();
+        for (SpillFile run : runs) {
+          iterators.add(runIterator(run.read()));
+        }
+        final Iterator<OrderRow> iterator =
+            new MergingIterator(iterators,
+                Comparator.comparingInt(row -> row.ordinal));
+        while (iterator.hasNext()) {
+          final Object[] group = (Object[]) iterator.next().row;
+          emit(group[0], (Object[]) group[1], env2, env3, groupEnvs);
+        }
+        release();
+        return rowSink.result(env);
+      }
+
+      final Map<Object, Object[]> map2;
       if (map.isEmpty()
           && keyCode instanceof TupleCode
           && ((TupleCode) keyCode).codes.isEmpty()) {
         // There are no keys, and there were no input rows.
-        map2 = ImmutableMap.of(ImmutableList.of(), ImmutableList.of());
+        map2 = ImmutableMap.of(ImmutableList.of(), init());
       } else {
-        //noinspection UnstableApiUsage
-        map2 = Multimaps.asMap(map);
+        map2 = map;
       }
-      for (Map.Entry<Object, List<Object>> entry : map2.entrySet()) {
-        final List list = (List) entry.getKey();
-        for (i = 0; i < list.size(); i++) {
-          groupEnvs[i].set(list.get(i));
+      emit(map2, env2, env3, groupEnvs);
+      return rowSink.result(env);
+    }
+
+    /** Returns an iterator over the groups in a run, each as a row whose
+     * ordinal is its sequence number and whose value is its key and
+     * states. */
+    private static Iterator<OrderRow> runIterator(SpillFile.Reader reader) {
+      return new Iterator<OrderRow>() {
+        public boolean hasNext() {
+          return reader.hasNext();
         }
-        final List<Object> rows = entry.getValue(); // rows in this bucket
-        for (Applicable aggregateCode : aggregateCodes) {
-          groupEnvs[i++].set(aggregateCode.apply(env3, rows));
+
+        public OrderRow next() {
+          final Object key = reader.read();
+          final int seq = reader.readInt();
+          final Object[] group = {key, readStates(reader)};
+          return new OrderRow(new Comparable[0], group, seq);
+        }
+      };
+    }
+
+    /** Deletes this sink's temporary files. */
+    void release() {
+      if (partitions != null) {
+        for (SpillFile partition : partitions) {
+          partition.delete();
         }
-        rowSink.accept(env2);
+        partitions = null;
       }
-      return rowSink.result(env);
+      runs.forEach(SpillFile::delete);
+      runs.clear();
+    }
+
+    /** Sends a row for each group to the next sink. */
+    private void emit(Map<Object, Object[]> map2, EvalEnv env2,
+        EvalEnv env3, MutableEvalEnv[] groupEnvs) {
+      map2.forEach((key, states) ->
+          emit(key, states, env2, env3, groupEnvs));
+    }
+
+    /** Sends a row for a group to the next sink. */
+    private void emit(Object key, Object[] states, EvalEnv env2,
+        EvalEnv env3, MutableEvalEnv[] groupEnvs) {
+      final List list = (List) key;
+      int i;
+      for (i = 0; i < list.size(); i++) {
+        groupEnvs[i].set(list.get(i));
+      }
+      for (int j = 0; j < states.length; j++) {
+        groupEnvs[i++].set(accumulators.get(j).result(env3, states[j]));
+      }
+      rowSink.accept(env2);
     }
   }
 
-  /** Implementation of {@link RowSink} for an {@code order} clause. */
+  /** Implementation of {@link RowSink} for an {@code order} clause.
+   *
+   * <p>Evaluates the sort keys of each row once, as the row arrives, and
+   * sorts rows by comparing their keys.
+   *
+   * <p>If the consumer needs only the first few rows (see {@link #limit}),
+   * keeps only that many rows, in a heap, and discards the rest.
+   *
+   * <p>Otherwise, if it has received {@link #memoryBudget} rows, sorts them
+   * and writes them as a run to a temporary file. At the end, merges the
+   * runs and the rows in memory. */
   static class OrderRowSink implements RowSink {
     final List<Pair<Code, Boolean>> codes;
     final ImmutableList<String> names;
     final RowSink rowSink;
-    final List<Object> rows = new ArrayList<>();
+    final List<OrderRow> rows = new ArrayList<>();
     final Object[] values;
+    /** Comparator of rows by their keys. */
+    final Comparator<OrderRow> comparator;
+    /** Maximum number of rows to emit, or -1 to emit all rows. */
+    int limit = -1;
+    /** If {@link #limit} is set, the best rows so far; the head of the queue
+     * is the worst of them. */
+    private PriorityQueue<OrderRow> heap;
+    /** Number of rows received. */
+    private int count;
+    /** Maximum number of rows in {@link #rows}, or -1 if no limit. */
+    final int memoryBudget;
+    /** Sorted runs of rows that have been spilled. */
+    private final List<SpillFile> runs = new ArrayList<>();
+    /** Rows merged from several sinks; if not null, {@link #emit} sends
+     * these rather than this sink's rows. */
+    private Iterator<OrderRow> merged;
 
     OrderRowSink(List<Pair<Code, Boolean>> codes,
-        ImmutableList<String> names, RowSink rowSink) {
+        ImmutableList<String> names, int memoryBudget, RowSink rowSink) {
       this.codes = codes;
       this.names = names;
+      this.memoryBudget = memoryBudget;
       this.rowSink = rowSink;
       this.values = names.size() == 1 ? null : new Object[names.size()];
+      final boolean[] descending = new boolean[codes.size()];
+      for (int i = 0; i < descending.length; i++) {
+        descending[i] = codes.get(i).right;
+      }
+      this.comparator = (left, right) -> {
+        for (int i = 0; i < descending.length; i++) {
+          @SuppressWarnings("unchecked")
+          int c = left.keys[i].compareTo(right.keys[i]);
+          if (c != 0) {
+            return descending[i] ? -c : c;
+          }
+        }
+        return 0;
+      };
     }
 
     @Override public Describer describe(Describer describer) {
@@ -2336,38 +4085,207 @@ public abstract class Codes {
     }
 
     public void accept(EvalEnv env) {
+      final Comparable[] keys = new Comparable[codes.size()];
+      for (int i = 0; i < keys.length; i++) {
+        keys[i] = (Comparable) codes.get(i).left.eval(env);
+      }
+      final Object row;
       if (values == null) {
-        rows.add(env.getOpt(names.get(0)));
+        row = env.getOpt(names.get(0));
       } else {
         for (int i = 0; i < names.size(); i++) {
           values[i] = env.getOpt(names.get(i));
         }
-        rows.add(values.clone());
+        row = values.clone();
+      }
+      final OrderRow orderRow = new OrderRow(keys, row, count++);
+      if (limit < 0) {
+        rows.add(orderRow);
+        if (memoryBudget >= 0 && rows.size() >= Math.max(memoryBudget, 1)) {
+          spill();
+        }
+        return;
+      }
+      if (heap == null) {
+        // Worst row at the head. Of rows with equal keys, the one that
+        // arrived later is worse.
+        heap =
+            new PriorityQueue<>(Math.max(limit, 1),
+                comparator.thenComparingInt(r -> r.ordinal).reversed());
+      }
+      heap.add(orderRow);
+      if (heap.size() > limit) {
+        heap.poll();
       }
     }
 
     public List<Object> result(final EvalEnv env) {
-      final MutableEvalEnv leftEnv = env.bindMutableArray(names);
-      final MutableEvalEnv rightEnv = env.bindMutableArray(names);
-      rows.sort((left, right) -> {
-        leftEnv.set(left);
-        rightEnv.set(right);
-        for (Pair<Code, Boolean> code : codes) {
-          final Comparable leftVal = (Comparable) code.left.eval(leftEnv);
-          final Comparable rightVal = (Comparable) code.left.eval(rightEnv);
-          int c = leftVal.compareTo(rightVal);
-          if (c != 0) {
-            return code.right ? -c : c;
+      sort(env);
+      return emit(env);
+    }
+
+    /** Sorts the rows received so far. The sort is stable. */
+    void sort(EvalEnv env) {
+      if (heap != null) {
+        rows.addAll(heap);
+        heap = null;
+        rows.sort(comparator.thenComparingInt(r -> r.ordinal));
+      } else {
+        rows.sort(comparator);
+      }
+    }
+
+    /** Sorts the rows in memory, writes them to a new run, and clears
+     * them. */
+    private void spill() {
+      rows.sort(comparator);
+      final SpillFile run = SpillFile.create();
+      for (OrderRow row : rows) {
+        run.writeInt(row.keys.length);
+        for (Comparable key : row.keys) {
+          run.write(key);
+        }
+        run.write(row.row);
+        run.writeInt(row.ordinal);
+      }
+      run.finish();
+      runs.add(run);
+      rows.clear();
+    }
+
+    /** Returns the rows received so far, in order. Call {@link #sort}
+     * first. */
+    private Iterator<OrderRow> sorted() {
+      if (runs.isEmpty()) {
+        return rows.iterator();
+      }
+      // Each run's rows arrived before the next run's, and the rows in
+      // memory arrived last; so a merge that prefers the earlier run is
+      // stable.
+      final List<Iterator<OrderRow>> iterators = new ArrayList<>();
+      for (SpillFile run : runs) {
+        iterators.add(runIterator(run.read()));
+      }
+      iterators.add(rows.iterator());
+      return new MergingIterator(iterators, comparator);
+    }
+
+    private static Iterator<OrderRow> runIterator(SpillFile.Reader reader) {
+      return new Iterator<OrderRow>() {
+        public boolean hasNext() {
+          return reader.hasNext();
+        }
+
+        public OrderRow next() {
+          final Comparable[] keys = new Comparable[reader.readInt()];
+          for (int i = 0; i < keys.length; i++) {
+            keys[i] = (Comparable) reader.read();
           }
+          final Object row = reader.read();
+          return new OrderRow(keys, row, reader.readInt());
         }
-        return 0;
-      });
-      for (Object row : rows) {
-        leftEnv.set(row);
-        rowSink.accept(leftEnv);
+      };
+    }
+
+    /** Merges the sorted rows of other order sinks into this sink's sorted
+     * rows. If two rows compare equal, the row from the earlier sink comes
+     * first; so if each sink received rows that came after the previous
+     * sink's rows, the result is as if this sink had received and sorted all
+     * of the rows. */
+    void merge(EvalEnv env, List<RowSink> sinks) {
+      final List<Iterator<OrderRow>> iterators = new ArrayList<>();
+      iterators.add(sorted());
+      sinks.forEach(sink -> iterators.add(((OrderRowSink) sink).sorted()));
+      merged = new MergingIterator(iterators, comparator);
+      sinks.forEach(sink -> runs.addAll(((OrderRowSink) sink).runs));
+    }
+
+    /** Sends the rows, in order, to the next sink. */
+    List<Object> emit(EvalEnv env) {
+      final Iterator<OrderRow> iterator = merged != null ? merged : sorted();
+      final MutableEvalEnv rowEnv = env.bindMutableArray(names);
+      try {
+        for (int i = 0; (limit < 0 || i < limit) && iterator.hasNext(); i++) {
+          rowEnv.set(iterator.next().row);
+          rowSink.accept(rowEnv);
+        }
+      } finally {
+        release();
       }
       return rowSink.result(env);
     }
+
+    /** Deletes this sink's temporary files. */
+    void release() {
+      runs.forEach(SpillFile::delete);
+      runs.clear();
+    }
+  }
+
+  /** Iterator that merges several sorted iterators of rows. If two rows
+   * compare equal, the row from the earlier iterator comes first. */
+  private static class MergingIterator implements Iterator<OrderRow> {
+    private final List<Iterator<OrderRow>> iterators;
+    /** Next row of each iterator, or null if it is exhausted. */
+    private final OrderRow[] heads;
+    /** Queue of iterator indexes, ordered by each iterator's next row, then
+     * by index. */
+    private final PriorityQueue<Integer> queue;
+
+    MergingIterator(List<Iterator<OrderRow>> iterators,
+        Comparator<OrderRow> comparator) {
+      this.iterators = iterators;
+      this.heads = new OrderRow[iterators.size()];
+      this.queue =
+          new PriorityQueue<>(Math.max(iterators.size(), 1), (i, j) -> {
+            final int c = comparator.compare(heads[i], heads[j]);
+            return c != 0 ? c : Integer.compare(i, j);
+          });
+      for (int i = 0; i < iterators.size(); i++) {
+        advance(i);
+      }
+    }
+
+    private void advance(int i) {
+      final Iterator<OrderRow> iterator = iterators.get(i);
+      if (iterator.hasNext()) {
+        heads[i] = iterator.next();
+        queue.add(i);
+      } else {
+        heads[i] = null;
+      }
+    }
+
+    public boolean hasNext() {
+      return !queue.isEmpty();
+    }
+
+    public OrderRow next() {
+      if (queue.isEmpty()) {
+        throw new NoSuchElementException();
+      }
+      final int i = queue.poll();
+      final OrderRow row = heads[i];
+      advance(i);
+      return row;
+    }
+  }
+
+  /** Row to be sorted by an {@link OrderRowSink}, with its sort keys; or a
+   * group to be merged by a {@link GroupRowSink}, with its sequence
+   * number. */
+  private static class OrderRow {
+    final Comparable[] keys;
+    final Object row;
+    /** Position in which the row arrived, or the group's sequence
+     * number. */
+    final int ordinal;
+
+    OrderRow(Comparable[] keys, Object row, int ordinal) {
+      this.keys = keys;
+      this.row = row;
+      this.ordinal = ordinal;
+    }
   }
 
   /** Implementation of {@link RowSink} for a {@code yield} step.
@@ -2398,6 +4316,12 @@ public abstract class Codes {
     }
 
     @Override public void accept(EvalEnv env) {
+      rowSink.accept(bind(env));
+    }
+
+    /** Evaluates the expressions, and returns an environment that binds
+     * them to their names. */
+    EvalEnv bind(EvalEnv env) {
       final MutableEvalEnv env2 = env.bindMutableArray(names);
       if (values == null) {
         final Object value = codes.get(0).eval(env);
@@ -2408,7 +4332,7 @@ public abstract class Codes {
         }
         env2.set(values);
       }
-      rowSink.accept(env2);
+      return env2;
     }
 
     @Override public List<Object> result(EvalEnv env) {
@@ -2460,15 +4384,45 @@ public abstract class Codes {
     }
   }
 
+  /** Code that retrieves the value of a variable from a known slot of a
+   * known frame of the environment. */
+  private static class SlotGetCode implements Code {
+    private final String name;
+    private final int depth;
+    private final int slot;
+
+    SlotGetCode(String name, int depth, int slot) {
+      this.name = requireNonNull(name);
+      this.depth = depth;
+      this.slot = slot;
+    }
+
+    @Override public Describer describe(Describer describer) {
+      return describer.start("get", d -> d.arg("name", name));
+    }
+
+    @Override public String toString() {
+      return "get(" + name + ")";
+    }
+
+    public Object eval(EvalEnv env) {
+      EvalEnvs.FrameEvalEnv frame = (EvalEnvs.FrameEvalEnv) env;
+      for (int i = 0; i < depth; i++) {
+        frame = (EvalEnvs.FrameEvalEnv) frame.parentEnv;
+      }
+      assert frame.name(slot).equals(name)
+          : "expected " + name + ", found " + frame.name(slot);
+      return frame.get(slot);
+    }
+  }
+
   /** Code that retrieves, as a tuple, the value of several variables from the
    * environment. */
   private static class GetTupleCode implements Code {
     private final ImmutableList<String> names;
-    private final Object[] values; // work space
 
     GetTupleCode(ImmutableList<String> names) {
       this.names = requireNonNull(names);
-      this.values = new Object[names.size()];
     }
 
     @Override public Describer describe(Describer describer) {
@@ -2480,10 +4434,13 @@ public abstract class Codes {
     }
 
     @Override public Object eval(EvalEnv env) {
+      // Allocate values on each call, because this code may be shared by
+      // several threads; see FromCode.evalParallel
+      final Object[] values = new Object[names.size()];
       for (int i = 0; i < names.size(); i++) {
         values[i] = env.getOpt(names.get(i));
       }
-      return Arrays.asList(values.clone());
+      return tupleValue(values);
     }
   }
 
@@ -2631,8 +4588,8 @@ public abstract class Codes {
 
   /** Applies an {@link Applicable} to a {@link Code}. */
   private static class ApplyCode implements Code {
-    private final Applicable fnValue;
-    private final Code argCode;
+    final Applicable fnValue;
+    final Code argCode;
 
     ApplyCode(Applicable fnValue, Code argCode) {
       this.fnValue = fnValue;
@@ -2650,6 +4607,184 @@ public abstract class Codes {
     }
   }
 
+  /** Applies a binary built-in function to the values of two {@link Code}s,
+   * without creating a tuple. Describes itself the same as an
+   * {@link ApplyCode} whose argument is a {@link TupleCode}. */
+  private abstract static class BinaryCode implements Code {
+    final Applicable fnValue;
+    final Code code0;
+    final Code code1;
+
+    BinaryCode(Object fnValue, Code code0, Code code1) {
+      this.fnValue = (Applicable) requireNonNull(fnValue);
+      this.code0 = requireNonNull(code0);
+      this.code1 = requireNonNull(code1);
+    }
+
+    @Override public Describer describe(Describer describer) {
+      return describer.start("apply", d ->
+          d.arg("fnValue", fnValue)
+              .arg("argCode", tuple(ImmutableList.of(code0, code1))));
+    }
+  }
+
+  /** Arithmetic on two {@code int} values.
+   *
+   * @see #intArithmetic(BuiltIn, Code, Code) */
+  private static class IntArithmeticCode extends BinaryCode {
+    private final IntBinaryOperator op;
+
+    IntArithmeticCode(Object fnValue, IntBinaryOperator op, Code code0,
+        Code code1) {
+      super(fnValue, code0, code1);
+      this.op = op;
+    }
+
+    @Override public Object eval(EvalEnv env) {
+      return evalInt(env);
+    }
+
+    @Override public int evalInt(EvalEnv env) {
+      return op.applyAsInt(code0.evalInt(env), code1.evalInt(env));
+    }
+  }
+
+  /** Arithmetic on two {@code real} values.
+   *
+   * @see #realArithmetic(BuiltIn, Code, Code) */
+  private static class RealArithmeticCode extends BinaryCode {
+    private final FloatBinaryOperator op;
+
+    RealArithmeticCode(Object fnValue, FloatBinaryOperator op, Code code0,
+        Code code1) {
+      super(fnValue, code0, code1);
+      this.op = op;
+    }
+
+    @Override public Object eval(EvalEnv env) {
+      return evalReal(env);
+    }
+
+    @Override public float evalReal(EvalEnv env) {
+      return op.applyAsFloat(code0.evalReal(env), code1.evalReal(env));
+    }
+  }
+
+  /** Comparison of two {@code int} values.
+   *
+   * @see #intComparison(BuiltIn, Code, Code) */
+  private static class IntComparisonCode extends BinaryCode {
+    private final Comparison comparison;
+
+    IntComparisonCode(Object fnValue, Comparison comparison, Code code0,
+        Code code1) {
+      super(fnValue, code0, code1);
+      this.comparison = comparison;
+    }
+
+    @Override public Object eval(EvalEnv env) {
+      return comparison.test(
+          Integer.compare(code0.evalInt(env), code1.evalInt(env)));
+    }
+  }
+
+  /** Comparison of two {@code real} values.
+   *
+   * @see #realComparison(BuiltIn, Code, Code) */
+  private static class RealComparisonCode extends BinaryCode {
+    private final Comparison comparison;
+
+    RealComparisonCode(Object fnValue, Comparison comparison, Code code0,
+        Code code1) {
+      super(fnValue, code0, code1);
+      this.comparison = comparison;
+    }
+
+    @Override public Object eval(EvalEnv env) {
+      return comparison.test(
+          Float.compare(code0.evalReal(env), code1.evalReal(env)));
+    }
+  }
+
+  /** Binary operator on {@code float} values. */
+  @FunctionalInterface
+  private interface FloatBinaryOperator {
+    float applyAsFloat(float left, float right);
+  }
+
+  /** Comparison operator; converts the result of a {@code compare} method
+   * to a boolean. */
+  private enum Comparison {
+    EQ {
+      boolean test(int c) {
+        return c == 0;
+      }
+    },
+    NE {
+      boolean test(int c) {
+        return c != 0;
+      }
+    },
+    LT {
+      boolean test(int c) {
+        return c < 0;
+      }
+    },
+    LE {
+      boolean test(int c) {
+        return c <= 0;
+      }
+    },
+    GT {
+      boolean test(int c) {
+        return c > 0;
+      }
+    },
+    GE {
+      boolean test(int c) {
+        return c >= 0;
+      }
+    };
+
+    abstract boolean test(int c);
+
+    static Comparison of(BuiltIn builtIn) {
+      switch (builtIn) {
+      case OP_EQ:
+        return EQ;
+      case OP_NE:
+        return NE;
+      case OP_LT:
+        return LT;
+      case OP_LE:
+        return LE;
+      case OP_GT:
+        return GT;
+      case OP_GE:
+        return GE;
+      default:
+        throw new AssertionError("not a comparison: " + builtIn);
+      }
+    }
+  }
+
+  /** Applies a {@link Closure} to a {@link Code}, as a tail call.
+   *
+   * @see #tailCall(Code) */
+  private static class TailApplyCode extends ApplyCode {
+    private final Closure closure;
+
+    TailApplyCode(Closure closure, Code argCode) {
+      super(closure, argCode);
+      this.closure = closure;
+    }
+
+    @Override public Object eval(EvalEnv env) {
+      final Object arg = argCode.eval(env);
+      return new Closure.TailCall(closure, arg);
+    }
+  }
+
   /** Applies a {@link Code} to a {@link Code}.
    *
    * <p>If {@link #fnCode} is constant, you should use {@link ApplyCode}
@@ -2674,6 +4809,22 @@ public abstract class Codes {
       return fnValue.apply(env, arg);
     }
   }
+
+  /** Applies a {@link Code} to a {@link Code}, as a tail call if the function
+   * is a {@link Closure}.
+   *
+   * @see #tailCall(Code) */
+  static class TailApplyCodeCode extends ApplyCodeCode {
+    TailApplyCodeCode(Code fnCode, Code argCode) {
+      super(fnCode, argCode);
+    }
+
+    @Override public Object eval(EvalEnv env) {
+      final Applicable fnValue = (Applicable) fnCode.eval(env);
+      final Object arg = argCode.eval(env);
+      return tailApply(fnValue, env, arg);
+    }
+  }
 }
 
 // End Codes.java
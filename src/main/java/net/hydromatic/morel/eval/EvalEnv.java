@@ -19,10 +19,8 @@
 package net.hydromatic.morel.eval;
 
 import net.hydromatic.morel.ast.Core;
-import net.hydromatic.morel.ast.Visitor;
 import net.hydromatic.morel.compile.Environment;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -60,13 +58,8 @@ public interface EvalEnv {
       // Pattern is simple; use a simple implementation.
       return bindMutable(((Core.IdPat) pat).name);
     }
-    final List<String> names = new ArrayList<>();
-    pat.accept(new Visitor() {
-      @Override protected void visit(Core.IdPat idPat) {
-        names.add(idPat.name);
-      }
-    });
-    return new EvalEnvs.MutablePatSubEvalEnv(this, pat, names);
+    return new EvalEnvs.MutablePatSubEvalEnv(this, pat,
+        EvalEnvs.patNames(pat));
   }
 
   /** Creates an evaluation environment that has the same content as this one,
@@ -19,11 +19,12 @@
 package net.hydromatic.morel.eval;
 
 import net.hydromatic.morel.ast.Core;
+import net.hydromatic.morel.ast.Visitor;
 import net.hydromatic.morel.util.Pair;
+import net.hydromatic.morel.util.PersistentList;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import org.apache.calcite.util.Util;
 
 import java.math.BigDecimal;
 import java.util.List;
@@ -41,19 +42,164 @@ public class EvalEnvs {
 
   private EvalEnvs() {}
 
+  /** Returns the names of the variables bound by a pattern, in the order
+   * that {@link #bindRecurse} assigns them to slots. */
+  public static ImmutableList<String> patNames(Core.Pat pat) {
+    if (pat instanceof Core.IdPat) {
+      return ImmutableList.of(((Core.IdPat) pat).name);
+    }
+    final ImmutableList.Builder<String> names = ImmutableList.builder();
+    pat.accept(new Visitor() {
+      @Override protected void visit(Core.IdPat idPat) {
+        names.add(idPat.name);
+      }
+    });
+    return names.build();
+  }
+
+  /** Matches a value against a pattern, writing the value of each variable
+   * in the pattern into consecutive elements of {@code values}, starting at
+   * {@code slot}.
+   *
+   * @return The next unused slot, or -1 if the value does not match
+   */
+  static int bindRecurse(Core.Pat pat, Object[] values, int slot,
+      Object argValue) {
+    final List<Object> listValue;
+    final Core.LiteralPat literalPat;
+    switch (pat.op) {
+    case ID_PAT:
+      values[slot] = argValue;
+      return slot + 1;
+
+    case WILDCARD_PAT:
+      return slot;
+
+    case BOOL_LITERAL_PAT:
+    case CHAR_LITERAL_PAT:
+    case STRING_LITERAL_PAT:
+      literalPat = (Core.LiteralPat) pat;
+      return literalPat.value.equals(argValue) ? slot : -1;
+
+    case INT_LITERAL_PAT:
+      literalPat = (Core.LiteralPat) pat;
+      return ((BigDecimal) literalPat.value).intValue() == (Integer) argValue
+          ? slot : -1;
+
+    case REAL_LITERAL_PAT:
+      literalPat = (Core.LiteralPat) pat;
+      return ((BigDecimal) literalPat.value).doubleValue() == (Double) argValue
+          ? slot : -1;
+
+    case TUPLE_PAT:
+      final Core.TuplePat tuplePat = (Core.TuplePat) pat;
+      listValue = (List) argValue;
+      for (Pair<Core.Pat, Object> pair : Pair.zip(tuplePat.args, listValue)) {
+        slot = bindRecurse(pair.left, values, slot, pair.right);
+        if (slot < 0) {
+          return -1;
+        }
+      }
+      return slot;
+
+    case RECORD_PAT:
+      final Core.RecordPat recordPat = (Core.RecordPat) pat;
+      listValue = (List) argValue;
+      for (Pair<Core.Pat, Object> pair : Pair.zip(recordPat.args, listValue)) {
+        slot = bindRecurse(pair.left, values, slot, pair.right);
+        if (slot < 0) {
+          return -1;
+        }
+      }
+      return slot;
+
+    case LIST_PAT:
+      final Core.ListPat listPat = (Core.ListPat) pat;
+      listValue = (List) argValue;
+      if (listValue.size() != listPat.args.size()) {
+        return -1;
+      }
+      for (Pair<Core.Pat, Object> pair : Pair.zip(listPat.args, listValue)) {
+        slot = bindRecurse(pair.left, values, slot, pair.right);
+        if (slot < 0) {
+          return -1;
+        }
+      }
+      return slot;
+
+    case CONS_PAT:
+      final Core.ConPat consPat = (Core.ConPat) pat;
+      @SuppressWarnings("unchecked") final List<Object> consValue =
+          (List) argValue;
+      if (consValue.isEmpty()) {
+        return -1;
+      }
+      final Object head = consValue.get(0);
+      final List<Object> tail = PersistentList.tail(consValue);
+      List<Core.Pat> patArgs = ((Core.TuplePat) consPat.pat).args;
+      slot = bindRecurse(patArgs.get(0), values, slot, head);
+      return slot < 0 ? -1 : bindRecurse(patArgs.get(1), values, slot, tail);
+
+    case CON0_PAT:
+      final Core.Con0Pat con0Pat = (Core.Con0Pat) pat;
+      final List con0Value = (List) argValue;
+      return con0Value.get(0).equals(con0Pat.tyCon) ? slot : -1;
+
+    case CON_PAT:
+      final Core.ConPat conPat = (Core.ConPat) pat;
+      final List conValue = (List) argValue;
+      return conValue.get(0).equals(conPat.tyCon)
+          ? bindRecurse(conPat.pat, values, slot, conValue.get(1))
+          : -1;
+
+    default:
+      throw new AssertionError("cannot compile " + pat.op + ": " + pat);
+    }
+  }
+
+  /** Evaluation environment that inherits from a parent environment and
+   * binds one or more variables, each in a numbered slot.
+   *
+   * <p>If the compiler knows the layout of the frames between the point
+   * where a variable is bound and the point where it is used, it can
+   * generate code that reaches the variable by following a fixed number of
+   * {@link #parentEnv} links and then reading a slot; see
+   * {@link Codes#get(String, int, int)}. */
+  abstract static class FrameEvalEnv implements EvalEnv {
+    protected final EvalEnv parentEnv;
+
+    FrameEvalEnv(EvalEnv parentEnv) {
+      this.parentEnv = Objects.requireNonNull(parentEnv);
+    }
+
+    /** Returns the name of the variable in a given slot. */
+    abstract String name(int slot);
+
+    /** Returns the value of the variable in a given slot. */
+    abstract Object get(int slot);
+  }
+
   /** Evaluation environment that inherits from a parent environment and adds
    * one binding. */
-  static class SubEvalEnv implements EvalEnv {
-    protected final EvalEnv parentEnv;
+  static class SubEvalEnv extends FrameEvalEnv {
     protected final String name;
     protected Object value;
 
     SubEvalEnv(EvalEnv parentEnv, String name, Object value) {
-      this.parentEnv = parentEnv;
+      super(parentEnv);
       this.name = name;
       this.value = value;
     }
 
+    @Override String name(int slot) {
+      assert slot == 0 : slot;
+      return name;
+    }
+
+    @Override Object get(int slot) {
+      return value;
+    }
+
     public void visit(BiConsumer<String, Object> consumer) {
       consumer.accept(name, value);
       parentEnv.visit(consumer);
@@ -89,18 +235,25 @@ public class EvalEnvs {
   }
 
   /** Similar to {@link MutableEvalEnv} but binds several names. */
-  static class ArraySubEvalEnv implements EvalEnv {
-    protected final EvalEnv parentEnv;
+  static class ArraySubEvalEnv extends FrameEvalEnv {
     protected final ImmutableList<String> names;
     protected Object[] values;
 
     ArraySubEvalEnv(EvalEnv parentEnv, ImmutableList<String> names,
         @Nullable Object[] values) {
-      this.parentEnv = Objects.requireNonNull(parentEnv);
+      super(parentEnv);
       this.names = Objects.requireNonNull(names);
       this.values = values; // may be null
     }
 
+    @Override String name(int slot) {
+      return names.get(slot);
+    }
+
+    @Override Object get(int slot) {
+      return values[slot];
+    }
+
     public void visit(BiConsumer<String, Object> consumer) {
       for (int i = 0; i < names.size(); i++) {
         consumer.accept(names.get(i), values[i]);
@@ -150,8 +303,6 @@ public class EvalEnvs {
   /** Evaluation environment that binds several slots based on a pattern. */
   static class MutablePatSubEvalEnv extends PatSubEvalEnv
       implements MutableEvalEnv {
-    private int slot;
-
     MutablePatSubEvalEnv(EvalEnv parentEnv, Core.Pat pat, List<String> names) {
       super(parentEnv, pat, ImmutableList.copyOf(names),
           new Object[names.size()]);
@@ -170,96 +321,7 @@ public class EvalEnvs {
     }
 
     @Override public boolean setOpt(Object value) {
-      slot = 0;
-      return bindRecurse(pat, value);
-    }
-
-    boolean bindRecurse(Core.Pat pat, Object argValue) {
-      final List<Object> listValue;
-      final Core.LiteralPat literalPat;
-      switch (pat.op) {
-      case ID_PAT:
-        this.values[slot++] = argValue;
-        return true;
-
-      case WILDCARD_PAT:
-        return true;
-
-      case BOOL_LITERAL_PAT:
-      case CHAR_LITERAL_PAT:
-      case STRING_LITERAL_PAT:
-        literalPat = (Core.LiteralPat) pat;
-        return literalPat.value.equals(argValue);
-
-      case INT_LITERAL_PAT:
-        literalPat = (Core.LiteralPat) pat;
-        return ((BigDecimal) literalPat.value).intValue() == (Integer) argValue;
-
-      case REAL_LITERAL_PAT:
-        literalPat = (Core.LiteralPat) pat;
-        return ((BigDecimal) literalPat.value).doubleValue() == (Double) argValue;
-
-      case TUPLE_PAT:
-        final Core.TuplePat tuplePat = (Core.TuplePat) pat;
-        listValue = (List) argValue;
-        for (Pair<Core.Pat, Object> pair : Pair.zip(tuplePat.args, listValue)) {
-          if (!bindRecurse(pair.left, pair.right)) {
-            return false;
-          }
-        }
-        return true;
-
-      case RECORD_PAT:
-        final Core.RecordPat recordPat = (Core.RecordPat) pat;
-        listValue = (List) argValue;
-        for (Pair<Core.Pat, Object> pair
-            : Pair.zip(recordPat.args, listValue)) {
-          if (!bindRecurse(pair.left, pair.right)) {
-            return false;
-          }
-        }
-        return true;
-
-      case LIST_PAT:
-        final Core.ListPat listPat = (Core.ListPat) pat;
-        listValue = (List) argValue;
-        if (listValue.size() != listPat.args.size()) {
-          return false;
-        }
-        for (Pair<Core.Pat, Object> pair : Pair.zip(listPat.args, listValue)) {
-          if (!bindRecurse(pair.left, pair.right)) {
-            return false;
-          }
-        }
-        return true;
-
-      case CONS_PAT:
-        final Core.ConPat infixPat = (Core.ConPat) pat;
-        @SuppressWarnings("unchecked") final List<Object> consValue =
-            (List) argValue;
-        if (consValue.isEmpty()) {
-          return false;
-        }
-        final Object head = consValue.get(0);
-        final List<Object> tail = Util.skip(consValue);
-        List<Core.Pat> patArgs = ((Core.TuplePat) infixPat.pat).args;
-        return bindRecurse(patArgs.get(0), head)
-            && bindRecurse(patArgs.get(1), tail);
-
-      case CON0_PAT:
-        final Core.Con0Pat con0Pat = (Core.Con0Pat) pat;
-        final List con0Value = (List) argValue;
-        return con0Value.get(0).equals(con0Pat.tyCon);
-
-      case CON_PAT:
-        final Core.ConPat conPat = (Core.ConPat) pat;
-        final List conValue = (List) argValue;
-        return conValue.get(0).equals(conPat.tyCon)
-            && bindRecurse(conPat.pat, conValue.get(1));
-
-      default:
-        throw new AssertionError("cannot compile " + pat.op + ": " + pat);
-      }
+      return bindRecurse(pat, values, 0, value) >= 0;
     }
   }
 
@@ -0,0 +1,559 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.eval;
+
+import net.hydromatic.morel.ast.Core;
+import net.hydromatic.morel.ast.Op;
+import net.hydromatic.morel.type.ApplyType;
+import net.hydromatic.morel.type.DataType;
+import net.hydromatic.morel.type.Type;
+import net.hydromatic.morel.util.PersistentList;
+import net.hydromatic.morel.util.TyConValue;
+
+import com.google.common.collect.ImmutableList;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import javax.annotation.Nullable;
+
+/** Compiled pattern matching.
+ *
+ * <p>A {@link PatMatcher} is created from a {@link Core.Pat} once, at compile
+ * time, and contains everything it needs to test and bind a value (for
+ * example, the value of an {@code int} literal, already converted from
+ * {@link BigDecimal}).
+ *
+ * <p>A {@link MatchTree} is created from the patterns of a match list (the
+ * arms of a {@code case}, or the clauses of a {@code fun}). It chooses a
+ * position in the value (the value itself, or one field if every pattern is a
+ * tuple or record) where the patterns test constructors or literals, and
+ * builds a hash table from each constructor or literal to the arms that can
+ * match it. (For constructors, it also builds an array indexed by the
+ * constructor's ordinal.) At run time, it looks up the value's constructor
+ * once, and tries only the arms that can match, in their original order. */
+public class Matchers {
+  private Matchers() {}
+
+  private static final Object[] NO_VALUES = {};
+
+  /** Creates a matcher for a pattern. Variables are assigned to consecutive
+   * slots in the order given by {@link EvalEnvs#patNames(Core.Pat)}. */
+  static PatMatcher matcher(Core.Pat pat) {
+    final Core.LiteralPat literalPat;
+    switch (pat.op) {
+    case ID_PAT:
+      return ID;
+
+    case WILDCARD_PAT:
+      return WILDCARD;
+
+    case BOOL_LITERAL_PAT:
+    case CHAR_LITERAL_PAT:
+    case STRING_LITERAL_PAT:
+      literalPat = (Core.LiteralPat) pat;
+      return new EqualsMatcher(literalPat.value);
+
+    case INT_LITERAL_PAT:
+      literalPat = (Core.LiteralPat) pat;
+      return new EqualsMatcher(((BigDecimal) literalPat.value).intValue());
+
+    case REAL_LITERAL_PAT:
+      literalPat = (Core.LiteralPat) pat;
+      return new RealMatcher(((BigDecimal) literalPat.value).doubleValue());
+
+    case TUPLE_PAT:
+      return new TupleMatcher(matchers(((Core.TuplePat) pat).args));
+
+    case RECORD_PAT:
+      return new TupleMatcher(matchers(((Core.RecordPat) pat).args));
+
+    case LIST_PAT:
+      return new ListMatcher(matchers(((Core.ListPat) pat).args));
+
+    case CONS_PAT:
+      final List<Core.Pat> args =
+          ((Core.TuplePat) ((Core.ConPat) pat).pat).args;
+      return new ConsMatcher(matcher(args.get(0)), matcher(args.get(1)));
+
+    case CON0_PAT:
+      final Core.Con0Pat con0Pat = (Core.Con0Pat) pat;
+      return new ConMatcher(con0Pat.tyCon, ordinal(con0Pat, con0Pat.tyCon),
+          null);
+
+    case CON_PAT:
+      final Core.ConPat conPat = (Core.ConPat) pat;
+      return new ConMatcher(conPat.tyCon, ordinal(conPat, conPat.tyCon),
+          matcher(conPat.pat));
+
+    default:
+      throw new AssertionError("cannot compile " + pat.op + ": " + pat);
+    }
+  }
+
+  private static PatMatcher[] matchers(List<? extends Core.Pat> pats) {
+    final PatMatcher[] matchers = new PatMatcher[pats.size()];
+    for (int i = 0; i < matchers.length; i++) {
+      matchers[i] = matcher(pats.get(i));
+    }
+    return matchers;
+  }
+
+  /** Creates a tree that matches a value against a list of patterns. */
+  public static MatchTree matchTree(List<? extends Core.Pat> pats) {
+    final ImmutableList.Builder<Arm> arms = ImmutableList.builder();
+    for (Core.Pat pat : pats) {
+      arms.add(new Arm(pat));
+    }
+    return new MatchTree(arms.build(), pats);
+  }
+
+  /** Returns the key that a pattern requires of the value it matches, or
+   * null if it places no requirement that can be used in a hash table.
+   *
+   * <p>Keys of data type constructors are the constructor name (the first
+   * element of the value); keys of list patterns are whether the list is
+   * empty; keys of literals are the value. */
+  private static @Nullable Object key(Core.Pat pat) {
+    switch (pat.op) {
+    case CON0_PAT:
+      return ((Core.Con0Pat) pat).tyCon;
+    case CON_PAT:
+      return ((Core.ConPat) pat).tyCon;
+    case CONS_PAT:
+      return false;
+    case LIST_PAT:
+      return ((Core.ListPat) pat).args.isEmpty() ? true : null;
+    case BOOL_LITERAL_PAT:
+    case CHAR_LITERAL_PAT:
+    case STRING_LITERAL_PAT:
+      return ((Core.LiteralPat) pat).value;
+    case INT_LITERAL_PAT:
+      return ((BigDecimal) ((Core.LiteralPat) pat).value).intValue();
+    default:
+      return null;
+    }
+  }
+
+  /** Returns the ordinal of the type constructor of a constructor pattern
+   * within its data type, or -1 if not known. */
+  public static int ordinal(Core.Pat pat, String tyCon) {
+    Type type = pat.type;
+    if (type instanceof ApplyType) {
+      type = ((ApplyType) type).type;
+    }
+    return type instanceof DataType
+        ? ((DataType) type).ordinal(tyCon)
+        : -1;
+  }
+
+  /** Returns the kind of key that a pattern produces, or null. */
+  private static @Nullable KeyKind keyKind(Core.Pat pat) {
+    switch (pat.op) {
+    case CON0_PAT:
+    case CON_PAT:
+      return KeyKind.CON;
+    case CONS_PAT:
+    case LIST_PAT:
+      return KeyKind.LIST;
+    case BOOL_LITERAL_PAT:
+    case CHAR_LITERAL_PAT:
+    case STRING_LITERAL_PAT:
+    case INT_LITERAL_PAT:
+      return KeyKind.LITERAL;
+    default:
+      return null;
+    }
+  }
+
+  /** Returns the sub-patterns of a tuple or record pattern, or null. */
+  private static @Nullable List<Core.Pat> fields(Core.Pat pat) {
+    switch (pat.op) {
+    case TUPLE_PAT:
+      return ((Core.TuplePat) pat).args;
+    case RECORD_PAT:
+      return ((Core.RecordPat) pat).args;
+    default:
+      return null;
+    }
+  }
+
+  /** Compiled pattern. */
+  abstract static class PatMatcher {
+    /** Matches a value, writing the value of each variable into consecutive
+     * elements of {@code values}, starting at {@code slot}.
+     *
+     * @return The next unused slot, or -1 if the value does not match */
+    abstract int bind(Object[] values, int slot, Object value);
+  }
+
+  private static final PatMatcher ID = new PatMatcher() {
+    @Override int bind(Object[] values, int slot, Object value) {
+      values[slot] = value;
+      return slot + 1;
+    }
+  };
+
+  private static final PatMatcher WILDCARD = new PatMatcher() {
+    @Override int bind(Object[] values, int slot, Object value) {
+      return slot;
+    }
+  };
+
+  /** Matcher for a {@code bool}, {@code int}, {@code char} or
+   * {@code string} literal. */
+  private static class EqualsMatcher extends PatMatcher {
+    private final Object literal;
+
+    EqualsMatcher(Object literal) {
+      this.literal = Objects.requireNonNull(literal);
+    }
+
+    @Override int bind(Object[] values, int slot, Object value) {
+      return literal.equals(value) ? slot : -1;
+    }
+  }
+
+  /** Matcher for a {@code real} literal. */
+  private static class RealMatcher extends PatMatcher {
+    private final double literal;
+
+    RealMatcher(double literal) {
+      this.literal = literal;
+    }
+
+    @Override int bind(Object[] values, int slot, Object value) {
+      return ((Number) value).doubleValue() == literal ? slot : -1;
+    }
+  }
+
+  /** Matcher for a tuple or record. */
+  private static class TupleMatcher extends PatMatcher {
+    private final PatMatcher[] args;
+
+    TupleMatcher(PatMatcher[] args) {
+      this.args = args;
+    }
+
+    @Override int bind(Object[] values, int slot, Object value) {
+      final List<?> list = (List<?>) value;
+      for (int i = 0; i < args.length; i++) {
+        slot = args[i].bind(values, slot, list.get(i));
+        if (slot < 0) {
+          return -1;
+        }
+      }
+      return slot;
+    }
+  }
+
+  /** Matcher for a list of fixed length, such as {@code [x, y]}. */
+  private static class ListMatcher extends TupleMatcher {
+    private final int size;
+
+    ListMatcher(PatMatcher[] args) {
+      super(args);
+      this.size = args.length;
+    }
+
+    @Override int bind(Object[] values, int slot, Object value) {
+      return ((List) value).size() == size
+          ? super.bind(values, slot, value)
+          : -1;
+    }
+  }
+
+  /** Matcher for a non-empty list, such as {@code x :: xs}. */
+  private static class ConsMatcher extends PatMatcher {
+    private final PatMatcher head;
+    private final PatMatcher tail;
+
+    ConsMatcher(PatMatcher head, PatMatcher tail) {
+      this.head = head;
+      this.tail = tail;
+    }
+
+    @Override int bind(Object[] values, int slot, Object value) {
+      @SuppressWarnings("unchecked") final List<Object> list =
+          (List<Object>) value;
+      if (list.isEmpty()) {
+        return -1;
+      }
+      slot = head.bind(values, slot, list.get(0));
+      return slot < 0 ? -1 : tail.bind(values, slot, PersistentList.tail(list));
+    }
+  }
+
+  /** Matcher for a data type constructor, with or without an argument. */
+  private static class ConMatcher extends PatMatcher {
+    private final String tyCon;
+    /** Ordinal of the type constructor, or -1 if not known. */
+    private final int ordinal;
+    private final @Nullable PatMatcher arg;
+
+    ConMatcher(String tyCon, int ordinal, @Nullable PatMatcher arg) {
+      this.tyCon = Objects.requireNonNull(tyCon);
+      this.ordinal = ordinal;
+      this.arg = arg;
+    }
+
+    @Override int bind(Object[] values, int slot, Object value) {
+      final int valueOrdinal = TyConValue.ordinal(value);
+      if (valueOrdinal >= 0 && ordinal >= 0) {
+        if (valueOrdinal != ordinal) {
+          return -1;
+        }
+      } else if (!((List) value).get(0).equals(tyCon)) {
+        return -1;
+      }
+      if (arg == null) {
+        return slot;
+      }
+      final Object argValue = value instanceof TyConValue
+          ? ((TyConValue) value).arg
+          : ((List) value).get(1);
+      return arg.bind(values, slot, argValue);
+    }
+  }
+
+  /** Kind of key on which a {@link MatchTree} dispatches. */
+  private enum KeyKind {
+    /** Value is a data type value; key is the constructor name. */
+    CON {
+      Object key(Object value) {
+        return ((List) value).get(0);
+      }
+    },
+    /** Value is a list; key is whether it is empty. */
+    LIST {
+      Object key(Object value) {
+        return ((List) value).isEmpty();
+      }
+    },
+    /** Value is a literal; key is the value. */
+    LITERAL {
+      Object key(Object value) {
+        return value;
+      }
+    };
+
+    abstract Object key(Object value);
+  }
+
+  /** Compiled arm of a match list. */
+  private static class Arm {
+    final ImmutableList<String> names;
+    final PatMatcher matcher;
+    /** Whether the pattern is a single variable. */
+    final boolean id;
+
+    Arm(Core.Pat pat) {
+      this.names = EvalEnvs.patNames(pat);
+      this.matcher = matcher(pat);
+      this.id = pat instanceof Core.IdPat;
+    }
+  }
+
+  /** Compiled list of patterns. */
+  public static class MatchTree {
+    private final ImmutableList<Arm> arms;
+    /** Position of the key: -1 for the value itself, otherwise the ordinal of
+     * a field in a tuple or record. Ignored if {@link #keyKind} is null. */
+    private final int column;
+    private final @Nullable KeyKind keyKind;
+    /** For each key, the arms that can match a value with that key. */
+    private final Map<Object, int[]> armsByKey;
+    /** If the key is a type constructor, and the ordinal of each type
+     * constructor is known, the arms that can match a value, indexed by the
+     * ordinal of its type constructor; null elements mean
+     * {@link #defaultArms}. */
+    private final @Nullable int[][] armsByOrdinal;
+    /** Arms that can match a value whose key is not in {@link #armsByKey}. */
+    private final int[] defaultArms;
+
+    private MatchTree(ImmutableList<Arm> arms, List<? extends Core.Pat> pats) {
+      this.arms = arms;
+
+      // Choose the column that has the most distinct keys.
+      int bestColumn = -1;
+      int bestCount = countKeys(pats, -1);
+      final List<Core.Pat> fields0 = fieldsOrNull(pats);
+      if (fields0 != null) {
+        for (int c = 0; c < fields0.size(); c++) {
+          final int count = countKeys(pats, c);
+          if (count > bestCount) {
+            bestColumn = c;
+            bestCount = count;
+          }
+        }
+      }
+
+      final List<Integer> all = new ArrayList<>();
+      final List<Integer> unkeyed = new ArrayList<>();
+      final Map<Object, List<Integer>> map = new LinkedHashMap<>();
+      final Map<Object, Integer> ordinals = new HashMap<>();
+      KeyKind keyKind = null;
+      if (bestCount > 0) {
+        for (int i = 0; i < pats.size(); i++) {
+          final Core.Pat pat = column(pats.get(i), bestColumn);
+          final Object key = pat == null ? null : key(pat);
+          if (key != null) {
+            keyKind = keyKind(pat);
+            if (keyKind == KeyKind.CON) {
+              ordinals.put(key, ordinal(pat, (String) key));
+            }
+            map.computeIfAbsent(key, k -> new ArrayList<>(unkeyed)).add(i);
+          } else {
+            unkeyed.add(i);
+            for (List<Integer> list : map.values()) {
+              list.add(i);
+            }
+          }
+        }
+      }
+      for (int i = 0; i < pats.size(); i++) {
+        all.add(i);
+      }
+      this.keyKind = keyKind;
+      this.column = bestColumn;
+      this.armsByKey = new HashMap<>();
+      map.forEach((key, list) -> armsByKey.put(key, toArray(list)));
+      this.defaultArms = toArray(keyKind == null ? all : unkeyed);
+      this.armsByOrdinal = keyKind == KeyKind.CON
+          ? armsByOrdinal(armsByKey, ordinals)
+          : null;
+    }
+
+    /** Converts a map from type constructor name to arms into an array
+     * indexed by type constructor ordinal, or returns null if any ordinal is
+     * not known. */
+    private static @Nullable int[][] armsByOrdinal(
+        Map<Object, int[]> armsByKey, Map<Object, Integer> ordinals) {
+      if (ordinals.containsValue(-1)) {
+        return null;
+      }
+      final int[][] armsByOrdinal =
+          new int[ordinals.values().stream().reduce(-1, Math::max) + 1][];
+      armsByKey.forEach((key, arms) ->
+          armsByOrdinal[ordinals.get(key)] = arms);
+      return armsByOrdinal;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+      final int[] ints = new int[list.size()];
+      for (int i = 0; i < ints.length; i++) {
+        ints[i] = list.get(i);
+      }
+      return ints;
+    }
+
+    /** If every pattern is a tuple, record, variable or wildcard, and there is
+     * at least one tuple or record, returns the fields of the first tuple or
+     * record; otherwise null. */
+    private static @Nullable List<Core.Pat> fieldsOrNull(
+        List<? extends Core.Pat> pats) {
+      List<Core.Pat> fields0 = null;
+      for (Core.Pat pat : pats) {
+        final List<Core.Pat> fields = fields(pat);
+        if (fields != null) {
+          if (fields0 == null) {
+            fields0 = fields;
+          }
+        } else if (pat.op != Op.ID_PAT && pat.op != Op.WILDCARD_PAT) {
+          return null;
+        }
+      }
+      return fields0;
+    }
+
+    /** Returns the sub-pattern at a given column, or null if the pattern is a
+     * variable or wildcard. */
+    private static @Nullable Core.Pat column(Core.Pat pat, int column) {
+      if (column < 0) {
+        return pat;
+      }
+      final List<Core.Pat> fields = fields(pat);
+      return fields == null ? null : fields.get(column);
+    }
+
+    private static int countKeys(List<? extends Core.Pat> pats, int column) {
+      final Map<Object, Boolean> keys = new HashMap<>();
+      for (Core.Pat pat : pats) {
+        final Core.Pat pat1 = column(pat, column);
+        final Object key = pat1 == null ? null : key(pat1);
+        if (key != null) {
+          keys.put(key, true);
+        }
+      }
+      return keys.size();
+    }
+
+    /** Returns the number of arms. */
+    public int size() {
+      return arms.size();
+    }
+
+    /** Returns the ordinals of the arms that might match a value, in
+     * order. Arms not returned certainly do not match. */
+    public int[] candidates(Object value) {
+      if (keyKind == null) {
+        return defaultArms;
+      }
+      final Object v = column < 0 ? value : ((List) value).get(column);
+      if (armsByOrdinal != null) {
+        final int ordinal = TyConValue.ordinal(v);
+        if (ordinal >= 0) {
+          final int[] candidates =
+              ordinal < armsByOrdinal.length ? armsByOrdinal[ordinal] : null;
+          return candidates == null ? defaultArms : candidates;
+        }
+      }
+      final int[] candidates = armsByKey.get(keyKind.key(v));
+      return candidates == null ? defaultArms : candidates;
+    }
+
+    /** Matches a value against the pattern of a given arm and, if it matches,
+     * returns an environment that extends {@code env} with the variables
+     * bound by the pattern; returns null if the value does not match.
+     *
+     * <p>All of the variables bound by the pattern go into a single frame, in
+     * the order given by {@link EvalEnvs#patNames(Core.Pat)}; the compiler
+     * relies on this layout when it resolves variables to slots. If the
+     * pattern binds no variables, no frame is added. */
+    public @Nullable EvalEnv bind(int arm, EvalEnv env, Object value) {
+      final Arm a = arms.get(arm);
+      if (a.names.isEmpty()) {
+        return a.matcher.bind(NO_VALUES, 0, value) < 0 ? null : env;
+      }
+      if (a.id && a.names.size() == 1) {
+        return env.bind(a.names.get(0), value);
+      }
+      final Object[] values = new Object[a.names.size()];
+      return a.matcher.bind(values, 0, value) < 0
+          ? null
+          : new EvalEnvs.ArraySubEvalEnv(env, a.names, values);
+    }
+  }
+}
+
+// End Matchers.java
@@ -29,6 +29,11 @@ import java.util.Map;
  * @see Session#map
  */
 public enum Prop {
+  /** Boolean property "codegen" controls whether to generate and compile a
+   * Java class for the body of each function, rather than evaluating it by
+   * interpreting a tree of {@link Code} objects. Default is false. */
+  CODEGEN("codegen", Boolean.class, false),
+
   /** Boolean property "hybrid" controls whether to try to create a hybrid
    * execution plan that uses Apache Calcite relational algebra wherever
    * possible. Default is false. */
@@ -37,8 +42,30 @@ public enum Prop {
   /** Maximum number of inlining passes. */
   INLINE_PASS_COUNT("inlinePassCount", Integer.class, 5),
 
+  /** Integer property "memoryBudget" is the maximum number of rows that an
+   * {@code order} step, or groups that a {@code group} step, may hold in
+   * memory; beyond that, they write rows to temporary files. Default is -1,
+   * which means no limit. */
+  MEMORY_BUDGET("memoryBudget", Integer.class, -1),
+
   /** Integer property "optionalInt" is for testing. Default is null. */
-  OPTIONAL_INT("optionalInt", Integer.class, null);
+  OPTIONAL_INT("optionalInt", Integer.class, null),
+
+  /** Integer property "parallelism" is the number of threads that may
+   * evaluate the outermost scan of a {@code from} expression. Default is 1,
+   * which evaluates every query in the calling thread. */
+  PARALLELISM("parallelism", Integer.class, 1),
+
+  /** Boolean property "relationalize" controls whether to convert calls to
+   * list functions such as {@code List.map}, {@code List.filter},
+   * {@code List.exists} and {@code List.foldl} into {@code from}
+   * expressions after each inlining pass, so that they can be evaluated by
+   * the {@code from} engine, or, in hybrid mode, pushed down to Calcite.
+   * Functions in a chain of calls are then applied to each element in
+   * turn; if more than one of them fails, a different exception may be
+   * raised. Default is false, which converts only chains of calls whose
+   * result is the same either way. */
+  RELATIONALIZE("relationalize", Boolean.class, false);
 
   public final String camelName;
   private final Class<?> type;
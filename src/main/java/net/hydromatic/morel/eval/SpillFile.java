@@ -0,0 +1,322 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.eval;
+
+import net.hydromatic.morel.util.TyConValue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Temporary file to which a row sink writes values when it has more than
+ * its memory budget.
+ *
+ * <p>Values are written using a compact binary encoding. Integers and sizes
+ * use a variable-length encoding; tuples, records and lists are written as
+ * their elements; data type values as their constructor's ordinal and name
+ * and argument. Values that have no encoding (such as functions) remain in
+ * memory, and the file holds their index.
+ *
+ * <p>A file is written once, then read once or more from the start. The
+ * sink that creates a file must call {@link #delete()}, even if evaluation
+ * fails; it closes any readers and deletes the file. */
+final class SpillFile {
+  private static final int INT = 0;
+  private static final int REAL = 1;
+  private static final int STRING = 2;
+  private static final int CHAR = 3;
+  private static final int TRUE = 4;
+  private static final int FALSE = 5;
+  private static final int UNIT = 6;
+  private static final int LIST = 7;
+  private static final int ARRAY = 8;
+  private static final int CON0 = 9;
+  private static final int CON = 10;
+  private static final int REF = 11;
+  private static final int NULL = 12;
+
+  private final File file;
+  /** Values that could not be encoded. */
+  private final List<Object> refs = new ArrayList<>();
+  private DataOutputStream out;
+  /** Readers that are open. */
+  private final List<Reader> readers = new ArrayList<>();
+
+  private SpillFile(File file, DataOutputStream out) {
+    this.file = file;
+    this.out = out;
+  }
+
+  /** Creates a temporary file, open for writing. */
+  static SpillFile create() {
+    try {
+      final File file = File.createTempFile("morel", ".spill");
+      return new SpillFile(file,
+          new DataOutputStream(
+              new BufferedOutputStream(new FileOutputStream(file))));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Writes an integer, such as the number of values in a record that
+   * follows. */
+  void writeInt(int i) {
+    try {
+      writeVarInt(i);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Writes a value. */
+  void write(Object value) {
+    try {
+      writeValue(value);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void writeValue(Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(NULL);
+    } else if (value instanceof Integer) {
+      out.writeByte(INT);
+      writeVarInt((Integer) value);
+    } else if (value instanceof Float) {
+      out.writeByte(REAL);
+      out.writeFloat((Float) value);
+    } else if (value instanceof String) {
+      final byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+      out.writeByte(STRING);
+      writeVarInt(bytes.length);
+      out.write(bytes);
+    } else if (value instanceof Character) {
+      out.writeByte(CHAR);
+      out.writeChar((Character) value);
+    } else if (value instanceof Boolean) {
+      out.writeByte((Boolean) value ? TRUE : FALSE);
+    } else if (value == Unit.INSTANCE) {
+      out.writeByte(UNIT);
+    } else if (value instanceof TyConValue.Con0) {
+      final TyConValue.Con0 con0 = (TyConValue.Con0) value;
+      out.writeByte(CON0);
+      writeVarInt(con0.ordinal);
+      writeValue(con0.get(0));
+    } else if (value instanceof TyConValue) {
+      final TyConValue tyConValue = (TyConValue) value;
+      out.writeByte(CON);
+      writeVarInt(tyConValue.ordinal);
+      writeValue(tyConValue.tyCon);
+      writeValue(tyConValue.arg);
+    } else if (value instanceof List) {
+      final List<?> list = (List<?>) value;
+      out.writeByte(LIST);
+      writeVarInt(list.size());
+      for (Object o : list) {
+        writeValue(o);
+      }
+    } else if (value instanceof Object[]) {
+      final Object[] values = (Object[]) value;
+      out.writeByte(ARRAY);
+      writeVarInt(values.length);
+      for (Object o : values) {
+        writeValue(o);
+      }
+    } else {
+      out.writeByte(REF);
+      writeVarInt(refs.size());
+      refs.add(value);
+    }
+  }
+
+  /** Writes an int in 1 to 5 bytes; small values, positive or negative,
+   * are shortest. */
+  private void writeVarInt(int i) throws IOException {
+    int z = (i << 1) ^ (i >> 31); // zig-zag encoding
+    while ((z & ~0x7F) != 0) {
+      out.writeByte((z & 0x7F) | 0x80);
+      z >>>= 7;
+    }
+    out.writeByte(z);
+  }
+
+  /** Finishes writing. */
+  void finish() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      out = null;
+    }
+  }
+
+  /** Finishes writing, and returns a reader positioned at the start of the
+   * file. */
+  Reader read() {
+    finish();
+    try {
+      final Reader reader =
+          new Reader(
+              new DataInputStream(
+                  new BufferedInputStream(new FileInputStream(file))));
+      readers.add(reader);
+      return reader;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Closes the file and any readers, and deletes the file. May be called
+   * more than once. */
+  void delete() {
+    finish();
+    readers.forEach(Reader::close);
+    readers.clear();
+    //noinspection ResultOfMethodCallIgnored
+    file.delete();
+  }
+
+  /** Reads values from a {@link SpillFile}, in the order they were
+   * written. */
+  class Reader {
+    private final DataInputStream in;
+
+    Reader(DataInputStream in) {
+      this.in = in;
+    }
+
+    /** Returns whether there are more values; if not, closes the file. */
+    boolean hasNext() {
+      try {
+        in.mark(1);
+        if (in.read() < 0) {
+          close();
+          return false;
+        }
+        in.reset();
+        return true;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /** Closes the file. */
+    void close() {
+      try {
+        in.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /** Reads an integer written by {@link SpillFile#writeInt(int)}. */
+    int readInt() {
+      try {
+        return readVarInt();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /** Reads a value written by {@link SpillFile#write(Object)}. */
+    Object read() {
+      try {
+        return readValue();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private Object readValue() throws IOException {
+      final int tag = in.readByte();
+      switch (tag) {
+      case INT:
+        return readVarInt();
+      case REAL:
+        return in.readFloat();
+      case STRING:
+        final byte[] bytes = new byte[readVarInt()];
+        in.readFully(bytes);
+        return StandardCharsets.UTF_8.decode(ByteBuffer.wrap(bytes)).toString();
+      case CHAR:
+        return in.readChar();
+      case TRUE:
+        return true;
+      case FALSE:
+        return false;
+      case UNIT:
+        return Unit.INSTANCE;
+      case CON0:
+        final int ordinal0 = readVarInt();
+        return TyConValue.of(ordinal0, (String) readValue());
+      case CON:
+        final int ordinal = readVarInt();
+        final String tyCon = (String) readValue();
+        return TyConValue.of(ordinal, tyCon, readValue());
+      case LIST:
+        return Codes.tupleValue(readValues());
+      case ARRAY:
+        return readValues();
+      case REF:
+        return refs.get(readVarInt());
+      case NULL:
+        return null;
+      default:
+        throw new EOFException("unknown tag " + tag);
+      }
+    }
+
+    private Object[] readValues() throws IOException {
+      final Object[] values = new Object[readVarInt()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = readValue();
+      }
+      return values;
+    }
+
+    private int readVarInt() throws IOException {
+      int z = 0;
+      for (int shift = 0;; shift += 7) {
+        final int b = in.readByte();
+        z |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          break;
+        }
+      }
+      return (z >>> 1) ^ -(z & 1);
+    }
+  }
+}
+
+// End SpillFile.java
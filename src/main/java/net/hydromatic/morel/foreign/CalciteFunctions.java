@@ -176,7 +176,9 @@ public class CalciteFunctions {
         }
 
         @Override public Enumerable<Object[]> scan(DataContext root) {
-          Object v = compiled.code.eval(compiled.evalEnv);
+          final EvalEnv evalEnv = THREAD_EVAL_ENV.get();
+          Object v =
+              compiled.code.eval(evalEnv != null ? evalEnv : compiled.evalEnv);
           return compiled.f.apply(v);
         }
 
@@ -31,6 +31,7 @@ import net.hydromatic.morel.util.Pair;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
 import org.apache.calcite.avatica.util.DateTimeUtils;
 import org.apache.calcite.linq4j.Enumerable;
 import org.apache.calcite.linq4j.EnumerableDefaults;
@@ -48,6 +49,7 @@ import java.sql.Date;
 import java.sql.Time;
 import java.sql.Timestamp;
 import java.util.AbstractList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -91,15 +93,17 @@ public class Converters {
   static Converter<Object[]> ofField2(Iterator<RelDataTypeField> fields,
       AtomicInteger ordinal, Type type) {
     final RelDataTypeField field = fields.next();
-    if (type instanceof RecordType) {
+    if (type instanceof RecordType || type instanceof TupleType) {
+      final Collection<Type> fieldTypes =
+          ((RecordLikeType) type).argNameTypes().values();
       if (field.getType().isStruct()) {
         return offset(ordinal.getAndIncrement(),
             ofRow3(field.getType().getFieldList().iterator(),
-                new AtomicInteger(),
-                Linq4j.enumerator(((RecordType) type).argNameTypes.values())));
+                new AtomicInteger(), Linq4j.enumerator(fieldTypes)));
       } else {
-        return ofRow3(fields, ordinal,
-            Linq4j.enumerator(((RecordType) type).argNameTypes.values()));
+        final Iterator<RelDataTypeField> fields2 =
+            Iterators.concat(Iterators.singletonIterator(field), fields);
+        return ofRow3(fields2, ordinal, Linq4j.enumerator(fieldTypes));
       }
     }
     return ofField3(field, ordinal, type);
@@ -51,6 +51,15 @@ public class RelList extends AbstractList<Object> {
   public int size() {
     return supplier.get().size();
   }
+
+  /** Returns an estimate of the number of rows, from the relational
+   * expression's metadata (for example, the statistics of the tables it
+   * reads), without evaluating it. */
+  public double estimateRowCount() {
+    final Double rowCount =
+        rel.getCluster().getMetadataQuery().getRowCount(rel);
+    return rowCount == null ? 100d : rowCount;
+  }
 }
 
 // End RelList.java
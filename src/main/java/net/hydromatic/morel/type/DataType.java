@@ -105,6 +105,15 @@ public class DataType extends BaseType implements NamedType {
     return name;
   }
 
+  /** Returns the ordinal of a type constructor; that is, its position in
+   * {@link #typeConstructors}, which is sorted by name. Returns -1 if there
+   * is no such type constructor. */
+  public int ordinal(String tyConName) {
+    return typeConstructors.containsKey(tyConName)
+        ? typeConstructors.headMap(tyConName).size()
+        : -1;
+  }
+
   @Override public String moniker() {
     return moniker;
   }
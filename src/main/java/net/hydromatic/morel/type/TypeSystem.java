@@ -21,9 +21,9 @@ package net.hydromatic.morel.type;
 import net.hydromatic.morel.ast.Op;
 import net.hydromatic.morel.compile.NameGenerator;
 import net.hydromatic.morel.eval.Codes;
-import net.hydromatic.morel.util.ComparableSingletonList;
 import net.hydromatic.morel.util.Ord;
 import net.hydromatic.morel.util.Pair;
+import net.hydromatic.morel.util.TyConValue;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSortedMap;
@@ -64,7 +64,8 @@ public class TypeSystem {
     final Type type = dataType.typeConstructors.get(tyConName);
     if (type == DummyType.INSTANCE) {
       return Binding.of(core.idPat(dataType, tyConName, nameGenerator),
-          Codes.constant(ComparableSingletonList.of(tyConName)));
+          Codes.constant(
+              TyConValue.of(dataType.ordinal(tyConName), tyConName)));
     } else {
       final Type type2 = wrap(dataType, fnType(type, dataType));
       return Binding.of(core.idPat(type2, tyConName, nameGenerator),
@@ -0,0 +1,82 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.util;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * Read-only list of the characters in a range of a string.
+ *
+ * <p>Like a value of the Standard ML Basis {@code Substring} structure, it
+ * is a string, a start and an end, and shares the characters of the string
+ * rather than copying them. {@link #subList} returns another range of the
+ * same string, so taking the tail of a list (as the pattern
+ * {@code c :: cs} does) takes constant time and creates no intermediate
+ * lists. {@link #string()} returns the characters as a string.
+ *
+ * <p>Morel uses this class for the result of {@code String.explode}.
+ */
+public final class CharList extends AbstractList<Character>
+    implements RandomAccess {
+  private final String string;
+  private final int start;
+  private final int end;
+
+  private CharList(String string, int start, int end) {
+    this.string = string;
+    this.start = start;
+    this.end = end;
+  }
+
+  /** Creates a list of the characters in a string. */
+  public static CharList of(String string) {
+    return new CharList(string, 0, string.length());
+  }
+
+  @Override public Character get(int index) {
+    if (index < 0 || index >= end - start) {
+      throw new IndexOutOfBoundsException("index " + index + ", size "
+          + size());
+    }
+    // Character.valueOf caches ASCII characters, so usually does not
+    // allocate.
+    return string.charAt(start + index);
+  }
+
+  @Override public int size() {
+    return end - start;
+  }
+
+  @Override public CharList subList(int fromIndex, int toIndex) {
+    if (fromIndex < 0 || toIndex > end - start || fromIndex > toIndex) {
+      throw new IndexOutOfBoundsException("from " + fromIndex + ", to "
+          + toIndex + ", size " + size());
+    }
+    return new CharList(string, start + fromIndex, start + toIndex);
+  }
+
+  /** Returns the characters as a string. If the list covers the whole of
+   * its string, returns that string. */
+  public String string() {
+    return string.substring(start, end);
+  }
+}
+
+// End CharList.java
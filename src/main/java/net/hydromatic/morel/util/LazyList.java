@@ -0,0 +1,122 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.util;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import javax.annotation.Nonnull;
+
+/**
+ * Immutable list whose elements are computed on demand, by pulling them from
+ * an iterator.
+ *
+ * <p>Elements are buffered as they are pulled, so each is computed at most
+ * once. Methods that need only a prefix of the list, such as
+ * {@link #isEmpty()}, {@link #get(int)}, {@link #iterator()} and
+ * {@link #subList(int, int)}, pull only as many elements as they need;
+ * {@link #size()} pulls all of them.
+ *
+ * @param <E> Element type
+ */
+public final class LazyList<E> extends AbstractList<E> {
+  private final List<E> buffer = new ArrayList<>();
+  private Iterator<? extends E> iterator;
+
+  public LazyList(Iterator<? extends E> iterator) {
+    this.iterator = iterator;
+  }
+
+  /** Returns whether a list has at least {@code n} elements. If the list is
+   * lazy, computes at most {@code n} elements. */
+  public static boolean sizeAtLeast(List<?> list, int n) {
+    if (list instanceof LazyList) {
+      return ((LazyList<?>) list).fill(n);
+    }
+    return list.size() >= n;
+  }
+
+  /** Pulls elements until the buffer contains at least {@code n}, or the
+   * iterator is exhausted; returns whether the buffer has at least
+   * {@code n} elements. */
+  private boolean fill(int n) {
+    while (buffer.size() < n) {
+      if (iterator == null) {
+        return false;
+      }
+      if (!iterator.hasNext()) {
+        iterator = null; // release resources held by the iterator
+        return false;
+      }
+      buffer.add(iterator.next());
+    }
+    return true;
+  }
+
+  @Override public E get(int index) {
+    if (index < 0 || !fill(index + 1)) {
+      throw new IndexOutOfBoundsException("index " + index);
+    }
+    return buffer.get(index);
+  }
+
+  @Override public int size() {
+    fill(Integer.MAX_VALUE);
+    return buffer.size();
+  }
+
+  @Override public boolean isEmpty() {
+    return !fill(1);
+  }
+
+  @Override @Nonnull public Iterator<E> iterator() {
+    return new Iterator<E>() {
+      int i = 0;
+
+      public boolean hasNext() {
+        return fill(i + 1);
+      }
+
+      public E next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return buffer.get(i++);
+      }
+    };
+  }
+
+  /** {@inheritDoc}
+   *
+   * <p>Unlike most implementations, returns a copy rather than a view;
+   * the copy does not retain the iterator. */
+  @Override @Nonnull public List<E> subList(int fromIndex, int toIndex) {
+    if (fromIndex < 0 || fromIndex > toIndex || !fill(toIndex)) {
+      throw new IndexOutOfBoundsException("from " + fromIndex + " to "
+          + toIndex);
+    }
+    return ImmutableList.copyOf(buffer.subList(fromIndex, toIndex));
+  }
+}
+
+// End LazyList.java
@@ -0,0 +1,210 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import org.apache.calcite.util.Util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import javax.annotation.Nonnull;
+
+/**
+ * Immutable list that consists of a head element and a tail list, and whose
+ * {@link #cons} and {@link #tail} operations take constant time.
+ *
+ * <p>Unlike {@link ConsList}, the tail may be empty, and is not copied, so
+ * the caller must not modify it. (Morel list values are never modified.)
+ *
+ * <p>The first call to {@link #get(int)} with a non-zero index copies the
+ * elements into an array, so that subsequent calls take constant time.
+ *
+ * @param <E> Element type
+ */
+public final class PersistentList<E> extends AbstractImmutableList<E> {
+  private final E first;
+  private final List<E> rest;
+  private final int size;
+  /** Elements, created on demand to support random access. */
+  private volatile Object[] array;
+
+  private PersistentList(E first, List<E> rest) {
+    this.first = first;
+    this.rest = rest;
+    this.size = rest.size() + 1;
+  }
+
+  /** Creates a list that consists of an element followed by the elements of
+   * another list. */
+  @SuppressWarnings("unchecked")
+  public static <E> List<E> cons(E first, List<? extends E> rest) {
+    return new PersistentList<>(first, (List<E>) rest);
+  }
+
+  /** Returns all but the first element of a non-empty list. Takes constant
+   * time if the list is a {@code PersistentList}. */
+  public static <E> List<E> tail(List<E> list) {
+    if (list instanceof PersistentList) {
+      return ((PersistentList<E>) list).rest;
+    }
+    return Util.skip(list);
+  }
+
+  /** Returns a list that consists of the elements of one list followed by
+   * the elements of another. Takes time proportional to the length of the
+   * first list. */
+  @SuppressWarnings("unchecked")
+  public static <E> List<E> append(List<? extends E> list0,
+      List<? extends E> list1) {
+    if (list0.isEmpty()) {
+      return (List<E>) list1;
+    }
+    final Object[] elements = new Object[list0.size()];
+    int i = 0;
+    for (E e : list0) {
+      elements[i++] = e;
+    }
+    List<E> list = (List<E>) list1;
+    while (i > 0) {
+      list = new PersistentList<>((E) elements[--i], list);
+    }
+    return list;
+  }
+
+  /** Returns a list that consists of the elements of one list in reverse
+   * order followed by the elements of another. Takes time proportional to
+   * the length of the first list. */
+  @SuppressWarnings("unchecked")
+  public static <E> List<E> revAppend(List<? extends E> list0,
+      List<? extends E> list1) {
+    List<E> list = (List<E>) list1;
+    for (E e : list0) {
+      list = new PersistentList<>(e, list);
+    }
+    return list;
+  }
+
+  private Object[] array() {
+    Object[] a = array;
+    if (a == null) {
+      a = new Object[size];
+      int i = 0;
+      for (E e : this) {
+        a[i++] = e;
+      }
+      array = a;
+    }
+    return a;
+  }
+
+  @SuppressWarnings("unchecked")
+  public E get(int index) {
+    if (index == 0) {
+      return first;
+    }
+    Preconditions.checkElementIndex(index, size);
+    return (E) array()[index];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override protected List<E> toList() {
+    return (List<E>) Collections.unmodifiableList(Arrays.asList(array()));
+  }
+
+  @Override @Nonnull public Iterator<E> iterator() {
+    return new Iterator<E>() {
+      PersistentList<E> cell = PersistentList.this;
+      Iterator<E> restIterator;
+
+      public boolean hasNext() {
+        return cell != null || restIterator.hasNext();
+      }
+
+      public E next() {
+        if (cell == null) {
+          return restIterator.next();
+        }
+        final E e = cell.first;
+        if (cell.rest instanceof PersistentList) {
+          cell = (PersistentList<E>) cell.rest;
+        } else {
+          restIterator = cell.rest.iterator();
+          cell = null;
+        }
+        return e;
+      }
+    };
+  }
+
+  @Override @Nonnull public List<E> subList(int fromIndex, int toIndex) {
+    Preconditions.checkPositionIndexes(fromIndex, toIndex, size);
+    if (toIndex == size) {
+      List<E> list = this;
+      for (int i = 0; i < fromIndex; i++) {
+        list = tail(list);
+      }
+      return list;
+    }
+    return toList().subList(fromIndex, toIndex);
+  }
+
+  @Override public int hashCode() {
+    int h = 1;
+    for (E e : this) {
+      h = 31 * h + (e == null ? 0 : e.hashCode());
+    }
+    return h;
+  }
+
+  @Override public boolean equals(Object o) {
+    return o == this
+        || o instanceof List
+        && ((List) o).size() == size
+        && Iterables.elementsEqual(this, (List) o);
+  }
+
+  @Override public String toString() {
+    return Iterables.toString(this);
+  }
+
+  @Nonnull public Object[] toArray() {
+    return array().clone();
+  }
+
+  @Nonnull public <T> T[] toArray(@Nonnull T[] a) {
+    return toList().toArray(a);
+  }
+
+  public int indexOf(Object o) {
+    return toList().indexOf(o);
+  }
+
+  public int lastIndexOf(Object o) {
+    return toList().lastIndexOf(o);
+  }
+}
+
+// End PersistentList.java
@@ -0,0 +1,341 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.util;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import javax.annotation.Nonnull;
+
+/**
+ * Immutable list whose {@link #get}, {@link #set(List, int, Object)} and
+ * {@link #concat(List, List)} operations take time logarithmic in the size
+ * of the list.
+ *
+ * <p>The elements are held in a relaxed radix-balanced tree. Each leaf
+ * holds up to 32 elements, each branch holds up to 32 children of the same
+ * height, and each branch records the cumulative size of its children.
+ * {@code set} copies the path from the root to one leaf; {@code concat}
+ * copies the right edge of the first tree and the left edge of the second,
+ * merging or splitting nodes where they meet, like a B-tree join.
+ *
+ * <p>Morel uses this class to implement {@code vector} values that have
+ * been updated or concatenated. Other vector values are ordinary lists; the
+ * first update or concatenation copies them.
+ *
+ * @param <E> Element type
+ */
+public final class PersistentVector<E> extends AbstractList<E>
+    implements RandomAccess {
+  /** Log base 2 of the maximum number of children of a node. */
+  private static final int BITS = 5;
+  /** Maximum number of elements in a leaf, and children in a branch. */
+  private static final int WIDTH = 1 << BITS;
+
+  private static final PersistentVector<Object> EMPTY =
+      new PersistentVector<>(null);
+
+  private final @Nullable Node root;
+
+  private PersistentVector(@Nullable Node root) {
+    this.root = root;
+  }
+
+  /** Returns an empty vector. */
+  @SuppressWarnings("unchecked")
+  public static <E> PersistentVector<E> of() {
+    return (PersistentVector<E>) EMPTY;
+  }
+
+  /** Returns a vector with the same elements as a list; returns the list
+   * itself if it is a vector. */
+  @SuppressWarnings("unchecked")
+  public static <E> PersistentVector<E> copyOf(List<? extends E> list) {
+    if (list instanceof PersistentVector) {
+      return (PersistentVector<E>) list;
+    }
+    if (list.isEmpty()) {
+      return of();
+    }
+    final Object[] elements = list.toArray();
+    Node[] nodes = new Node[(elements.length + WIDTH - 1) / WIDTH];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] =
+          new Leaf(
+              Arrays.copyOfRange(elements, i * WIDTH,
+                  Math.min(elements.length, (i + 1) * WIDTH)));
+    }
+    while (nodes.length > 1) {
+      final Node[] parents = new Node[(nodes.length + WIDTH - 1) / WIDTH];
+      for (int i = 0; i < parents.length; i++) {
+        parents[i] =
+            new Branch(
+                Arrays.copyOfRange(nodes, i * WIDTH,
+                    Math.min(nodes.length, (i + 1) * WIDTH)));
+      }
+      nodes = parents;
+    }
+    return new PersistentVector<>(nodes[0]);
+  }
+
+  /** Returns a vector that is a copy of a list with the element at a given
+   * position replaced. */
+  public static <E> PersistentVector<E> set(List<? extends E> list,
+      int index, E element) {
+    final PersistentVector<E> vector = copyOf(list);
+    if (index < 0 || index >= vector.size()) {
+      throw new IndexOutOfBoundsException("index " + index + ", size "
+          + vector.size());
+    }
+    return new PersistentVector<>(vector.root.set(index, element));
+  }
+
+  /** Returns a vector that consists of the elements of one list followed by
+   * the elements of another. */
+  public static <E> PersistentVector<E> concat(List<? extends E> list0,
+      List<? extends E> list1) {
+    final PersistentVector<E> vector0 = copyOf(list0);
+    final PersistentVector<E> vector1 = copyOf(list1);
+    if (vector0.root == null) {
+      return vector1;
+    }
+    if (vector1.root == null) {
+      return vector0;
+    }
+    final Node[] nodes = join(vector0.root, vector1.root);
+    return new PersistentVector<>(nodes.length == 1
+        ? nodes[0]
+        : new Branch(nodes));
+  }
+
+  @Override public int size() {
+    return root == null ? 0 : root.size;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override public E get(int index) {
+    if (index < 0 || index >= size()) {
+      throw new IndexOutOfBoundsException("index " + index + ", size "
+          + size());
+    }
+    final int[] start = {0};
+    final Leaf leaf = leaf(index, start);
+    return (E) leaf.elements[index - start[0]];
+  }
+
+  /** Returns the leaf that contains the element at a given index, and sets
+   * {@code start[0]} to the index of the leaf's first element. */
+  private Leaf leaf(int index, int[] start) {
+    Node node = root;
+    while (node instanceof Branch) {
+      final Branch branch = (Branch) node;
+      final int k = branch.child(index - start[0]);
+      if (k > 0) {
+        start[0] += branch.sizes[k - 1];
+      }
+      node = branch.children[k];
+    }
+    return (Leaf) node;
+  }
+
+  @Nonnull @Override public Iterator<E> iterator() {
+    return new Iterator<E>() {
+      final int[] start = {0};
+      int index = 0;
+      Object[] elements = {};
+
+      @Override public boolean hasNext() {
+        return index < size();
+      }
+
+      @SuppressWarnings("unchecked")
+      @Override public E next() {
+        if (index >= size()) {
+          throw new NoSuchElementException();
+        }
+        if (index - start[0] >= elements.length) {
+          start[0] = 0;
+          elements = leaf(index, start).elements;
+        }
+        return (E) elements[index++ - start[0]];
+      }
+    };
+  }
+
+  /** Returns the nodes that result from joining two nodes. The nodes have
+   * the same height as the taller of the two, and there are one or two. */
+  private static Node[] join(Node node0, Node node1) {
+    if (node0.height == node1.height) {
+      if (node0.count() + node1.count() <= WIDTH) {
+        return new Node[] {node0.merge(node1)};
+      }
+      return new Node[] {node0, node1};
+    }
+    if (node0.height > node1.height) {
+      final Branch branch = (Branch) node0;
+      final int last = branch.children.length - 1;
+      final Node[] nodes = join(branch.children[last], node1);
+      final Node[] children = new Node[last + nodes.length];
+      System.arraycopy(branch.children, 0, children, 0, last);
+      System.arraycopy(nodes, 0, children, last, nodes.length);
+      return split(children);
+    } else {
+      final Branch branch = (Branch) node1;
+      final int n = branch.children.length;
+      final Node[] nodes = join(node0, branch.children[0]);
+      final Node[] children = new Node[n - 1 + nodes.length];
+      System.arraycopy(nodes, 0, children, 0, nodes.length);
+      System.arraycopy(branch.children, 1, children, nodes.length, n - 1);
+      return split(children);
+    }
+  }
+
+  /** Creates one branch, or two if there are too many children for one. */
+  private static Node[] split(Node[] children) {
+    if (children.length <= WIDTH) {
+      return new Node[] {new Branch(children)};
+    }
+    final int half = children.length / 2;
+    return new Node[] {
+        new Branch(Arrays.copyOfRange(children, 0, half)),
+        new Branch(Arrays.copyOfRange(children, half, children.length))};
+  }
+
+  /** Node in the tree. */
+  private abstract static class Node {
+    /** Number of elements in this node and its descendants. */
+    final int size;
+    /** Height; 0 for a leaf. */
+    final int height;
+
+    Node(int size, int height) {
+      this.size = size;
+      this.height = height;
+    }
+
+    /** Returns the number of elements or children. */
+    abstract int count();
+
+    /** Returns a node that has the elements or children of this node
+     * followed by those of another node of the same height. */
+    abstract Node merge(Node node);
+
+    /** Returns a copy of this node with one element replaced. */
+    abstract Node set(int index, Object element);
+  }
+
+  /** Node that holds elements. */
+  private static class Leaf extends Node {
+    final Object[] elements;
+
+    Leaf(Object[] elements) {
+      super(elements.length, 0);
+      this.elements = elements;
+    }
+
+    @Override int count() {
+      return elements.length;
+    }
+
+    @Override Node merge(Node node) {
+      final Object[] elements1 = ((Leaf) node).elements;
+      final Object[] elements2 =
+          Arrays.copyOf(elements, elements.length + elements1.length);
+      System.arraycopy(elements1, 0, elements2, elements.length,
+          elements1.length);
+      return new Leaf(elements2);
+    }
+
+    @Override Node set(int index, Object element) {
+      final Object[] elements2 = elements.clone();
+      elements2[index] = element;
+      return new Leaf(elements2);
+    }
+  }
+
+  /** Node that holds child nodes. */
+  private static class Branch extends Node {
+    final Node[] children;
+    /** {@code sizes[k]} is the number of elements in children 0 to k. */
+    final int[] sizes;
+
+    Branch(Node[] children) {
+      this(children, cumulativeSizes(children));
+    }
+
+    private Branch(Node[] children, int[] sizes) {
+      super(sizes[sizes.length - 1], children[0].height + 1);
+      this.children = children;
+      this.sizes = sizes;
+    }
+
+    private static int[] cumulativeSizes(Node[] children) {
+      final int[] sizes = new int[children.length];
+      int size = 0;
+      for (int i = 0; i < children.length; i++) {
+        size += children[i].size;
+        sizes[i] = size;
+      }
+      return sizes;
+    }
+
+    /** Returns the ordinal of the child that contains the element at a
+     * given index.
+     *
+     * <p>A child holds at most 32<sup>height</sup> elements, so the child
+     * is at or after the one that radix indexing would choose; if every
+     * child is full, it is that one. */
+    int child(int index) {
+      final int shift = BITS * height;
+      int k = shift < Integer.SIZE ? index >>> shift : 0;
+      while (sizes[k] <= index) {
+        ++k;
+      }
+      return k;
+    }
+
+    @Override int count() {
+      return children.length;
+    }
+
+    @Override Node merge(Node node) {
+      final Node[] children1 = ((Branch) node).children;
+      final Node[] children2 =
+          Arrays.copyOf(children, children.length + children1.length);
+      System.arraycopy(children1, 0, children2, children.length,
+          children1.length);
+      return new Branch(children2);
+    }
+
+    @Override Node set(int index, Object element) {
+      final int k = child(index);
+      final int start = k == 0 ? 0 : sizes[k - 1];
+      final Node[] children2 = children.clone();
+      children2[k] = children[k].set(index - start, element);
+      return new Branch(children2, sizes);
+    }
+  }
+}
+
+// End PersistentVector.java
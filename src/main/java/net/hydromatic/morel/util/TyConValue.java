@@ -0,0 +1,136 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.util;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Objects;
+
+/** Value of a data type, created by applying a type constructor to an
+ * argument.
+ *
+ * <p>For compatibility with code that treats data type values as lists, it
+ * is a list with two elements, the name of the type constructor and the
+ * argument. It also records the ordinal of the type constructor within its
+ * data type (see {@link net.hydromatic.morel.type.DataType#ordinal}), so that
+ * pattern matching can dispatch on an {@code int} rather than compare names.
+ *
+ * <p>A type constructor without an argument has value {@link Con0}.
+ */
+public final class TyConValue extends AbstractList<Object> {
+  public final int ordinal;
+  public final String tyCon;
+  public final Object arg;
+
+  private TyConValue(int ordinal, String tyCon, Object arg) {
+    this.ordinal = ordinal;
+    this.tyCon = Objects.requireNonNull(tyCon);
+    this.arg = Objects.requireNonNull(arg);
+  }
+
+  /** Creates a value of a type constructor that has an argument. */
+  public static TyConValue of(int ordinal, String tyCon, Object arg) {
+    return new TyConValue(ordinal, tyCon, arg);
+  }
+
+  /** Creates a value of a type constructor that has no argument. */
+  public static Con0 of(int ordinal, String tyCon) {
+    return new Con0(ordinal, tyCon);
+  }
+
+  /** Returns the ordinal of the type constructor of a data type value, or
+   * -1 if the value does not record its ordinal. */
+  public static int ordinal(Object value) {
+    if (value instanceof TyConValue) {
+      return ((TyConValue) value).ordinal;
+    }
+    if (value instanceof Con0) {
+      return ((Con0) value).ordinal;
+    }
+    return -1;
+  }
+
+  @Override public Object get(int index) {
+    switch (index) {
+    case 0:
+      return tyCon;
+    case 1:
+      return arg;
+    default:
+      throw new IndexOutOfBoundsException("index " + index);
+    }
+  }
+
+  @Override public int size() {
+    return 2;
+  }
+
+  @Override public int hashCode() {
+    // Consistent with List.hashCode
+    return (31 + tyCon.hashCode()) * 31 + arg.hashCode();
+  }
+
+  @Override public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (o instanceof TyConValue) {
+      final TyConValue that = (TyConValue) o;
+      return ordinal == that.ordinal
+          && tyCon.equals(that.tyCon)
+          && arg.equals(that.arg);
+    }
+    return o instanceof List && super.equals(o);
+  }
+
+  /** Value of a type constructor that has no argument.
+   *
+   * <p>It is a singleton list containing the name of the type constructor.
+   * Values of the same data type compare in the order that the constructors
+   * are declared in the data type, which is alphabetical. */
+  public static final class Con0 extends ComparableSingletonList<String> {
+    public final int ordinal;
+
+    private Con0(int ordinal, String tyCon) {
+      super(tyCon);
+      this.ordinal = ordinal;
+    }
+
+    @Override public int compareTo(ComparableSingletonList<String> o) {
+      if (o instanceof Con0) {
+        return Integer.compare(ordinal, ((Con0) o).ordinal);
+      }
+      return super.compareTo(o);
+    }
+
+    @Override public boolean equals(Object o) {
+      if (o instanceof Con0) {
+        final Con0 that = (Con0) o;
+        return ordinal == that.ordinal && get(0).equals(that.get(0));
+      }
+      return super.equals(o);
+    }
+
+    @Override public int hashCode() {
+      return super.hashCode();
+    }
+  }
+}
+
+// End TyConValue.java
@@ -272,6 +272,68 @@ public class AlgebraTest {
         .assertPlan(isCode(plan));
   }
 
+  /** Tests that, if property "relationalize" is set, a chain of calls to
+   * {@code List.map} and {@code List.filter} over a table is executed in
+   * Calcite. */
+  @Test void testRelationalizeCalcite() {
+    final String ml = "List.map (fn e => e.ename)\n"
+        + "  (List.filter (fn e => e.deptno = 30) scott.emp)";
+    final String plan = "calcite(plan LogicalProject(ename=[$3])\n"
+        + "  LogicalFilter(condition=[=($1, 30)])\n"
+        + "    LogicalProject(comm=[$6], deptno=[$7], empno=[$0], ename=[$1], "
+        + "hiredate=[$4], job=[$2], mgr=[$3], sal=[$5])\n"
+        + "      JdbcTableScan(table=[[scott, EMP]])\n"
+        + ")";
+    ml(ml)
+        .withBinding("scott", BuiltInDataSet.SCOTT)
+        .with(Prop.HYBRID, true)
+        .with(Prop.RELATIONALIZE, true)
+        .assertType("string list")
+        .assertPlan(isCode(plan))
+        .assertEvalIter(
+            equalsUnordered("ALLEN", "WARD", "MARTIN", "BLAKE", "TURNER",
+                "JAMES"));
+  }
+
+  /** As {@link #testRelationalizeCalcite()}, but the functions take a tuple
+   * pattern, so the 'from' has a variable of tuple type, and a 'case'
+   * that Calcite evaluates by accessing the fields of that variable. */
+  @Test void testRelationalizeCalciteTuple() {
+    final String ml = "List.map (fn (i, j) => i + j)\n"
+        + "  (List.filter (fn (i, j) => i > 1) [(1, 1), (2, 2), (3, 4)])";
+    final String plan = "calcite(plan LogicalProject($f0=[+($0, $1)])\n"
+        + "  LogicalFilter(condition=[>($0, 1)])\n"
+        + "    LogicalValues(tuples=[[{ 1, 1 }, { 2, 2 }, { 3, 4 }]])\n"
+        + ")";
+    ml(ml)
+        .with(Prop.HYBRID, true)
+        .with(Prop.RELATIONALIZE, true)
+        .assertType("int list")
+        .assertPlan(isCode(plan))
+        .assertEvalIter(equalsOrdered(4, 7));
+  }
+
+  /** Tests a query, inside a function, whose input is a call to a local
+   * function; Calcite evaluates the call in the environment of the function,
+   * with the value of its argument. */
+  @Test void testCalciteTableFunctionInFunction() {
+    final String ml = "let\n"
+        + "  fun f line =\n"
+        + "    let\n"
+        + "      fun g [] = []\n"
+        + "        | g (c :: cs) = String.str c :: g cs\n"
+        + "    in\n"
+        + "      from w in g (String.explode line) yield w\n"
+        + "    end\n"
+        + "in\n"
+        + "  f \"ab\"\n"
+        + "end";
+    ml(ml)
+        .with(Prop.HYBRID, true)
+        .assertType("string list")
+        .assertEvalIter(equalsOrdered("a", "b"));
+  }
+
   /** Tests a query that can be fully executed in Calcite. */
   @Test void testFullCalcite() {
     final String ml = "from e in scott.emp\n"
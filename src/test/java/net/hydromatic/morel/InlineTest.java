@@ -218,9 +218,8 @@ public class InlineTest {
         + " yield #ename e_1";
     final String core2 = "from e in #emp scott "
         + "where op mod (#empno e, 2) = 0 "
-        + "yield {e = e} "
-        + "where #deptno e_1 = 10 "
-        + "yield #ename e_1";
+        + "where #deptno e = 10 "
+        + "yield #ename e";
     ml(ml)
         .withBinding("scott", BuiltInDataSet.SCOTT)
         .assertCoreString(is(core0), is(core1), is(core2))
@@ -235,13 +234,12 @@ public class InlineTest {
     final String core0 = "map (fn e_1 => #empno e_1) "
         + "(#filter List (fn e => #deptno e = 30) "
         + "(#emp scott))";
-    final String core1 = "from v0 in "
-        + "#filter List (fn e => #deptno e = 30) (#emp scott) "
-        + "yield (fn e_1 => #empno e_1) v0";
-    final String core2 = "from v2 in #emp scott "
-        + "where #deptno v2 = 30 "
-        + "yield {v0 = v2} "
-        + "yield #empno v0";
+    final String core1 = "from $v0 in #emp scott "
+        + "where (fn e => #deptno e = 30) $v0 "
+        + "yield (fn e_1 => #empno e_1) $v0";
+    final String core2 = "from $v0 in #emp scott "
+        + "where #deptno $v0 = 30 "
+        + "yield #empno $v0";
     ml(ml)
         .withBinding("scott", BuiltInDataSet.SCOTT)
         .assertCoreString(is(core0), is(core1), is(core2))
@@ -263,19 +261,19 @@ public class InlineTest {
         + " (#filter List (fn r => #y r > #z r)"
         + " (map (fn e_1 => {x = #empno e_1, y = #deptno e_1, z = 15})"
         + " (#filter List (fn e => #deptno e = 30) (#emp scott)))))";
-    final String core1 = "from v0 in #map List (fn r_1 => #x r_1 + #z r_1)"
-        + " (#filter List (fn r => #y r > #z r)"
-        + " (#map List (fn e_1 => {x = #empno e_1, y = #deptno e_1, z = 15})"
-        + " (#filter List (fn e => #deptno e = 30) (#emp scott)))) "
-        + "yield (fn r_2 => r_2 + 100) v0";
-    final String core2 = "from v6 in #emp scott "
-        + "where #deptno v6 = 30 "
-        + "yield {v5 = v6} "
-        + "yield {v4 = {x = #empno v5, y = #deptno v5, z = 15}} "
-        + "where #y v4 > #z v4 "
-        + "yield {v2 = v4} "
-        + "yield {v0 = #x v2 + #z v2} "
-        + "yield v0 + 100";
+    final String core1 = "from $v0 in #emp scott "
+        + "where (fn e => #deptno e = 30) $v0 "
+        + "yield {$v1 = (fn e_1 => {x = #empno e_1, y = #deptno e_1, z = 15})"
+        + " $v0} "
+        + "where (fn r => #y r > #z r) $v1 "
+        + "yield {$v3 = (fn r_1 => #x r_1 + #z r_1) $v1} "
+        + "yield (fn r_2 => r_2 + 100) $v3";
+    final String core2 = "from $v0 in #emp scott "
+        + "where #deptno $v0 = 30 "
+        + "yield {$v1 = {x = #empno $v0, y = #deptno $v0, z = 15}} "
+        + "where #y $v1 > #z $v1 "
+        + "yield {$v3 = #x $v1 + #z $v1} "
+        + "yield $v3 + 100";
     ml(ml)
         .withBinding("scott", BuiltInDataSet.SCOTT)
         .assertCoreString(is(core0), is(core1), is(core2))
@@ -19,6 +19,7 @@
 package net.hydromatic.morel;
 
 import net.hydromatic.morel.ast.Ast;
+import net.hydromatic.morel.eval.Prop;
 import net.hydromatic.morel.type.TypeVar;
 
 import com.google.common.collect.ImmutableList;
@@ -819,6 +820,126 @@ public class MainTest {
         .assertPlan(isCode(plan));
   }
 
+  /** Tests variables that are bound at various depths of the environment:
+   * function parameters, {@code let} variables, variables captured by a
+   * closure, and variables bound by the steps of a {@code from}. The
+   * compiler accesses them via slots, and must get the layout right. */
+  @Test void testLetSlots() {
+    final String ml = "fun f (a, b :: c) =\n"
+        + "  let\n"
+        + "    val d = a + b\n"
+        + "    fun g x = x * d + a\n"
+        + "  in\n"
+        + "    from e in c, (x, y) in [(1, \"a\"), (2, \"b\"), (3, \"c\")]\n"
+        + "      where e = x\n"
+        + "      group y compute s = sum of g e\n"
+        + "      order y desc\n"
+        + "      yield s + d + a\n"
+        + "  end";
+    // f (1, [10, 1, 3, 3]): d = 11, g x = 11 * x + 1;
+    // group "c" has s = 34 + 34 = 68, group "a" has s = 12.
+    ml(ml)
+        .assertEval(
+            whenAppliedTo(list(1, list(10, 1, 3, 3)), is(list(80, 24))));
+  }
+
+  /** Tests that generated code gives the same results as the interpreter.
+   * Each function body contains arithmetic, comparisons, patterns, or
+   * constructs (such as {@code from}) that code generation delegates to the
+   * interpreter. */
+  @Test void testCodegen() {
+    final String ml = "fun f (n, acc) =\n"
+        + "  if n = 0 then acc else f (n - 1, acc + n * 2)";
+    ml(ml).with(Prop.CODEGEN, true)
+        .assertEval(whenAppliedTo(list(10, 1), is(111)))
+        // Generated classes are numbered per compilation, so the plan does
+        // not depend on what was compiled before.
+        .assertPlan(
+            isCode("match(v0, codegen(class MorelFn0, get(name v0), link))"));
+
+    final String ml2 = "fun g (x :: y :: _, z) =\n"
+        + "    let\n"
+        + "      val w = x * 10 + y\n"
+        + "    in\n"
+        + "      case w mod 3 of\n"
+        + "          0 => (w, z ^ \"0\")\n"
+        + "        | 1 => (w div 2, z)\n"
+        + "        | _ => (~w, \"other\")\n"
+        + "    end\n"
+        + "  | g (_, z) = (0, z)";
+    ml(ml2).with(Prop.CODEGEN, true)
+        .assertEval(whenAppliedTo(list(list(1, 2, 3), "a"), is(list(12, "a0"))))
+        .assertEval(whenAppliedTo(list(list(1, 3), "a"), is(list(6, "a"))))
+        .assertEval(whenAppliedTo(list(list(1), "b"), is(list(0, "b"))));
+
+    final String ml3 = "fn (a, r) =>\n"
+        + "  let\n"
+        + "    val b = a > 2 andalso r * 2.0 < 5.0\n"
+        + "  in\n"
+        + "    (b, from i in [1, 2, 3, 4] where i < a yield i + a)\n"
+        + "  end";
+    ml(ml3).with(Prop.CODEGEN, true)
+        .assertEval(
+            whenAppliedTo(list(3, 1.5f), is(list(true, list(4, 5)))))
+        .assertEval(
+            whenAppliedTo(list(2, 1.5f), is(list(false, list(3)))));
+
+    // Patterns on data type constructors, with and without an argument
+    final String ml4 = "let\n"
+        + "  datatype shape = Circle of int | Point | Square of int\n"
+        + "  fun area s =\n"
+        + "    case s of\n"
+        + "        Circle r => 3 * r * r\n"
+        + "      | Point => 0\n"
+        + "      | Square a => a * a\n"
+        + "in\n"
+        + "  (area (Circle 2), area Point, area (Square 3))\n"
+        + "end";
+    ml(ml4).with(Prop.CODEGEN, true).assertEval(is(list(12, 0, 9)));
+  }
+
+  /** Tests that a chain of {@code ^} operators, and {@code String.concat}
+   * applied to a list of strings, concatenate in one step. */
+  @Test void testStringConcat() {
+    final String ml = "fn (a, b) => a ^ \", \" ^ b ^ \".\"";
+    final String plan = "match(v0, apply(fnCode match((a, b), "
+        + "concat(get(name a), constant(, ), get(name b), constant(.))), "
+        + "argCode get(name v0)))";
+    ml(ml)
+        .assertEval(whenAppliedTo(list("x", "y"), is("x, y.")))
+        .assertPlan(isCode(plan));
+    ml(ml).with(Prop.CODEGEN, true)
+        .assertEval(whenAppliedTo(list("x", ""), is("x, .")));
+    ml("String.concat [\"a\", \"b\" ^ \"c\", \"\"]")
+        .assertEval(is("abc"))
+        .assertPlan(
+            isCode("concat(constant(a), constant(b), constant(c), "
+                + "constant())"));
+    ml("String.concatWith \"-\" [\"a\", \"b\" ^ \"c\", \"\"]")
+        .assertEval(is("a-bc-"));
+  }
+
+  /** Tests a tokenizer that explodes a string and takes its tail, prefixes
+   * and suffixes; the lists are ranges of the original string. */
+  @Test void testExplode() {
+    final String ml = "let\n"
+        + "  fun words (cs, n) =\n"
+        + "    case List.drop (cs, n) of\n"
+        + "        [] => [String.implode cs]\n"
+        + "      | #\" \" :: rest =>\n"
+        + "          String.implode (List.take (cs, n)) :: words (rest, 0)\n"
+        + "      | _ => words (cs, n + 1)\n"
+        + "in\n"
+        + "  words (String.explode \"ab cde f\", 0)\n"
+        + "end";
+    ml(ml).assertEval(is(list("ab", "cde", "f")));
+    ml("String.implode (List.tl (String.explode \"abc\"))").assertEval(is("bc"));
+    ml("String.implode (#\"x\" :: List.tl (String.explode \"abc\"))")
+        .assertEval(is("xbc"));
+    ml("String.explode \"abc\" = [#\"a\", #\"b\", #\"c\"]")
+        .assertEval(is(true));
+  }
+
   /** Tests that name capture does not occur during inlining.
    * (Example is from GHC inlining, section 3.) */
   @Test void testNameCapture() {
@@ -1207,6 +1328,119 @@ public class MainTest {
     ml(ml).assertEval(is(8));
   }
 
+  /** Tests a function whose clauses test constructors and literals in
+   * different columns, interleaved with clauses that do not; the first
+   * clause that matches must win. */
+  @Test void testFunClauseOrder() {
+    final String ml = "let\n"
+        + "  datatype shape = CIRCLE of int | SQUARE of int | POINT\n"
+        + "  fun f (_, 0) = \"zero\"\n"
+        + "    | f (POINT, _) = \"point\"\n"
+        + "    | f (CIRCLE 7, 1) = \"circle seven one\"\n"
+        + "    | f (s, n) =\n"
+        + "        case s of\n"
+        + "            CIRCLE _ => \"circle\"\n"
+        + "          | SQUARE 5 => \"square five\"\n"
+        + "          | SQUARE _ => \"square\"\n"
+        + "          | POINT => \"unreachable\"\n"
+        + "in\n"
+        + "  map f [(POINT, 0), (POINT, 2), (CIRCLE 7, 1), (CIRCLE 2, 3),\n"
+        + "    (SQUARE 5, 1), (SQUARE 1, 1), (CIRCLE 3, 0)]\n"
+        + "end";
+    ml(ml).assertEval(
+        is(
+            list("zero", "point", "circle seven one", "circle", "square five",
+                "square", "zero")));
+  }
+
+  /** Tests matching a recursive data type, and a built-in data type whose
+   * values are created by a built-in function. */
+  @Test void testDataTypeMatch() {
+    final String ml = "let\n"
+        + "  datatype tree = LEAF | NODE of tree * int * tree\n"
+        + "  fun cmp (x, y) =\n"
+        + "    if x < y then LESS else if x > y then GREATER else EQUAL\n"
+        + "  fun insert (LEAF, x) = NODE (LEAF, x, LEAF)\n"
+        + "    | insert (NODE (l, y, r), x) =\n"
+        + "        case cmp (x, y) of\n"
+        + "            LESS => NODE (insert (l, x), y, r)\n"
+        + "          | GREATER => NODE (l, y, insert (r, x))\n"
+        + "          | EQUAL => NODE (l, y, r)\n"
+        + "  fun toList LEAF = []\n"
+        + "    | toList (NODE (l, x, r)) = toList l @ [x] @ toList r\n"
+        + "in\n"
+        + "  toList (List.foldl (fn (x, t) => insert (t, x)) LEAF\n"
+        + "    [3, 1, 4, 1, 5])\n"
+        + "end";
+    ml(ml).assertEval(is(list(1, 3, 4, 5)));
+
+    // Values of "order" created by a built-in function
+    final String ml2 = "let\n"
+        + "  fun cmp (x, y) =\n"
+        + "    if x < y then LESS else if x > y then GREATER else EQUAL\n"
+        + "  fun sign LESS = ~1\n"
+        + "    | sign EQUAL = 0\n"
+        + "    | sign GREATER = 1\n"
+        + "in\n"
+        + "  map (fn l => sign (List.collate cmp (l, [1, 3])))\n"
+        + "    [[1, 2], [1, 3], [1, 4]]\n"
+        + "end";
+    ml(ml2).assertEval(is(list(-1, 0, 1)));
+  }
+
+  /** Tests that tail calls do not consume stack. Without tail-call
+   * elimination, each of these would overflow the Java stack. */
+  @Test void testTailCall() {
+    final String ml = "fun loop (n, acc) =\n"
+        + "  if n = 0 then acc else loop (n - 1, acc + 1)";
+    ml(ml).assertEval(whenAppliedTo(list(1_000_000, 0), is(1_000_000)));
+    ml(ml).with(Prop.CODEGEN, true)
+        .assertEval(whenAppliedTo(list(1_000_000, 0), is(1_000_000)));
+
+    // Tail calls in the arm of a 'case' and the body of a 'let'
+    final String ml2 = "let\n"
+        + "  fun evens ([], n) = n\n"
+        + "    | evens (x :: xs, n) =\n"
+        + "        let\n"
+        + "          val m = if x mod 2 = 0 then n + 1 else n\n"
+        + "        in\n"
+        + "          evens (xs, m)\n"
+        + "        end\n"
+        + "in\n"
+        + "  evens (List.tabulate (200000, fn i => i), 0)\n"
+        + "end";
+    ml(ml2).assertEval(is(100_000));
+    ml(ml2).with(Prop.CODEGEN, true).assertEval(is(100_000));
+
+    // Tail call in the body of a generated function that is applied in a
+    // fresh session
+    final String ml3 = "let\n"
+        + "  fun loop (n, acc) =\n"
+        + "    if n = 0 then acc else loop (n - 1, acc + 1)\n"
+        + "in\n"
+        + "  loop (100000, 0)\n"
+        + "end";
+    ml(ml3).with(Prop.CODEGEN, true).assertEval(is(100_000));
+  }
+
+  /** Tests arithmetic and comparison on {@code int} and {@code real}
+   * values, which are evaluated without boxing intermediate results. */
+  @Test void testPrimitiveArithmetic() {
+    final String ml = "fun f (a, b) =\n"
+        + "  (a + b * 2 - ~a, a div b, a mod b, a < b, a >= b, a <> b)";
+    ml(ml).assertEval(
+        whenAppliedTo(list(7, -2), is(list(10, -4, -1, false, true, true))));
+    ml(ml).assertEval(
+        whenAppliedTo(list(-7, 2), is(list(-10, -4, 1, true, false, true))));
+
+    final String ml2 = "fun g (x, y) =\n"
+        + "  (x * y + 0.5, x / y, ~x, x < y, x = y, x > y)";
+    ml(ml2).assertEval(
+        whenAppliedTo(list(1.5f, 2f),
+            is(list(3.5f, 0.75f, -1.5f, true, false, false))));
+    ml("let val x = 3 in x * x - x div 2 > 7 end").assertEval(is(true));
+  }
+
   @Test void testFunRecord() {
     final String ml = ""
         + "fun f {a=x,b=1,...} = x\n"
@@ -1503,6 +1737,76 @@ public class MainTest {
         .assertEvalIter(equalsOrdered(list(5), list(3)));
   }
 
+  /** Tests that tuples and records are comparable, so can be used as the
+   * key of an {@code order} clause, and compare equal to other lists. */
+  @Test void testOrderByTuple() {
+    final String ml = "from (x, y) in [(2, \"a\"), (1, \"c\"), (1, \"b\")]\n"
+        + "  order (x, y) desc";
+    ml(ml)
+        .assertType("{x:int, y:string} list")
+        .assertEvalIter(
+            equalsOrdered(list(2, "a"), list(1, "c"), list(1, "b")));
+
+    final String ml2 = "from e in [{a=1,b=2},{a=1,b=1},{a=0,b=3}]\n"
+        + "  order e";
+    ml(ml2)
+        .assertEvalIter(
+            equalsOrdered(list(0, 3), list(1, 1), list(1, 2)));
+    ml("(1, 2.5, \"x\", true) = (1, 2.5, \"x\", true)").assertEval(is(true));
+  }
+
+  /** Tests that functions that need only the first few rows of a
+   * {@code from} expression stop evaluating it early. Each query would
+   * raise {@code Div} if it evaluated its last row. */
+  @Test void testFromEarlyTermination() {
+    ml("List.hd (from i in [1, 2, 0] yield 10 div i)").assertEval(is(10));
+    ml("Relational.exists (from i in [1, 0] where 10 div i > 1)")
+        .assertEval(is(true));
+    ml("List.null (from i in [1, 0] where 10 div i > 1)")
+        .assertEval(is(false));
+    ml("List.find (fn x => x > 4) (from i in [1, 2, 0] yield 10 div i)")
+        .assertEval(is(list("SOME", 10)));
+    ml("List.take ((from i in [1, 2], j in [3, 2, 0] yield i + 6 div j), 2)")
+        .assertEval(is(list(3, 4)));
+    ml("List.nth ((from i in [5, 2, 0] where i > 1 yield 10 div i), 1)")
+        .assertEval(is(5));
+
+    // Queries with 'order' and 'group' evaluate every row, but give the
+    // same result.
+    ml("List.hd (from i in [3, 1, 2] order i)").assertEval(is(1));
+
+    // A nested query is evaluated once per row of the outer query
+    final String ml = "from d in [1, 2]\n"
+        + "  yield {d, x = List.hd (from e in [3, 4] where e > d + 1)}";
+    ml(ml).assertEvalIter(equalsOrdered(list(1, 3), list(2, 4)));
+  }
+
+  /** Tests that {@code order} followed by {@code List.take},
+   * {@code List.hd} or {@code List.nth} returns the same rows as a full
+   * sort, in the same order, even though it keeps only the first few. */
+  @Test void testOrderTopN() {
+    ml("List.take ((from i in [5, 3, 9, 1, 7, 3] order i desc), 3)")
+        .assertEval(is(list(9, 7, 5)));
+    ml("List.take ((from i in [5, 3, 9, 1, 7, 3] order i yield i * 10), 2)")
+        .assertEval(is(list(10, 30)));
+    ml("List.hd (from i in [5, 3, 9, 1, 7, 3] order i desc)")
+        .assertEval(is(9));
+    ml("List.nth ((from i in [5, 3, 9, 1, 7, 3] order i), 2)")
+        .assertEval(is(3));
+
+    // Rows with equal keys stay in their original order
+    final String ml = "List.take ((from (i, s) in\n"
+        + "    [(2, \"a\"), (1, \"b\"), (2, \"c\"), (1, \"d\"), (2, \"e\")]\n"
+        + "  order i yield s), 4)";
+    ml(ml).assertEval(is(list("b", "d", "a", "c")));
+
+    // 'where' after 'order' prevents top-N, but the result is the same
+    ml("List.take ((from i in [5, 3, 9] order i where i > 3), 1)")
+        .assertEval(is(list(5)));
+    ml("List.take ((from i in [5, 3, 9] order i), 0)")
+        .assertEval(is(list()));
+  }
+
   /** Analogous to SQL "CROSS APPLY" which calls a table-valued function
    * for each row in an outer loop. */
   @Test void testCrossApply() {
@@ -1519,6 +1823,98 @@ public class MainTest {
     ml(ml).assertEvalIter(equalsOrdered(list(3, "abc"), list(1, "d")));
   }
 
+  /** Tests that a scan whose condition equates an expression of its own
+   * variables to an expression of previous variables is evaluated using a
+   * hash join, and returns rows in the same order as a nested-loop join. */
+  @Test void testHashJoin() {
+    final String ml = "from a in [1, 2, 3, 2], b in [2, 3, 4, 2]\n"
+        + "  where a = b\n"
+        + "  yield a * 10 + b";
+    final String plan = "from(sink join(op join, pat a, "
+        + "exp tuple(constant(1), constant(2), constant(3), constant(2)), "
+        + "sink hashJoin(op join, pat b, "
+        + "exp tuple(constant(2), constant(3), constant(4), constant(2)), "
+        + "innerKey get(name b), outerKey get(name a), "
+        + "sink collect(apply(fnValue +, argCode tuple("
+        + "apply(fnValue *, argCode tuple(get(name a), constant(10))), "
+        + "get(name b)))))))";
+    ml(ml).assertEvalIter(equalsOrdered(22, 22, 33, 22, 22))
+        .assertPlan(isCode(plan));
+
+    // Key on the left or right of '=', with residual predicates in 'where'
+    final String ml2 = "from e in [(1, 10), (2, 20), (3, 10)],\n"
+        + "    d in [(10, \"x\"), (20, \"y\"), (10, \"z\")]\n"
+        + "  where #1 d = #2 e andalso #1 e > 1 andalso #2 d <> \"x\"\n"
+        + "  yield (#1 e, #2 d)";
+    ml(ml2).assertEvalIter(equalsOrdered(list(2, "y"), list(3, "z")));
+
+    // Join condition in 'on'
+    final String ml3 = "from e in [(1, 10), (2, 20), (3, 10)]\n"
+        + "  join d in [(10, \"x\"), (20, \"y\"), (10, \"z\")]\n"
+        + "    on #2 e = #1 d\n"
+        + "  yield (#1 e, #2 d)";
+    ml(ml3).assertEvalIter(
+        equalsOrdered(list(1, "x"), list(1, "z"), list(2, "y"),
+            list(3, "x"), list(3, "z")));
+
+    // Composite key
+    final String ml4 = "from (a, b) in [(1, 2), (2, 3)],\n"
+        + "    (c, d) in [(2, 5), (3, 6), (2, 7)]\n"
+        + "  where b = c andalso a + 1 = c\n"
+        + "  yield (a, d)";
+    ml(ml4).assertEvalIter(
+        equalsOrdered(list(1, 5), list(1, 7), list(2, 6)));
+
+    // A key that might fail is not evaluated for rows where an earlier
+    // conjunct is false
+    ml("from a in [0, 3], b in [2, 3]\n"
+        + "  where a + b > 4 andalso 6 div a = b")
+        .assertEvalIter(equalsOrdered(list(3, 2)));
+    ml("from a in [1, 2], b in [0, 3]\n"
+        + "  where a + b > 2 andalso a = 6 div b")
+        .assertEvalIter(equalsOrdered(list(2, 3)));
+    ml("from a in [1, 2]\n"
+        + "  join b in [0, 3] on a + b > 2 andalso a = 6 div b")
+        .assertEvalIter(equalsOrdered(list(2, 3)));
+  }
+
+  /** Tests that a {@code from} expression evaluated by several threads
+   * gives the same result, in the same order, as in one thread. */
+  @Test void testParallelFrom() {
+    final String ml = "from i in List.tabulate (20, fn i => i)\n"
+        + "  where i mod 3 = 0\n"
+        + "  yield i * 2";
+    ml(ml).with(Prop.PARALLELISM, 4)
+        .assertEvalIter(equalsOrdered(0, 6, 12, 18, 24, 30, 36));
+
+    // Groups merge, and keep their rows in order
+    final String ml2 = "from i in List.tabulate (20, fn i => i)\n"
+        + "  group k = i mod 3\n"
+        + "  compute c = sum of 1, f = (fn l => List.hd l) of i";
+    ml(ml2).with(Prop.PARALLELISM, 4)
+        .assertEvalIter(
+            equalsUnordered(list(7, 0, 0), list(7, 1, 1), list(6, 2, 2)));
+
+    // Sorted runs merge, and the sort is stable
+    final String ml3 = "from i in List.tabulate (10, fn i => i)\n"
+        + "  order i mod 3\n"
+        + "  yield i";
+    ml(ml3).with(Prop.PARALLELISM, 3)
+        .assertEvalIter(equalsOrdered(0, 3, 6, 9, 1, 4, 7, 2, 5, 8));
+
+    // Nested query, and hash join
+    final String ml4 = "from i in [1, 2, 3, 4],\n"
+        + "    j in [2, 4, 6]\n"
+        + "  where i = j\n"
+        + "  yield from k in [1, 2, 3] where k < i";
+    ml(ml4).with(Prop.PARALLELISM, 4)
+        .assertEvalIter(equalsOrdered(list(1), list(1, 2, 3)));
+
+    // More threads than rows
+    ml("from i in [1, 2] yield i + 1").with(Prop.PARALLELISM, 8)
+        .assertEvalIter(equalsOrdered(2, 3));
+  }
+
   @Test void testJoinLateral() {
     final String ml = "let\n"
         + "  val emps = [{name = \"Shaggy\",\n"
@@ -1662,6 +2058,471 @@ public class MainTest {
                 list(0, list(list(0, 1)))));
   }
 
+  /** Tests built-in aggregate functions, which are computed as rows arrive,
+   * alongside a user-defined aggregate function, which needs all rows. */
+  @Test void testGroupIncremental() {
+    final String ml = "from e in [{a = 1, b = 5.0, c = 3}, {a = 0, b = 1.5, c = 2},\n"
+        + "    {a = 1, b = 1.0, c = 4}, {a = 1, b = 2.0, c = 3}]\n"
+        + "  group e.a\n"
+        + "  compute n = count, s = sum of e.c, r = sum of e.b,\n"
+        + "    lo = min of e.c, hi = max of e.b,\n"
+        + "    l = (fn cs => cs) of e.c";
+    final Object[] expected = {
+        list(1, 5.0f, list(3, 4, 3), 3, 3, 8.0f, 10),
+        list(0, 1.5f, list(2), 2, 1, 1.5f, 2)};
+    ml(ml).assertEvalIter(equalsUnordered(expected));
+    ml(ml).with(Prop.PARALLELISM, 3)
+        .assertEvalIter(equalsUnordered(expected));
+
+    // No keys and no rows. "count" and "sum" return 0.
+    ml("from i in [1] where i > 1 group compute c = count, s = sum of i")
+        .assertEvalIter(equalsOrdered(list(0, 0)));
+  }
+
+  /** Tests that {@code elem}, {@code notElem}, {@code exists} and
+   * {@code notExists} in a {@code where} step, whose collection does not
+   * depend on the current row (or can be made not to), are evaluated as a
+   * semi-join or anti-join. */
+  @Test void testSemiJoin() {
+    final String emps = "val emps = [{id = 100, deptno = 10},\n"
+        + "  {id = 101, deptno = 20}, {id = 102, deptno = 30},\n"
+        + "  {id = 103, deptno = 30}]\n"
+        + "val depts = [{deptno = 10, name = \"Sales\"},\n"
+        + "  {deptno = 20, name = \"HR\"}, {deptno = 40, name = \"Marketing\"}]\n";
+    final String ml = "let\n"
+        + emps
+        + "in\n"
+        + "  from e in emps\n"
+        + "  where e.deptno elem (from d in depts yield d.deptno)\n"
+        + "  yield e.id\n"
+        + "end";
+    final String plan = "let1(matchCode match($v2, "
+        + "from(sink join(op join, pat d, "
+        + "exp tuple(tuple(constant(10))), "
+        + "sink collect(apply(fnValue nth:0, argCode get(name d)))))), "
+        + "resultCode from(sink join(op join, pat e, "
+        + "exp tuple(tuple(constant(10), constant(100))), "
+        + "sink semiJoin(key apply(fnValue nth:0, argCode get(name e)), "
+        + "collection get(name $v2), "
+        + "sink collect(apply(fnValue nth:1, argCode get(name e)))))))";
+    ml(ml).assertEval(is(list(100, 101)));
+    final String[] mls = {
+        "e.deptno notElem (from d in depts yield d.deptno)",
+        "not (e.deptno elem (from d in depts yield d.deptno))\n"
+            + "  andalso e.id > 102",
+        "exists (from d in depts\n"
+            + "  where d.deptno = e.deptno andalso d.name <> \"HR\")",
+        "notExists (from d in depts where e.deptno = d.deptno)",
+        "e.id > 100 andalso exists depts",
+        "notExists (from d in depts where d.deptno > 100)"};
+    final Object[] expected = {
+        list(102, 103),
+        list(103),
+        list(100),
+        list(102, 103),
+        list(101, 102, 103),
+        list(100, 101, 102, 103)};
+    for (int i = 0; i < mls.length; i++) {
+      ml("let\n"
+          + emps
+          + "in\n"
+          + "  from e in emps where " + mls[i] + " yield e.id\n"
+          + "end")
+          .assertEval(is(expected[i]));
+    }
+    // Collection depends on the current row; not a semi-join
+    ml("from e in [{id = 100, deptno = 10}, {id = 101, deptno = 101}]\n"
+        + "where e.id elem [100, e.deptno]\n"
+        + "yield e.id")
+        .assertEval(is(list(100, 101)));
+    // A conjunct that might fail is evaluated only if the conjuncts before
+    // it are true; not a semi-join
+    ml("from e in [1]\n"
+        + "where exists (from d in [0, 1]\n"
+        + "  where d = e andalso 10 div d > 1)")
+        .assertEval(is(list(1)));
+    ml("from e in [1, 2]\n"
+        + "where notExists (from d in [0, 2]\n"
+        + "  where e = d andalso 10 div d > 1)")
+        .assertEval(is(list(1)));
+    ml("from e in [{id = 100, deptno = 10}]\n"
+        + "where e.deptno elem (from d in [{deptno = 10}] yield d.deptno)\n"
+        + "yield e.id")
+        .assertPlan(isCode(plan));
+  }
+
+  /** Tests {@code union}, {@code except} and {@code intersect}, whether the
+   * left or the right list is the smaller, as an expression and as the
+   * collection of a scan. */
+  @Test void testSetOps() {
+    ml("[1, 2, 3, 2] except [2, 5, 6, 7, 8, 9]")
+        .assertEval(is(list(1, 3)));
+    ml("[1, 2, 3, 2, 4, 1] except [2, 1]")
+        .assertEval(is(list(3, 4)));
+    ml("[1, 2, 3, 2] intersect [2, 5, 6, 7, 8, 9, 3]")
+        .assertEval(is(list(2, 3, 2)));
+    ml("[1, 2, 3, 2, 4, 1] intersect [4, 1]")
+        .assertEval(is(list(1, 4, 1)));
+    ml("from i in [1, 2] union [3, 1]")
+        .assertEvalIter(equalsOrdered(1, 2, 3, 1));
+    ml("from i in [1, 2, 3, 2] except [2, 5, 6, 7, 8] yield i * 10")
+        .assertEvalIter(equalsOrdered(10, 30));
+    ml("from i in [1, 2, 3, 2] intersect [3, 2], j in [1] union [2]\n"
+        + "  where i < 3")
+        .assertEvalIter(
+            equalsOrdered(list(2, 1), list(2, 2), list(2, 1), list(2, 2)));
+    ml("from i in [1, 2] union [3]")
+        .assertPlan(
+            isCode("from(sink join(op join, pat i, "
+                + "exp apply(fnValue union, argCode tuple(tuple(constant(1), "
+                + "constant(2)), tuple(constant(3)))), "
+                + "sink collect(get(name i))))"));
+  }
+
+  /** Tests that a scan evaluates comparisons between its variables and
+   * constants over batches of rows. There are more rows than fit into one
+   * batch; a 'where' that is not a simple comparison, or that references a
+   * different scan, is evaluated a row at a time. */
+  @Test void testBatchFilter() {
+    final String ml = "let\n"
+        + "  val xs = List.tabulate (3000, fn i =>\n"
+        + "    {x = i, y = if i mod 2 = 0 then 1.5 else 2.5, b = i mod 3 = 0})\n"
+        + "in\n"
+        + "  ((from e in xs\n"
+        + "    where e.x > 100 andalso e.y < 2.0 andalso e.b\n"
+        + "    group compute c = count, s = sum of e.x),\n"
+        + "  (from e in xs\n"
+        + "    where 100 < e.x\n"
+        + "    where not e.b andalso e.x <> 200\n"
+        + "    group compute c = count),\n"
+        + "  (from {x, y, b} in xs\n"
+        + "    where x < 5 andalso b = false\n"
+        + "    yield (x, y)),\n"
+        + "  (from e in xs, f in [1, 2]\n"
+        + "    where e.x < 2\n"
+        + "    yield (e.x, f)))\n"
+        + "end";
+    ml(ml).assertEval(
+        is(
+            list(list(list(483, 747684)), list(1932),
+                list(list(1, 2.5f), list(2, 1.5f), list(4, 1.5f)),
+                list(list(0, 1), list(0, 2), list(1, 1), list(1, 2)))));
+  }
+
+  /** Tests that 'order' and 'group' give the same results, in the same
+   * order, when they exceed their memory budget and write rows to temporary
+   * files. */
+  @Test void testSpill() {
+    final String ml = "from (i, s) in [(3, \"c\"), (1, \"a\"), (2, \"b\"),\n"
+        + "    (1, \"d\"), (3, \"e\"), (2, \"f\"), (1, \"g\")]\n"
+        + "  order i desc\n"
+        + "  yield (s, i)";
+    final Object[] expected = {list("c", 3), list("e", 3), list("b", 2),
+        list("f", 2), list("a", 1), list("d", 1), list("g", 1)};
+    ml(ml).assertEvalIter(equalsOrdered(expected));
+    ml(ml).with(Prop.MEMORY_BUDGET, 2)
+        .assertEvalIter(equalsOrdered(expected));
+    ml(ml).with(Prop.MEMORY_BUDGET, 2).with(Prop.PARALLELISM, 3)
+        .assertEvalIter(equalsOrdered(expected));
+
+    final String ml2 = "from (i, s) in [(3, \"c\"), (1, \"a\"), (2, \"b\"),\n"
+        + "    (1, \"d\"), (3, \"e\"), (2, \"f\"), (4, \"g\")]\n"
+        + "  group k = {p = i mod 2, q = SOME i}\n"
+        + "  compute n = count, r = sum of 1.5, lo = min of s,\n"
+        + "    l = (fn ss => ss) of s";
+    final Object[] expected2 = {
+        list(list(1, list("SOME", 3)), list("c", "e"), "c", 2, 3.0f),
+        list(list(1, list("SOME", 1)), list("a", "d"), "a", 2, 3.0f),
+        list(list(0, list("SOME", 2)), list("b", "f"), "b", 2, 3.0f),
+        list(list(0, list("SOME", 4)), list("g"), "g", 1, 1.5f)};
+    ml(ml2).assertEvalIter(equalsOrdered(expected2));
+    ml(ml2).with(Prop.MEMORY_BUDGET, 1)
+        .assertEvalIter(equalsOrdered(expected2));
+    ml(ml2).with(Prop.MEMORY_BUDGET, 1).with(Prop.PARALLELISM, 3)
+        .assertEvalIter(equalsOrdered(expected2));
+
+    // Groups are emitted in the order that their keys were first seen,
+    // whatever the memory budget; so are groups that tie in a later
+    // 'order'.
+    final String ml3 = "from i in List.tabulate (30, fn i => i * 7 mod 13)\n"
+        + "  group g = i compute c = count";
+    final Object[] expected3 = {list(3, 0), list(3, 7), list(3, 1),
+        list(3, 8), list(2, 2), list(2, 9), list(2, 3), list(2, 10),
+        list(2, 4), list(2, 11), list(2, 5), list(2, 12), list(2, 6)};
+    final String ml4 = ml3 + "\n"
+        + "  order c\n"
+        + "  yield g";
+    final Object[] expected4 = {2, 9, 3, 10, 4, 11, 5, 12, 6, 0, 7, 1, 8};
+    ml(ml3).assertEvalIter(equalsOrdered(expected3));
+    ml(ml4).assertEvalIter(equalsOrdered(expected4));
+    for (int memoryBudget : new int[] {1, 2, 7, 10}) {
+      for (int parallelism : new int[] {1, 3}) {
+        ml(ml3).with(Prop.MEMORY_BUDGET, memoryBudget)
+            .with(Prop.PARALLELISM, parallelism)
+            .assertEvalIter(equalsOrdered(expected3));
+        ml(ml4).with(Prop.MEMORY_BUDGET, memoryBudget)
+            .with(Prop.PARALLELISM, parallelism)
+            .assertEvalIter(equalsOrdered(expected4));
+      }
+    }
+  }
+
+  /** Tests that expressions that do not depend on the current row are
+   * computed once, before the {@code from}, and that a repeated expression
+   * is computed once per row. */
+  @Test void testHoist() {
+    final String ml = "let\n"
+        + "  val prefix = \"abcd\"\n"
+        + "in\n"
+        + "  from s in [\"a\", \"abcdef\", \"xyzzy\"]\n"
+        + "    where String.size s > String.size prefix\n"
+        + "    yield (String.size s, String.size s + 1)\n"
+        + "end";
+    final String plan = "let1(matchCode match($v0, "
+        + "apply(fnValue String.size, argCode constant(abcd))), "
+        + "resultCode from(sink join(op join, pat s, "
+        + "exp tuple(constant(a), constant(abcdef), constant(xyzzy)), "
+        + "sink where(condition apply(fnValue >, "
+        + "argCode tuple(apply(fnValue String.size, argCode get(name s)), "
+        + "get(name $v0))), "
+        + "sink collect(let1(matchCode match($v1, "
+        + "apply(fnValue String.size, argCode get(name s))), "
+        + "resultCode tuple(get(name $v1), "
+        + "apply(fnValue +, argCode tuple(get(name $v1), "
+        + "constant(1))))))))))";
+    ml(ml).assertEval(is(list(list(6, 7), list(5, 6))))
+        .assertPlan(isCode(plan));
+
+    // A nested query that only reads the function's argument is evaluated
+    // once per call, not once per row.
+    final String ml2 = "let\n"
+        + "  val emps = [{name = \"Fred\", deptno = 10},\n"
+        + "    {name = \"Velma\", deptno = 20}]\n"
+        + "  val depts = [{deptno = 10, name = \"Sales\"},\n"
+        + "    {deptno = 20, name = \"Marketing\"}]\n"
+        + "  fun f p =\n"
+        + "    from e in emps\n"
+        + "      where e.deptno elem (from d in depts\n"
+        + "        where String.isPrefix p d.name yield d.deptno)\n"
+        + "      yield e.name\n"
+        + "in\n"
+        + "  (f \"S\", f \"\", f \"X\")\n"
+        + "end";
+    ml(ml2).assertEval(
+        is(list(list("Fred"), list("Fred", "Velma"), list())));
+
+    // A variable hoisted into a lambda does not clash with the lambda's
+    // parameter, which the resolver names "v0".
+    final String ml3 = "let\n"
+        + "  val prefix = \"ab\"\n"
+        + "  val pairs = [(1, \"abc\"), (2, \"x\")]\n"
+        + "in\n"
+        + "  from s in [\"a\", \"b\"]\n"
+        + "    where List.exists\n"
+        + "      (fn (a, b) => String.size b > String.size prefix) pairs\n"
+        + "end";
+    ml(ml3).assertEval(is(list("a", "b")));
+
+    // An expression that might fail is not moved; there are no rows, so it
+    // is never evaluated.
+    ml("from i in [] where i > 10 div 0").assertEval(is(list()));
+    ml("from i in [1, 2] where i > 2 andalso 10 div 0 > 1")
+        .assertEval(is(list()));
+  }
+
+
+  /** Tests that the conditions of a 'where' are evaluated at the earliest
+   * scan that binds all of their variables, cheapest first. */
+  @Test void testPredicatePushDown() {
+    final String ml = "from a in [1, 11, 12], b in [\"x\", \"yy\"],\n"
+        + "    c in [1, 2]\n"
+        + "  where String.size b = c andalso a > 10 andalso c = 1";
+    final String plan = "from(sink join(op join, pat a, "
+        + "exp tuple(constant(1), constant(11), constant(12)), "
+        + "condition apply(fnValue >, argCode tuple(get(name a), "
+        + "constant(10))), "
+        + "sink join(op join, pat b, "
+        + "exp tuple(constant(x), constant(yy)), "
+        + "sink hashJoin(op join, pat c, "
+        + "exp tuple(constant(1), constant(2)), "
+        + "innerKey get(name c), "
+        + "outerKey apply(fnValue String.size, argCode get(name b)), "
+        + "sink where(condition "
+        + "apply(fnValue =, argCode tuple(get(name c), constant(1))), "
+        + "sink collect(getTuple(names [a, b, c])))))))";
+    ml(ml).assertEvalIter(
+        equalsOrdered(list(11, "x", 1), list(12, "x", 1)))
+        .assertPlan(isCode(plan));
+
+    // A condition that might fail is not moved, nor are the conditions
+    // after it; the scan of "b" is empty, so "10 div a" is never evaluated.
+    ml("from a in [0, 1], b in [] where 10 div a > 1 andalso a > 0")
+        .assertEval(is(list()));
+  }
+
+  /** Tests that the scans of a {@code from} whose consumer ignores the
+   * order of its rows are reordered to avoid a cross product. */
+  @Test void testScanReorder() {
+    final String ml = "Relational.count (\n"
+        + "  from i in [1, 2, 3], j in [1, 2, 3, 4, 5],\n"
+        + "      k in [(1, 1), (2, 1), (2, 2), (3, 5)]\n"
+        + "    where i = #1 k andalso #2 k = j)";
+    final String plan = "apply(fnValue Relational.count, argCode "
+        + "from(sink join(op join, pat i, "
+        + "exp tuple(constant(1), constant(2), constant(3)), "
+        + "sink hashJoin(op join, pat k, "
+        + "exp tuple(tuple(constant(1), constant(1)), "
+        + "tuple(constant(2), constant(1)), "
+        + "tuple(constant(2), constant(2)), "
+        + "tuple(constant(3), constant(5))), "
+        + "innerKey apply(fnValue nth:0, argCode get(name k)), "
+        + "outerKey get(name i), "
+        + "sink hashJoin(op join, pat j, "
+        + "exp tuple(constant(1), constant(2), constant(3), constant(4), "
+        + "constant(5)), "
+        + "innerKey get(name j), "
+        + "outerKey apply(fnValue nth:1, argCode get(name k)), "
+        + "sink collect(getTuple(names [i, j, k])))))))";
+    ml(ml).assertEval(is(4)).assertPlan(isCode(plan));
+
+    // The order of the rows is significant, so the scans are not reordered
+    ml("from i in [1, 2, 3], j in [1, 2] where i > j")
+        .assertEvalIter(
+            equalsOrdered(list(2, 1), list(3, 1), list(3, 2)));
+
+    // Steps after the scans see the original layout
+    ml("Relational.count (from i in [1, 2, 3], j in [1, 2]\n"
+        + "  where i > j yield i + j)")
+        .assertEval(is(3));
+  }
+
+  /** Tests that a chain of calls to {@code List.map} and
+   * {@code List.filter} is fused into one {@code from}, which the function
+   * that consumes the list reads one row at a time. */
+  @Test void testListFusion() {
+    final String ml = "List.foldl (fn (x, y) => x + y) 0\n"
+        + "  (List.map (fn x => x * 2)\n"
+        + "    (List.filter (fn x => x > 2) [1, 2, 3, 4, 5, 6]))";
+    final String plan = "apply(fnCode apply(fnCode apply(fnValue List.foldl, "
+        + "argCode match(v0, apply(fnCode match((x_2, y), "
+        + "apply(fnValue +, argCode tuple(get(name x), get(name y)))), "
+        + "argCode get(name v0)))), argCode constant(0)), "
+        + "argCode from(sink join(op join, pat $v0, "
+        + "exp tuple(constant(1), constant(2), constant(3), constant(4), "
+        + "constant(5), constant(6)), "
+        + "sink where(condition apply(fnValue >, "
+        + "argCode tuple(get(name $v0), constant(2))), "
+        + "sink collect(apply(fnValue *, "
+        + "argCode tuple(get(name $v0), constant(2))))))))";
+    ml(ml).assertEval(is(36)).assertPlan(isCode(plan));
+    ml("List.length (List.filter (fn x => x > 3)\n"
+        + "  (List.map (fn x => x + 1) [1, 2, 3, 4]))")
+        .assertEval(is(2));
+    ml("List.map (fn r => r.b)\n"
+        + "  (List.filter (fn r => r.a > 1)\n"
+        + "    (List.map (fn x => {a = x, b = x * 10}) [1, 2, 3]))")
+        .assertEval(is(list(20, 30)));
+
+    // Not fused, because List.exists would stop before the second element,
+    // and therefore the exception would not be raised.
+    ml("List.exists (fn x => x > 1) (List.map (fn x => 10 div x) [1, 0])")
+        .assertEvalError(
+            throwsA(ArithmeticException.class, is("/ by zero")));
+  }
+
+  /** Tests that, if property "relationalize" is set, calls to list
+   * functions become {@code from} expressions. */
+  @Test void testRelationalize() {
+    final String ml = "List.exists (fn x => x > 2) [1, 2, 3]";
+    final String plan = "apply(fnValue Relational.exists, "
+        + "argCode from(sink join(op join, pat $v0, "
+        + "exp tuple(constant(1), constant(2), constant(3)), "
+        + "sink where(condition apply(fnValue >, "
+        + "argCode tuple(get(name $v0), constant(2))), "
+        + "sink collect(get(name $v0))))))";
+    ml(ml).with(Prop.RELATIONALIZE, true)
+        .assertEval(is(true))
+        .assertPlan(isCode(plan));
+    ml("List.all (fn x => x > 2) [1, 2, 3]")
+        .with(Prop.RELATIONALIZE, true)
+        .assertEval(is(false));
+    ml("List.all (fn x => x > 0) []")
+        .with(Prop.RELATIONALIZE, true)
+        .assertEval(is(true));
+    ml("List.find (fn x => x mod 2 = 0) [1, 3, 4, 5, 6]")
+        .with(Prop.RELATIONALIZE, true)
+        .assertEval(is(list("SOME", 4)));
+    ml("List.find (fn x => x > 10) [1, 3, 4]")
+        .with(Prop.RELATIONALIZE, true)
+        .assertEval(is(list("NONE")));
+    ml("List.partition (fn x => x mod 2 = 0) (List.tabulate (6, fn i => i))")
+        .with(Prop.RELATIONALIZE, true)
+        .assertEval(is(list(list(0, 2, 4), list(1, 3, 5))));
+    ml("List.concat [[1, 2], [], [3]]")
+        .with(Prop.RELATIONALIZE, true)
+        .assertEval(is(list(1, 2, 3)));
+    ml("List.foldl (fn (x, acc) => x + acc) 0 [1, 2, 3]")
+        .with(Prop.RELATIONALIZE, true)
+        .assertEval(is(6))
+        .assertPlan(
+            isCode("apply(fnValue Relational.sum$int, "
+                + "argCode tuple(constant(1), constant(2), constant(3)))"));
+    ml("List.foldl (fn (_, n) => n + 1) 0 [\"a\", \"b\"]")
+        .with(Prop.RELATIONALIZE, true)
+        .assertEval(is(2));
+    ml("List.foldl (fn (x, acc) => acc + x) 0.0 [1.5, 2.0]")
+        .with(Prop.RELATIONALIZE, true)
+        .assertEval(is(3.5f));
+
+    // The predicate could fail, so the list is not partitioned by two
+    // 'from' expressions; the result is the same either way.
+    ml("List.partition (fn x => 6 div x > 2) [1, 2, 3]")
+        .with(Prop.RELATIONALIZE, true)
+        .assertEval(is(list(list(1, 2), list(3))));
+
+    // Functions whose argument is a tuple or record pattern, with and
+    // without Calcite
+    for (boolean hybrid : new boolean[] {false, true}) {
+      ml("List.filter (fn (i, j) => i > 1) [(1, 1), (2, 2)]")
+          .with(Prop.RELATIONALIZE, true)
+          .with(Prop.HYBRID, hybrid)
+          .assertEval(is(list(list(2, 2))));
+      ml("List.map (fn (i, j) => i + j)\n"
+          + "  (List.filter (fn (i, j) => i > 1) [(1, 1), (2, 2)])")
+          .with(Prop.RELATIONALIZE, true)
+          .with(Prop.HYBRID, hybrid)
+          .assertEval(is(list(4)));
+      ml("List.filter (fn {i, j} => i mod 2 = 0)\n"
+          + "  [{i = 1, j = 1}, {i = 2, j = 2}, {i = 4, j = 5}]")
+          .with(Prop.RELATIONALIZE, true)
+          .with(Prop.HYBRID, hybrid)
+          .assertEval(is(list(list(2, 2), list(4, 5))));
+      ml("List.exists (fn (i, j) => i = j)\n"
+          + "  (List.map (fn (i, j) => (j, i)) [(1, 2), (2, 3)])")
+          .with(Prop.RELATIONALIZE, true)
+          .with(Prop.HYBRID, hybrid)
+          .assertEval(is(false));
+      ml("List.all (fn {i, j} => i <= j) [{i = 1, j = 1}, {i = 2, j = 3}]")
+          .with(Prop.RELATIONALIZE, true)
+          .with(Prop.HYBRID, hybrid)
+          .assertEval(is(true));
+      ml("List.find (fn (i, j) => i > 1) [(1, 1), (2, 2)]")
+          .with(Prop.RELATIONALIZE, true)
+          .with(Prop.HYBRID, hybrid)
+          .assertEval(is(list("SOME", list(2, 2))));
+      ml("List.foldl (fn ((i, j), acc) => i + j + acc) 0\n"
+          + "  (List.filter (fn (i, j) => i > 1) [(1, 1), (2, 2)])")
+          .with(Prop.RELATIONALIZE, true)
+          .with(Prop.HYBRID, hybrid)
+          .assertEval(is(4));
+      ml("List.length (List.filter (fn {i, j} => i > 1)\n"
+          + "  [{i = 1, j = 1}, {i = 2, j = 2}])")
+          .with(Prop.RELATIONALIZE, true)
+          .with(Prop.HYBRID, hybrid)
+          .assertEval(is(1));
+    }
+  }
+
   /** Tests that Morel throws if there are duplicate names in 'group' or
    * 'compute' clauses. */
   @Test void testGroupDuplicates() {
@@ -20,12 +20,17 @@ package net.hydromatic.morel;
 
 import net.hydromatic.morel.ast.Ast;
 import net.hydromatic.morel.ast.Pos;
+import net.hydromatic.morel.util.CharList;
 import net.hydromatic.morel.util.Folder;
 import net.hydromatic.morel.util.MapList;
 import net.hydromatic.morel.util.Ord;
+import net.hydromatic.morel.util.PersistentList;
+import net.hydromatic.morel.util.PersistentVector;
 import net.hydromatic.morel.util.Static;
 import net.hydromatic.morel.util.TailList;
+import net.hydromatic.morel.util.TyConValue;
 
+import com.google.common.collect.ImmutableList;
 import org.apache.calcite.util.ImmutableIntList;
 import org.apache.calcite.util.Util;
 import org.junit.jupiter.api.Test;
@@ -103,6 +108,148 @@ public class UtilTest {
     assertThat(String.join(",", abc), is("a,b,c"));
   }
 
+  /** Tests {@link TyConValue}. */
+  @Test void testTyConValue() {
+    final List<Object> some1 = TyConValue.of(1, "SOME", 1);
+    assertThat(some1.size(), is(2));
+    assertThat(some1.toString(), is("[SOME, 1]"));
+    assertThat(some1, is(Arrays.asList("SOME", 1)));
+    assertThat(Arrays.asList("SOME", 1), is(some1));
+    assertThat(some1.hashCode(), is(Arrays.asList("SOME", 1).hashCode()));
+    assertThat(some1, is(TyConValue.of(1, "SOME", 1)));
+    assertThat(some1, not(is(TyConValue.of(1, "SOME", 2))));
+    assertThat(TyConValue.ordinal(some1), is(1));
+    assertThat(TyConValue.ordinal(Arrays.asList("SOME", 1)), is(-1));
+
+    // A constructor without an argument is a comparable singleton list
+    final TyConValue.Con0 none = TyConValue.of(0, "NONE");
+    assertThat(none, is(Collections.singletonList("NONE")));
+    assertThat(none.hashCode(),
+        is(Collections.singletonList("NONE").hashCode()));
+    assertThat(TyConValue.ordinal(none), is(0));
+    final TyConValue.Con0 equal = TyConValue.of(0, "EQUAL");
+    final TyConValue.Con0 less = TyConValue.of(2, "LESS");
+    assertThat(equal.compareTo(less) < 0, is(true));
+    assertThat(less.compareTo(equal) > 0, is(true));
+    assertThat(less.compareTo(TyConValue.of(2, "LESS")), is(0));
+  }
+
+  /** Tests {@link PersistentList}. */
+  @Test void testPersistentList() {
+    final List<String> empty = ImmutableList.of();
+    final List<String> c = PersistentList.cons("c", empty);
+    final List<String> bc = PersistentList.cons("b", c);
+    final List<String> abc = PersistentList.cons("a", bc);
+    assertThat(abc.size(), is(3));
+    assertThat(abc.toString(), is("[a, b, c]"));
+    assertThat(abc.get(0), is("a"));
+    assertThat(abc.get(2), is("c"));
+    assertThat(abc, is(Arrays.asList("a", "b", "c")));
+    assertThat(Arrays.asList("a", "b", "c"), is(abc));
+    assertThat(abc.hashCode(), is(Arrays.asList("a", "b", "c").hashCode()));
+    assertThat(PersistentList.tail(abc) == bc, is(true));
+    assertThat(PersistentList.tail(c) == empty, is(true));
+    assertThat(abc.subList(1, 3) == bc, is(true));
+    assertThat(abc.subList(0, 2), is(Arrays.asList("a", "b")));
+    assertThat(abc.indexOf("c"), is(2));
+    assertThat(abc.contains("d"), is(false));
+
+    // The tail of a PersistentList may be any list
+    final List<String> xyz = PersistentList.cons("x", Arrays.asList("y", "z"));
+    assertThat(xyz.toString(), is("[x, y, z]"));
+    assertThat(PersistentList.tail(PersistentList.tail(xyz)),
+        is(Collections.singletonList("z")));
+
+    // append shares the second list
+    final List<String> abcxyz = PersistentList.append(abc, xyz);
+    assertThat(abcxyz.toString(), is("[a, b, c, x, y, z]"));
+    assertThat(abcxyz.subList(3, 6) == xyz, is(true));
+    assertThat(PersistentList.append(empty, xyz) == xyz, is(true));
+    assertThat(PersistentList.revAppend(abc, xyz).toString(),
+        is("[c, b, a, x, y, z]"));
+  }
+
+  /** Tests {@link PersistentVector}. */
+  @Test void testPersistentVector() {
+    final List<Integer> empty = PersistentVector.of();
+    assertThat(empty.isEmpty(), is(true));
+    assertThat(PersistentVector.copyOf(empty) == empty, is(true));
+
+    final List<Integer> list = ImmutableIntList.identity(1000);
+    final PersistentVector<Integer> v = PersistentVector.copyOf(list);
+    assertThat(v, is(list));
+    assertThat(v.hashCode(), is(list.hashCode()));
+    assertThat(v.get(999), is(999));
+    assertThat(PersistentVector.copyOf(v) == v, is(true));
+
+    // set does not modify the original
+    final List<Integer> v2 = PersistentVector.set(v, 500, -1);
+    assertThat(v2.get(500), is(-1));
+    assertThat(v2.get(501), is(501));
+    assertThat(v.get(500), is(500));
+    try {
+      final List<Integer> v3 = PersistentVector.set(v, 1000, 0);
+      throw new AssertionError("expected error, got " + v3);
+    } catch (IndexOutOfBoundsException e) {
+      assertThat(e.getMessage(), is("index 1000, size 1000"));
+    }
+
+    // Concatenate vectors of various sizes, in various orders, and compare
+    // with the equivalent ArrayList
+    final List<Integer> expected = new ArrayList<>();
+    List<Integer> actual = PersistentVector.of();
+    for (int i = 0; i < 200; i++) {
+      final int n = (i * 37) % 101;
+      final List<Integer> chunk = new ArrayList<>();
+      for (int j = 0; j < n; j++) {
+        chunk.add(i * 1000 + j);
+      }
+      if (i % 3 == 0) {
+        expected.addAll(0, chunk);
+        actual = PersistentVector.concat(chunk, actual);
+      } else {
+        expected.addAll(chunk);
+        actual = PersistentVector.concat(actual, chunk);
+      }
+      if (i % 7 == 0 && !expected.isEmpty()) {
+        final int k = expected.size() / 3;
+        expected.set(k, -i);
+        actual = PersistentVector.set(actual, k, -i);
+      }
+    }
+    assertThat(actual.size(), is(expected.size()));
+    for (int i = 0; i < expected.size(); i++) {
+      assertThat(actual.get(i), is(expected.get(i)));
+    }
+    assertThat(new ArrayList<>(actual), is(expected));
+    assertThat(PersistentVector.concat(actual, actual),
+        is(PersistentVector.concat(expected, expected)));
+  }
+
+  /** Tests {@link CharList}. */
+  @Test void testCharList() {
+    final String s = "hello";
+    final CharList list = CharList.of(s);
+    assertThat(list, is(Arrays.asList('h', 'e', 'l', 'l', 'o')));
+    assertThat(list.hashCode(),
+        is(Arrays.asList('h', 'e', 'l', 'l', 'o').hashCode()));
+    assertThat(list.string() == s, is(true));
+
+    // A tail is a range of the same string, and nested tails do not nest
+    final List<Character> tail = PersistentList.tail(PersistentList.tail(list));
+    assertThat(tail, instanceOf(CharList.class));
+    assertThat(tail, is(Arrays.asList('l', 'l', 'o')));
+    assertThat(((CharList) tail).string(), is("llo"));
+    assertThat(list.subList(1, 3).subList(1, 2).string(), is("l"));
+    assertThat(list.subList(5, 5).isEmpty(), is(true));
+    try {
+      final List<Character> list2 = list.subList(2, 6);
+      throw new AssertionError("expected error, got " + list2);
+    } catch (IndexOutOfBoundsException e) {
+      assertThat(e.getMessage(), is("from 2, to 6, size 5"));
+    }
+  }
+
   @Test void testFolder() {
     final List<Folder<Ast.Exp>> list = new ArrayList<>();
     Folder.start(list, ast.stringLiteral(Pos.ZERO, "a"));